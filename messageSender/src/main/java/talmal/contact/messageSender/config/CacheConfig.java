@@ -0,0 +1,36 @@
+package talmal.contact.messageSender.config;
+
+import java.time.Duration;
+
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import talmal.contact.messageSender.services.CacheInterface;
+import talmal.contact.messageSender.services.IdleExpiryCache;
+
+@Configuration
+public class CacheConfig
+{
+	/**
+	 * cache implementation chosen by services.cache.type - a CacheInterface bean
+	 * name: "inMemory" (default), "offHeap" or "journal". other implementations
+	 * are lazy, so only the chosen one is created.
+	 * when services.cache.idleTimeoutMinutes is positive, chats idle for that long
+	 * are removed (see IdleExpiryCache).
+	 * destroyMethod is empty because SlackService closes the cache.
+	 */
+	@Bean(destroyMethod = "")
+	public CacheInterface activeCache(BeanFactory beanFactory, @Value(value = "${services.cache.type:inMemory}") String cacheType,
+		@Value(value = "${services.cache.idleTimeoutMinutes:0}") long idleTimeoutMinutes, @Value(value = "${services.cache.idleTickSeconds:1}") long idleTickSeconds)
+	{
+		CacheInterface result = beanFactory.getBean(cacheType, CacheInterface.class);
+		if (idleTimeoutMinutes > 0)
+		{
+			result = new IdleExpiryCache(result, Duration.ofMinutes(idleTimeoutMinutes), Duration.ofSeconds(idleTickSeconds));
+		}
+
+		return result;
+	}
+}
@@ -20,6 +20,7 @@ public class MessagingConfig
 	public static final String TO_SLACK_NEW_MESSAGE_QUEUE = "to.slack.new.message";
 	public static final String TO_SLACK_START_CHAT_QUEUE = "to.slack.start.chat";
 	public static final String TO_SLACK_LOAD_CHAT_QUEUE = "to.slack.load.messages";
+	public static final String TO_SLACK_LOAD_CHATS_QUEUE = "to.slack.load.chats";
 	public static final String FROM_SLACK_NEW_MESSAGE_QUEUE = "from.slack.new.message";
 	
 	@Bean
@@ -27,9 +28,12 @@ public class MessagingConfig
 	{
 		TopicExchange topicExchange = new TopicExchange(MessagingConfig.CHAT_EXCHANGE);
 		Queue fromSlackNewMessageQueue = new Queue(MessagingConfig.FROM_SLACK_NEW_MESSAGE_QUEUE, false);
+		// declared here, so its listener can start before any producer of batch loads declared it
+		Queue toSlackLoadChatsQueue = new Queue(MessagingConfig.TO_SLACK_LOAD_CHATS_QUEUE, false);
 
 		return new Declarables(topicExchange, 
-				fromSlackNewMessageQueue, BindingBuilder.bind(fromSlackNewMessageQueue).to(topicExchange).with(fromSlackNewMessageQueue.getName())
+				fromSlackNewMessageQueue, BindingBuilder.bind(fromSlackNewMessageQueue).to(topicExchange).with(fromSlackNewMessageQueue.getName()),
+				toSlackLoadChatsQueue, BindingBuilder.bind(toSlackLoadChatsQueue).to(topicExchange).with(toSlackLoadChatsQueue.getName())
 				);
 	}
 	
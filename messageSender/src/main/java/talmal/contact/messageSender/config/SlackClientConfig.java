@@ -0,0 +1,81 @@
+package talmal.contact.messageSender.config;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import com.slack.api.Slack;
+import com.slack.api.SlackConfig;
+import com.slack.api.methods.MethodsConfig;
+import com.slack.api.util.http.SlackHttpClient;
+
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+
+@Configuration
+public class SlackClientConfig
+{
+	/**
+	 * slack client shared by all slack calls, with a tunable http client behind
+	 * it:
+	 * <ul>
+	 * <li>slack.http.maxIdleConnections / keepAliveSeconds - connection pool, idle
+	 * connections are reused by later calls instead of a new tcp + tls
+	 * handshake</li>
+	 * <li>slack.http.http2 - negotiate http/2 (one multiplexed connection), or
+	 * stay on http/1.1</li>
+	 * <li>slack.http.connectTimeoutMillis / readTimeoutMillis /
+	 * writeTimeoutMillis / callTimeoutMillis - 0 is no timeout</li>
+	 * <li>slack.http.maxRequests / maxRequestsPerHost - okhttp dispatcher limits
+	 * of async calls</li>
+	 * <li>slack.http.asyncThreads - threads of the sdk executor that runs the
+	 * async methods client calls</li>
+	 * <li>slack.methodsUrl - web api url, to point the client at a slack
+	 * stand-in</li>
+	 * </ul>
+	 * destroyMethod is empty because SlackService closes the client.
+	 */
+	@Bean(destroyMethod = "")
+	public Slack slack(@Value(value = "${slack.http.maxIdleConnections:8}") int maxIdleConnections, @Value(value = "${slack.http.keepAliveSeconds:300}") long keepAliveSeconds,
+		@Value(value = "${slack.http.http2:true}") boolean isHttp2, @Value(value = "${slack.http.connectTimeoutMillis:5000}") int connectTimeoutMillis,
+		@Value(value = "${slack.http.readTimeoutMillis:10000}") int readTimeoutMillis, @Value(value = "${slack.http.writeTimeoutMillis:10000}") int writeTimeoutMillis,
+		@Value(value = "${slack.http.callTimeoutMillis:0}") int callTimeoutMillis, @Value(value = "${slack.http.maxRequests:64}") int maxRequests,
+		@Value(value = "${slack.http.maxRequestsPerHost:16}") int maxRequestsPerHost, @Value(value = "${slack.http.asyncThreads:8}") int asyncThreads,
+		@Value(value = "${slack.methodsUrl:}") String methodsUrl)
+	{
+		SlackConfig config = new SlackConfig();
+		config.setHttpClientReadTimeoutMillis(readTimeoutMillis);
+		config.setHttpClientWriteTimeoutMillis(writeTimeoutMillis);
+		config.setHttpClientCallTimeoutMillis(callTimeoutMillis);
+		if (!methodsUrl.isBlank())
+		{
+			config.setMethodsEndpointUrlPrefix(methodsUrl);
+		}
+
+		// a named executor, so the async client does not share the sdk default singleton pool
+		MethodsConfig methodsConfig = new MethodsConfig();
+		methodsConfig.setExecutorName("message-sender");
+		methodsConfig.setDefaultThreadPoolSize(asyncThreads);
+		config.setMethodsConfig(methodsConfig);
+
+		Dispatcher dispatcher = new Dispatcher();
+		dispatcher.setMaxRequests(maxRequests);
+		dispatcher.setMaxRequestsPerHost(maxRequestsPerHost);
+
+		// start from the sdk client, to keep its interceptors (user agent, proxy, logging)
+		OkHttpClient okHttpClient = SlackHttpClient.buildOkHttpClient(config).newBuilder()
+			.connectionPool(new ConnectionPool(maxIdleConnections, keepAliveSeconds, TimeUnit.SECONDS)).dispatcher(dispatcher)
+			.protocols(isHttp2 ? List.of(Protocol.HTTP_2, Protocol.HTTP_1_1) : List.of(Protocol.HTTP_1_1)).connectTimeout(Duration.ofMillis(connectTimeoutMillis))
+			.build();
+
+		SlackHttpClient httpClient = new SlackHttpClient(okHttpClient);
+		httpClient.setConfig(config);
+		return Slack.getInstance(config, httpClient);
+	}
+}
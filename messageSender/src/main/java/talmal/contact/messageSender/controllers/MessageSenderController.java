@@ -1,5 +1,10 @@
 package talmal.contact.messageSender.controllers;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.springframework.amqp.AmqpRejectAndDontRequeueException;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
@@ -12,15 +17,20 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
 
+import lombok.extern.slf4j.Slf4j;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 import talmal.contact.messageSender.config.MessagingConfig;
 import talmal.contact.messageSender.config.SlackGson;
 import talmal.contact.messageSender.models.ContactDetails;
 import talmal.contact.messageSender.models.context.ChatMessage;
 import talmal.contact.messageSender.services.SlackService;
+import talmal.contact.messageSender.services.ratelimit.SlackRequestRejectedException;
 
+@Slf4j
 @RestController
 @RequestMapping(path = "/message", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
 public class MessageSenderController
@@ -38,7 +48,7 @@ public class MessageSenderController
 	@ResponseStatus(HttpStatus.CREATED)
 	public Mono<ChatMessage> sendStartChatRequest(@RequestBody(required = true) ContactDetails contactDetails)
 	{
-		return Mono.just(this.slackService.sendMessage(contactDetails));
+		return this.slackService.sendMessageAsync(contactDetails).onErrorMap(RejectedExecutionException.class, MessageSenderController::toServiceUnavailable);
 	}
 
 	/**
@@ -51,7 +61,7 @@ public class MessageSenderController
 	@ResponseStatus(HttpStatus.CREATED)
 	public Mono<ChatMessage> sendMessageReply(@RequestBody(required = true) ChatMessage chatMessage)
 	{
-		return Mono.just(this.slackService.sendMessage(chatMessage));
+		return this.slackService.sendMessageAsync(chatMessage).onErrorMap(RejectedExecutionException.class, MessageSenderController::toServiceUnavailable);
 	}
 
 	/**
@@ -63,7 +73,23 @@ public class MessageSenderController
 	@GetMapping(path = "/open", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
 	public Flux<ChatMessage> subscribeToChat(@RequestParam(name = "chatId", required = true) String chatId)
 	{
-		return Flux.fromIterable(this.slackService.getChatMessages(chatId));
+		// a chat missing in cache is streamed from slack page by page, off the event loop
+		return this.slackService.streamChatMessages(chatId).onErrorMap(SlackRequestRejectedException.class, MessageSenderController::toServiceUnavailable);
+	}
+
+	/**
+	 * accept calls to load several existing slack conversations at once
+	 * 
+	 * @param chatIds - conversation ids (stack timestemps), comma separated
+	 * @return - all existing messages in target slack conversations, cached
+	 *         conversations first. each message carries its chat id.
+	 */
+	@GetMapping(path = "/openBatch", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+	public Flux<ChatMessage> subscribeToChats(@RequestParam(name = "chatIds", required = true) List<String> chatIds)
+	{
+		return Flux.defer(() -> this.slackService.streamChatsMessages(chatIds))
+			.onErrorMap(IllegalArgumentException.class, e -> new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e))
+			.onErrorMap(SlackRequestRejectedException.class, MessageSenderController::toServiceUnavailable);
 	}
 
 	/**
@@ -74,9 +100,9 @@ public class MessageSenderController
 	 *                    (available to owner account).
 	 */
 	@DeleteMapping(path = "/deleteAll")
-	public void deleteAll(@RequestParam(name = "channelName") String channelName)
+	public Mono<Void> deleteAll(@RequestParam(name = "channelName") String channelName)
 	{
-		this.slackService.deleteAllMessages(channelName);
+		return Mono.fromRunnable(() -> this.slackService.deleteAllMessages(channelName)).subscribeOn(Schedulers.boundedElastic()).then();
 	}
 
 	/**
@@ -108,11 +134,58 @@ public class MessageSenderController
 	 * 
 	 * @param chatId - conversation id (stack timestemp)
 	 * @return - all existing messages in target slack conversation as a list of
-	 *         ChatMessages json string - back to message queue
+	 *         ChatMessages json string - back to message queue. empty list if
+	 *         the chat could not be loaded now.
 	 */
 	@RabbitListener(queues = MessagingConfig.TO_SLACK_LOAD_CHAT_QUEUE)
 	public String subscribeToChatQueue(String chatId)
 	{
-		return SlackGson.toJson(this.slackService.getChatMessages(SlackGson.fromJson(chatId, String.class)));
+		List<ChatMessage> result = List.of();
+		try
+		{
+			result = this.slackService.getChatMessages(SlackGson.fromJson(chatId, String.class));
+		}
+		catch (RuntimeException e)
+		{
+			// shed request, open circuit or failed page - a requeue would only
+			// redeliver it at once, so answer with no messages instead
+			log.error("failed to load chat {}: {}", chatId, e.getMessage(), e);
+		}
+
+		return SlackGson.toJson(result);
+	}
+
+	/**
+	 * listen to message queue to load several existing slack conversations
+	 * 
+	 * @param chatIdsJson - conversation ids (stack timestemps) json array
+	 * @return - all existing messages in target slack conversations as a json
+	 *         object of chat id to list of ChatMessages, empty list for a chat
+	 *         that is not found, ERROR message last for a chat that failed to
+	 *         load - back to message queue
+	 */
+	@RabbitListener(queues = MessagingConfig.TO_SLACK_LOAD_CHATS_QUEUE)
+	public String subscribeToChatsQueue(String chatIdsJson)
+	{
+		try
+		{
+			return SlackGson.toJson(this.slackService.getChatsMessages(Arrays.asList(SlackGson.fromJson(chatIdsJson, String[].class))));
+		}
+		catch (RuntimeException e)
+		{
+			// a request over the batch limit fails the same way every time, and a
+			// requeue of any other failure would only redeliver it at once
+			throw new AmqpRejectAndDontRequeueException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * send lanes are full, or slack requests are shed - tell client to retry later
+	 * @param e - lane rejection, or slack request rejection
+	 * @return 503 response
+	 */
+	private static ResponseStatusException toServiceUnavailable(Exception e)
+	{
+		return new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, e.getMessage(), e);
 	}
 }
@@ -12,6 +12,14 @@ public class ContactDetails implements MessageToSlack
 	private String name;
 	private String email;
 	private String message;
+	// set by clients to make retries safe - a repeated key gets the original
+	// response, from this process only (keys are not kept over a restart)
+	private String idempotencyKey;
+
+	public ContactDetails(String name, String email, String message)
+	{
+		this(name, email, message, null);
+	}
 	
 	@Override
 	public String getText()
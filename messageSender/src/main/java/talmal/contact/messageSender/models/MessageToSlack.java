@@ -5,4 +5,9 @@ public interface MessageToSlack
 	public String getText();
 	public String getName();
 	public String getChatId();
+	
+	/**
+	 * @return client key of this send request, null if retries are not safe
+	 */
+	public String getIdempotencyKey();
 }
@@ -0,0 +1,108 @@
+package talmal.contact.messageSender.models;
+
+import java.util.Map;
+
+import com.google.gson.JsonElement;
+
+/**
+ * fields of a slack events api payload this service works with. read in a
+ * single pass over the event object - no tree walk and json deserialization
+ * per field, no deserialization of the whole payload (which also drops
+ * subtype).
+ *
+ * @param user     - event.user, null for bot messages
+ * @param type     - event.type
+ * @param subtype  - event.subtype
+ * @param threadTs - event.thread_ts, null for a thread first message
+ * @param ts       - event.ts
+ * @param text     - event.text
+ */
+public record SlackEvent(String user, String type, String subtype, String threadTs, String ts, String text)
+{
+	private static final String PAYLOAD_KEY_EVENT = "event";
+	private static final String EVENT_KEY_USER = "user";
+	private static final String EVENT_KEY_TYPE = "type";
+	private static final String EVENT_KEY_SUBTYPE = "subtype";
+	private static final String EVENT_KEY_THREAD_TS = "thread_ts";
+	private static final String EVENT_KEY_TS = "ts";
+	private static final String EVENT_KEY_TEXT = "text";
+
+	/**
+	 * @param payload - slack event envelope.payload
+	 * @return event fields, or null if payload has no event object
+	 */
+	public static SlackEvent parse(JsonElement payload)
+	{
+		SlackEvent result = null;
+
+		JsonElement event = (payload != null && payload.isJsonObject()) ? payload.getAsJsonObject().get(SlackEvent.PAYLOAD_KEY_EVENT) : null;
+		if (event != null && event.isJsonObject())
+		{
+			String user = null;
+			String type = null;
+			String subtype = null;
+			String threadTs = null;
+			String ts = null;
+			String text = null;
+
+			for (Map.Entry<String, JsonElement> field : event.getAsJsonObject().entrySet())
+			{
+				switch (field.getKey())
+				{
+					case SlackEvent.EVENT_KEY_USER:
+					{
+						user = SlackEvent.toString(field.getValue());
+						break;
+					}
+					case SlackEvent.EVENT_KEY_TYPE:
+					{
+						type = SlackEvent.toString(field.getValue());
+						break;
+					}
+					case SlackEvent.EVENT_KEY_SUBTYPE:
+					{
+						subtype = SlackEvent.toString(field.getValue());
+						break;
+					}
+					case SlackEvent.EVENT_KEY_THREAD_TS:
+					{
+						threadTs = SlackEvent.toString(field.getValue());
+						break;
+					}
+					case SlackEvent.EVENT_KEY_TS:
+					{
+						ts = SlackEvent.toString(field.getValue());
+						break;
+					}
+					case SlackEvent.EVENT_KEY_TEXT:
+					{
+						text = SlackEvent.toString(field.getValue());
+						break;
+					}
+					default:
+					{
+						// not needed
+						break;
+					}
+				}
+			}
+
+			result = new SlackEvent(user, type, subtype, threadTs, ts, text);
+		}
+
+		return result;
+	}
+
+	/**
+	 * @return chat of event - thread ts, or ts of a thread first message
+	 */
+	public String chatKey()
+	{
+		return (this.threadTs != null) ? this.threadTs : this.ts;
+	}
+
+	private static String toString(JsonElement value)
+	{
+		return (value != null && value.isJsonPrimitive()) ? value.getAsString() : null;
+	}
+}
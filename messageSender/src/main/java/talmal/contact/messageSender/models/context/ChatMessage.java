@@ -3,13 +3,13 @@ package talmal.contact.messageSender.models.context;
 import java.time.Instant;
 import java.util.Map;
 
-import com.slack.api.app_backend.events.payload.MessagePayload;
 import com.slack.api.methods.response.chat.ChatPostMessageResponse;
 
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import talmal.contact.messageSender.models.MessageToSlack;
+import talmal.contact.messageSender.models.SlackEvent;
 import talmal.contact.messageSender.services.Tools;
 
 @AllArgsConstructor
@@ -30,6 +30,14 @@ public class ChatMessage implements MessageToSlack
 	private String message;
 	private Instant date;
 	private SenderType senderType;
+	// set by clients to make retries safe - a repeated key gets the original
+	// response, from this process only (keys are not kept over a restart)
+	private String idempotencyKey;
+
+	public ChatMessage(String chatId, String messageId, String name, String message, Instant date, SenderType senderType)
+	{
+		this(chatId, messageId, name, message, date, senderType, null);
+	}
 
 	public ChatMessage(Map<String, String> input)
 	{
@@ -55,13 +63,13 @@ public class ChatMessage implements MessageToSlack
 		this.setSenderType(SenderType.USER);
 	}
 
-	public ChatMessage(String threadTs, MessagePayload messagePayload, String userName)
+	public ChatMessage(String threadTs, SlackEvent event, String userName)
 	{
 		this.setChatId(threadTs);
-		this.setMessageId(messagePayload.getEvent().getTs());
+		this.setMessageId(event.ts());
 		this.setName(userName);
-		this.setMessage(messagePayload.getEvent().getText());
-		this.setDate(Tools.slackTsToInstant(messagePayload.getEvent().getTs()));
+		this.setMessage(event.text());
+		this.setDate(Tools.slackTsToInstant(event.ts()));
 		this.setSenderType(SenderType.OWNER);
 	}
 	
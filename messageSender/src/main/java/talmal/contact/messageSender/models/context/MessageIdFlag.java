@@ -2,5 +2,5 @@ package talmal.contact.messageSender.models.context;
 
 public enum MessageIdFlag
 {
-	CLOSE_CHAT, ERROR
+	CLOSE_CHAT, ERROR, PENDING
 }
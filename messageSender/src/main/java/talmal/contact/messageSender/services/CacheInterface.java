@@ -15,16 +15,17 @@ public interface CacheInterface
 	public List<ChatMessage> getMessages(String chatId);
 	
 	/**
-	 * add message to message list according to chat id
+	 * add message to message list according to chat id. message list is ordered by
+	 * message id (slack ts), a message with an id already in the list is not added.
 	 * @param message
 	 * @return true if message was added, false if not
 	 */
 	public boolean addMessage(ChatMessage message);
 	
 	/**
-	 * add messages to message list according to chat id
+	 * add messages to message list according to chat id (see addMessage)
 	 * @param messages
-	 * @return true if message was added, false if not
+	 * @return true if any message was added, false if not
 	 */
 	public boolean addMessages(List<ChatMessage> messages);
 	
@@ -45,10 +46,22 @@ public interface CacheInterface
 	public boolean isMemoryLimitReached();
 	
 	/**
-	 * remove oldest entry
+	 * remove oldest entry - the next entry chosen by config defined eviction
+	 * policy (services.cache.evictionPolicy), chat start time by default
 	 * @return key of removed entry
 	 */
 	public String removeOldest();
 	
+	/**
+	 * remove oldest entries until memory is under config defined limit (services.cache.maxMemory)
+	 * @return keys of removed entries, in eviction order (could be empty list)
+	 */
+	public List<String> evictUntilUnderMemoryLimit();
+	
+	/**
+	 * @return hit / miss / eviction counters of this cache
+	 */
+	public CacheStatistics getStatistics();
+	
 	public void close();
 }
@@ -0,0 +1,120 @@
+package talmal.contact.messageSender.services;
+
+/**
+ * estimate heap bytes occupied by cached chats without walking the object
+ * graph. object layout sizes are worked out once in the constructor, so each
+ * estimate is a few additions over the message string lengths.
+ * 
+ * default sizes match a 64 bit hotspot jvm with compressed oops and compact
+ * strings (heap smaller then 32GB), use JolMemoryCalibrator to measure the
+ * running jvm instead.
+ */
+public class CacheMemoryEstimator
+{
+	private static final int DEFAULT_OBJECT_ALIGNMENT = 8;
+	private static final int DEFAULT_ARRAY_HEADER_SIZE = 16;
+	private static final int DEFAULT_REFERENCE_SIZE = 4;
+	private static final long DEFAULT_STRING_SIZE = 24;
+	private static final long DEFAULT_COMPACT_MESSAGE_SIZE = 48;
+	private static final long DEFAULT_CHAT_ENTRY_SIZE = 200;
+	// message id set keeps a packed ts per message, at load factor under 0.5
+	private static final int MESSAGE_ID_SLOT_SIZE = 2 * Long.BYTES;
+
+	private final int objectAlignment;
+	private final int arrayHeaderSize;
+	private final int referenceSize;
+	private final long stringSize;
+	private final long compactMessageSize;
+	private final long chatEntrySize;
+
+	public CacheMemoryEstimator()
+	{
+		this(CacheMemoryEstimator.DEFAULT_OBJECT_ALIGNMENT, CacheMemoryEstimator.DEFAULT_ARRAY_HEADER_SIZE, CacheMemoryEstimator.DEFAULT_REFERENCE_SIZE,
+			CacheMemoryEstimator.DEFAULT_STRING_SIZE, CacheMemoryEstimator.DEFAULT_COMPACT_MESSAGE_SIZE, CacheMemoryEstimator.DEFAULT_CHAT_ENTRY_SIZE);
+	}
+
+	/**
+	 * @param objectAlignment - jvm object alignment in bytes
+	 * @param arrayHeaderSize - array header size in bytes
+	 * @param referenceSize   - size of an object reference in bytes
+	 * @param stringSize         - shallow size of a String (without its byte array)
+	 * @param compactMessageSize - shallow size of a CompactChatMessage
+	 * @param chatEntrySize      - fixed bytes per cached chat: map node, table
+	 *                           slot, message list and its lock, message id set
+	 *                           (without the chat id key)
+	 */
+	public CacheMemoryEstimator(int objectAlignment, int arrayHeaderSize, int referenceSize, long stringSize, long compactMessageSize, long chatEntrySize)
+	{
+		this.objectAlignment = objectAlignment;
+		this.arrayHeaderSize = arrayHeaderSize;
+		this.referenceSize = referenceSize;
+		this.stringSize = stringSize;
+		this.compactMessageSize = compactMessageSize;
+		this.chatEntrySize = chatEntrySize;
+	}
+
+	/**
+	 * estimate bytes added to the cache by a single message
+	 * @param message   - message to estimate
+	 * @param nameTable - table message name was interned in, shared names are
+	 *                  not counted per message
+	 * @return estimated size in bytes, 0 for null input
+	 */
+	long estimateMessage(CompactChatMessage message, NameTable nameTable)
+	{
+		long result = 0;
+		if (message != null)
+		{
+			result = this.compactMessageSize 
+				+ this.referenceSize // slot in message list array
+				+ CacheMemoryEstimator.MESSAGE_ID_SLOT_SIZE
+				+ this.estimateString(message.getMessageIdText()) 
+				+ (nameTable.isShared(message.getName()) ? 0 : this.estimateString(message.getName()))
+				+ ((message.getText() != null) ? this.align(this.arrayHeaderSize + message.getText().length) : 0);
+		}
+
+		return result;
+	}
+
+	/**
+	 * estimate fixed bytes added to the cache by a new chat, excluding its messages
+	 * @param chatId - chat key
+	 * @return estimated size in bytes
+	 */
+	public long estimateChat(String chatId)
+	{
+		return this.chatEntrySize + this.arrayHeaderSize + this.estimateString(chatId);
+	}
+
+	/**
+	 * estimate a string with its backing array. compact strings keep latin1 text
+	 * in one byte per char, anything else takes two bytes per char.
+	 * @param value - string to estimate
+	 * @return estimated size in bytes, 0 for null input
+	 */
+	public long estimateString(String value)
+	{
+		long result = 0;
+		if (value != null)
+		{
+			int bytesPerChar = 1;
+			for (int i = 0; i < value.length(); i++)
+			{
+				if (value.charAt(i) > 0xFF)
+				{
+					bytesPerChar = 2;
+					break;
+				}
+			}
+
+			result = this.stringSize + this.align(this.arrayHeaderSize + (long) value.length() * bytesPerChar);
+		}
+
+		return result;
+	}
+
+	private long align(long size)
+	{
+		return (size + this.objectAlignment - 1) / this.objectAlignment * this.objectAlignment;
+	}
+}
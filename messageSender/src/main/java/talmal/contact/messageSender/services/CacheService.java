@@ -1,22 +1,54 @@
 package talmal.contact.messageSender.services;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
 
-import org.openjdk.jol.info.GraphLayout;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import lombok.extern.slf4j.Slf4j;
 import talmal.contact.messageSender.models.context.ChatMessage;
+import talmal.contact.messageSender.services.eviction.EvictionPolicy;
+import talmal.contact.messageSender.services.eviction.EvictionPolicyType;
 
+/**
+ * thread safe in memory cache. written to by the slack socket listener, the
+ * rabbit listeners and the web request threads at the same time, so:
+ * <ul>
+ * <li>chats are kept in a ConcurrentHashMap - writes to different chats do not
+ * block each other</li>
+ * <li>appends to a chat run inside ConcurrentHashMap.compute, which locks only
+ * that chat entry, so appends can not race with removal of the same chat</li>
+ * <li>message lists are CopyOnWriteArrayList - reads and iterations are lock
+ * free and never throw ConcurrentModificationException</li>
+ * </ul>
+ * messages are kept as CompactChatMessage (packed ts, shared names, utf-8
+ * text) and converted back to ChatMessage only when read.
+ * memory is accounted incrementally - every add/remove updates a running byte
+ * estimate, so isMemoryLimitReached is a constant time check.
+ * the eviction policy (services.cache.evictionPolicy) is kept in step with the
+ * map inside compute(), and is told about every read and write, so access aware
+ * policies (LRU, TINY_LFU) can pick their victim without scanning the cache.
+ */
+@Slf4j
 @Component(value = "inMemory")
 public class CacheService implements CacheInterface
 {
-	private Map<String, List<ChatMessage>> openChats;
+	private static final long BYTES_IN_MB = 1000000;
+
+	private Map<String, CachedChat> openChats;
+	private EvictionPolicy evictionPolicy;
+	private CacheStatistics statistics;
+	private CacheMemoryEstimator memoryEstimator;
+	private AtomicLong sizeInBytes;
+	private NameTable nameTable;
 
 	@Value(value = "${services.cache.maxMemory:10}")
 	private int cacheMaxMemoryInMb;
@@ -24,15 +56,28 @@ public class CacheService implements CacheInterface
 	@Value(value = "${services.cache.isActive:true}")
 	private boolean isActive;
 
+	@Value(value = "${services.cache.evictionPolicy:OLDEST}")
+	private EvictionPolicyType evictionPolicyType = EvictionPolicyType.OLDEST;
+
+	// debug mode - measure the cache with jol (jol-core must be on the class path)
+	@Value(value = "${services.cache.calibrateMemory:false}")
+	private boolean isCalibrateMemory;
+
 	public CacheService()
 	{
 		this.init();
 	}
 	
 	public CacheService(boolean isActive, int cacheMaxMemoryInMb)
+	{
+		this(isActive, cacheMaxMemoryInMb, EvictionPolicyType.OLDEST);
+	}
+	
+	public CacheService(boolean isActive, int cacheMaxMemoryInMb, EvictionPolicyType evictionPolicyType)
 	{
 		this.isActive = isActive;
 		this.cacheMaxMemoryInMb = cacheMaxMemoryInMb;
+		this.evictionPolicyType = evictionPolicyType;
 		
 		if (isActive)
 		{
@@ -42,7 +87,34 @@ public class CacheService implements CacheInterface
 	
 	public void init()
 	{
-		this.openChats = new HashMap<String, List<ChatMessage>>();
+		this.openChats = new ConcurrentHashMap<String, CachedChat>();
+		this.evictionPolicy = this.evictionPolicyType.create();
+		this.statistics = new CacheStatistics();
+		this.memoryEstimator = new CacheMemoryEstimator();
+		this.sizeInBytes = new AtomicLong();
+		this.nameTable = new NameTable();
+	}
+
+	@PostConstruct
+	public void PostConstruct()
+	{
+		// configuration values are only available after construction,
+		// cache is still empty, so replacing the policy keeps it consistent
+		this.evictionPolicy = this.evictionPolicyType.create();
+		
+		if (this.isActive && this.isCalibrateMemory)
+		{
+			try
+			{
+				// cache is still empty, so replacing the estimator keeps accounting consistent
+				this.memoryEstimator = JolMemoryCalibrator.createEstimator();
+			}
+			catch (NoClassDefFoundError e)
+			{
+				log.warn("jol-core is not on the class path, memory calibration is disabled: {}", e.getMessage());
+				this.isCalibrateMemory = false;
+			}
+		}
 	}
 
 	@Override
@@ -51,7 +123,17 @@ public class CacheService implements CacheInterface
 		List<ChatMessage> result = null;
 		if (this.isActive && chatId != null)
 		{
-			result = this.openChats.get(chatId);
+			CachedChat chat = this.openChats.get(chatId);
+			if (chat != null)
+			{
+				result = new CompactMessageList(chatId, chat.messages.toArray(new CompactChatMessage[0]));
+				this.evictionPolicy.onAccess(chatId);
+				this.statistics.recordHit();
+			}
+			else
+			{
+				this.statistics.recordMiss();
+			}
 		}
 
 		return result;
@@ -87,22 +169,7 @@ public class CacheService implements CacheInterface
 		boolean result = false;
 		if (this.isActive && message != null && message.getChatId() != null)
 		{
-			String chatId = message.getChatId();
-			List<ChatMessage> existingMessages = this.openChats.get(chatId);
-			if (existingMessages != null)
-			{
-				// chat id exists in memory
-				existingMessages.add(message);
-			}
-			else
-			{
-				// chat id does not exist in memory
-				List<ChatMessage> newMessages = new ArrayList<ChatMessage>();
-				newMessages.add(message);
-				this.openChats.put(chatId, newMessages);
-			}
-
-			result = true;
+			result = this.append(message);
 		}
 
 		return result;
@@ -115,44 +182,86 @@ public class CacheService implements CacheInterface
 
 		if (this.isActive && messages != null && !messages.isEmpty())
 		{
-			// add first message to initialize cache entry
-			messages.stream().forEach(message -> 
+			for (ChatMessage message : messages)
 			{
-				List<ChatMessage> existingMessages = this.openChats.get(message.getChatId());
-				if (existingMessages != null)
+				if (message != null && message.getChatId() != null)
 				{
-					// add messages to existing entry
-					existingMessages.add(message);
+					result |= this.append(message);
 				}
-				else
-				{
-					// create a new entry
-					existingMessages = new ArrayList<ChatMessage>();
-					existingMessages.add(message);
-					this.openChats.put(message.getChatId(), existingMessages);
-				}
-	
-			});
-			
-			result = true;
+			}
 		}
 
 		return result;
 	}
 
+	/**
+	 * add a message to its chat, create the chat entry if missing. compute()
+	 * locks only this chat entry, so concurrent appends to the same chat are
+	 * serialized, while appends to other chats run in parallel.
+	 * @param message - message with a non null chat id
+	 * @return true if message was added, false if it is a duplicate
+	 */
+	private boolean append(ChatMessage message)
+	{
+		CompactChatMessage compactMessage = new CompactChatMessage(message, this.nameTable);
+		boolean[] isAdded = { false };
+		this.openChats.compute(message.getChatId(), (chatId, chat) -> 
+		{
+			long addedBytes = 0;
+			if (chat == null)
+			{
+				// chat id does not exist in memory
+				chat = new CachedChat();
+				addedBytes += this.memoryEstimator.estimateChat(chatId);
+				this.evictionPolicy.onAdd(chatId);
+			}
+			else
+			{
+				this.evictionPolicy.onAccess(chatId);
+			}
+			
+			if (chat.add(compactMessage))
+			{
+				addedBytes += this.memoryEstimator.estimateMessage(compactMessage, this.nameTable);
+				isAdded[0] = true;
+			}
+			chat.sizeInBytes += addedBytes;
+			this.sizeInBytes.addAndGet(addedBytes);
+			return chat;
+		});
+
+		return isAdded[0];
+	}
+
 	@Override
 	public void removeMessages(String chatId)
 	{
 		if (this.isActive && chatId != null)
 		{
-			List<ChatMessage> existingMessages = this.openChats.remove(chatId);
-			if (existingMessages != null)
-			{
-				existingMessages.clear();
-			}
+			this.remove(chatId);
 		}
 	}
 
+	/**
+	 * remove chat and release its bytes from the memory estimate. 
+	 * do not clear() the removed list - readers may still be iterating it.
+	 * @param chatId
+	 * @return true if chat was removed
+	 */
+	private boolean remove(String chatId)
+	{
+		boolean[] isRemoved = { false };
+		this.openChats.computeIfPresent(chatId, (key, chat) -> 
+		{
+			this.evictionPolicy.onRemove(chatId);
+			this.sizeInBytes.addAndGet(-chat.sizeInBytes);
+			isRemoved[0] = true;
+			return null;
+		});
+
+		return isRemoved[0];
+	}
+
 	@Override
 	public String removeOldest()
 	{
@@ -160,13 +269,33 @@ public class CacheService implements CacheInterface
 
 		if (this.isActive)
 		{
-			// sort by keys (keys are assumed to be timestemps), and remove first which is
-			// the oldest entry
-			Optional<String> oldestChat = this.openChats.keySet().stream().sorted().findFirst();
-			if (oldestChat.isPresent())
+			// let the eviction policy choose. 
+			// retry if the chat was removed by another thread meanwhile
+			String victim;
+			while (result == null && (victim = this.evictionPolicy.nextVictim()) != null)
+			{
+				if (this.remove(victim))
+				{
+					result = victim;
+					this.statistics.recordEviction();
+				}
+			}
+		}
+
+		return result;
+	}
+
+	@Override
+	public List<String> evictUntilUnderMemoryLimit()
+	{
+		List<String> result = new ArrayList<String>();
+
+		if (this.isActive)
+		{
+			String removedChatId;
+			while (this.isMemoryLimitReached() && (removedChatId = this.removeOldest()) != null)
 			{
-				result = oldestChat.get();
-				this.openChats.remove(result);
+				result.add(removedChatId);
 			}
 		}
 
@@ -179,13 +308,30 @@ public class CacheService implements CacheInterface
 		boolean result = false;
 		if (this.isActive)
 		{
-			// TODO: fix memory calculator (WARNING: Unable to attach Serviceability Agent. sun.jvm.hotspot.memory.Universe.getNarrowOopBase())
-			long sizeInBytes = GraphLayout.parseInstance(this.openChats).totalSize();
-			//log.info("isMemoryLimitReached with size of {} bytes ", sizeInBytes);
-			result = this.cacheMaxMemoryInMb <= (sizeInBytes / 1000000);
+			long sizeInBytes = this.sizeInBytes.get();
+			if (this.isCalibrateMemory)
+			{
+				log.debug("isMemoryLimitReached estimated size: {} bytes, measured size: {} bytes", sizeInBytes, JolMemoryCalibrator.measure(this.openChats));
+			}
+
+			result = this.cacheMaxMemoryInMb <= (sizeInBytes / CacheService.BYTES_IN_MB);
 		}
 		return result;
 	}
+
+	@Override
+	public CacheStatistics getStatistics()
+	{
+		return this.statistics;
+	}
+
+	/**
+	 * @return current estimated cache size in bytes
+	 */
+	public long getSizeInBytes()
+	{
+		return (this.sizeInBytes != null) ? this.sizeInBytes.get() : 0;
+	}
 	
 	@Override
 	public String toString()
@@ -194,13 +340,13 @@ public class CacheService implements CacheInterface
 		
 		if(this.isActive)
 		{
-			for(String chatId: this.getChatIds())
+			for(Map.Entry<String, CachedChat> chat : this.openChats.entrySet())
 			{
-				builder.append(chatId);
+				builder.append(chat.getKey());
 				builder.append(System.lineSeparator());
-				for(ChatMessage message : this.getMessages(chatId))
+				for(CompactChatMessage message : chat.getValue().messages)
 				{
-					builder.append(message);
+					builder.append(message.toChatMessage(chat.getKey()));
 					builder.append(System.lineSeparator());
 				}
 				
@@ -217,4 +363,42 @@ public class CacheService implements CacheInterface
 	{
 		// nothing to close here
 	}
+
+	/**
+	 * cache entry - chat messages ordered by slack ts, their ids and estimated
+	 * size. only written inside compute() on this chat's map entry.
+	 */
+	static class CachedChat
+	{
+		private final List<CompactChatMessage> messages = new CopyOnWriteArrayList<CompactChatMessage>();
+		private final MessageIdSet messageIds = new MessageIdSet();
+		private long sizeInBytes;
+
+		/**
+		 * add message in slack ts order, skip messages already in the chat
+		 * @param message
+		 * @return true if message was added, false if it is a duplicate
+		 */
+		private boolean add(CompactChatMessage message)
+		{
+			long ts = message.getMessageTs();
+			boolean result = (ts != Tools.INVALID_TS) ? this.messageIds.add(ts) : this.messageIds.add(message.getMessageIdText());
+			if (result)
+			{
+				int index = this.messages.size();
+				if (ts != Tools.INVALID_TS)
+				{
+					// messages mostly arrive in order - search from the end
+					while (index > 0 && this.messages.get(index - 1).getMessageTs() > ts)
+					{
+						index--;
+					}
+				}
+
+				this.messages.add(index, message);
+			}
+
+			return result;
+		}
+	}
 }
@@ -0,0 +1,72 @@
+package talmal.contact.messageSender.services;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * cache hit / miss / eviction / idle expiration counters, used to compare eviction policies on
+ * real traffic
+ */
+public class CacheStatistics
+{
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder expirations = new LongAdder();
+
+	public void recordHit()
+	{
+		this.hits.increment();
+	}
+
+	public void recordMiss()
+	{
+		this.misses.increment();
+	}
+
+	public void recordEviction()
+	{
+		this.evictions.increment();
+	}
+
+	public void recordExpiration()
+	{
+		this.expirations.increment();
+	}
+
+	public long getHits()
+	{
+		return this.hits.sum();
+	}
+
+	public long getMisses()
+	{
+		return this.misses.sum();
+	}
+
+	public long getEvictions()
+	{
+		return this.evictions.sum();
+	}
+
+	public long getExpirations()
+	{
+		return this.expirations.sum();
+	}
+
+	/**
+	 * @return hits / (hits + misses), or 0 before the first request
+	 */
+	public double getHitRatio()
+	{
+		long hits = this.getHits();
+		long requests = hits + this.getMisses();
+		return (requests == 0) ? 0 : (double) hits / requests;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("hits: %d, misses: %d, hit ratio: %.3f, evictions: %d, expirations: %d", this.getHits(), this.getMisses(), this.getHitRatio(),
+			this.getEvictions(), this.getExpirations());
+	}
+}
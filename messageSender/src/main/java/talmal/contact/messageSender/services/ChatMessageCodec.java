@@ -0,0 +1,143 @@
+package talmal.contact.messageSender.services;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+import talmal.contact.messageSender.models.context.ChatMessage;
+import talmal.contact.messageSender.models.context.SenderType;
+
+/**
+ * binary encoding of a ChatMessage, for caches that keep messages outside the
+ * java heap. chat id is not encoded - it is the key the record is stored under.
+ * 
+ * record layout: 
+ * [int record length][string messageId][string name][string message]
+ * [long date seconds][int date nanos][byte senderType]
+ * strings are [int utf-8 length (-1 for null)][utf-8 bytes], a null date has
+ * Long.MIN_VALUE seconds, a null senderType is -1.
+ */
+public class ChatMessageCodec
+{
+	private static final int NULL_LENGTH = -1;
+	private static final long NULL_DATE = Long.MIN_VALUE;
+	private static final byte NULL_SENDER_TYPE = -1;
+	private static final SenderType[] SENDER_TYPES = SenderType.values();
+
+	// record length + 3 string lengths + date + sender type
+	private static final int FIXED_SIZE = Integer.BYTES * 4 + Long.BYTES + Integer.BYTES + Byte.BYTES;
+
+	/**
+	 * @param message - message to encode
+	 * @return encoded record, starting with its own length
+	 */
+	public static byte[] encode(ChatMessage message)
+	{
+		byte[] messageId = ChatMessageCodec.toBytes(message.getMessageId());
+		byte[] name = ChatMessageCodec.toBytes(message.getName());
+		byte[] text = ChatMessageCodec.toBytes(message.getMessage());
+
+		int length = ChatMessageCodec.FIXED_SIZE + ChatMessageCodec.length(messageId) + ChatMessageCodec.length(name) + ChatMessageCodec.length(text);
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		buffer.putInt(length);
+		ChatMessageCodec.putBytes(buffer, messageId);
+		ChatMessageCodec.putBytes(buffer, name);
+		ChatMessageCodec.putBytes(buffer, text);
+		if (message.getDate() != null)
+		{
+			buffer.putLong(message.getDate().getEpochSecond());
+			buffer.putInt(message.getDate().getNano());
+		}
+		else
+		{
+			buffer.putLong(ChatMessageCodec.NULL_DATE);
+			buffer.putInt(0);
+		}
+		buffer.put((message.getSenderType() != null) ? (byte) message.getSenderType().ordinal() : ChatMessageCodec.NULL_SENDER_TYPE);
+
+		return buffer.array();
+	}
+
+	/**
+	 * @param buffer - buffer holding the record (position is not changed)
+	 * @param offset - record start in buffer
+	 * @return record length in bytes
+	 */
+	public static int recordLength(ByteBuffer buffer, int offset)
+	{
+		return buffer.getInt(offset);
+	}
+
+	/**
+	 * decode only the message id of a record written by encode()
+	 * @param buffer - buffer holding the record (position is not changed)
+	 * @param offset - record start in buffer
+	 * @return message id
+	 */
+	public static String messageId(ByteBuffer buffer, int offset)
+	{
+		ByteBuffer view = buffer.duplicate();
+		view.position(offset + Integer.BYTES);
+		return ChatMessageCodec.getString(view);
+	}
+
+	/**
+	 * decode a record written by encode()
+	 * @param chatId - chat the record is stored under
+	 * @param buffer - buffer holding the record (position is not changed)
+	 * @param offset - record start in buffer
+	 * @return decoded message
+	 */
+	public static ChatMessage decode(String chatId, ByteBuffer buffer, int offset)
+	{
+		ByteBuffer view = buffer.duplicate();
+		view.position(offset + Integer.BYTES);
+
+		String messageId = ChatMessageCodec.getString(view);
+		String name = ChatMessageCodec.getString(view);
+		String text = ChatMessageCodec.getString(view);
+		long seconds = view.getLong();
+		int nanos = view.getInt();
+		byte senderType = view.get();
+
+		return new ChatMessage(chatId, messageId, name, text, (seconds != ChatMessageCodec.NULL_DATE) ? Instant.ofEpochSecond(seconds, nanos) : null,
+			(senderType != ChatMessageCodec.NULL_SENDER_TYPE) ? ChatMessageCodec.SENDER_TYPES[senderType] : null);
+	}
+
+	private static byte[] toBytes(String value)
+	{
+		return (value != null) ? value.getBytes(StandardCharsets.UTF_8) : null;
+	}
+
+	private static int length(byte[] value)
+	{
+		return (value != null) ? value.length : 0;
+	}
+
+	private static void putBytes(ByteBuffer buffer, byte[] value)
+	{
+		if (value != null)
+		{
+			buffer.putInt(value.length);
+			buffer.put(value);
+		}
+		else
+		{
+			buffer.putInt(ChatMessageCodec.NULL_LENGTH);
+		}
+	}
+
+	private static String getString(ByteBuffer buffer)
+	{
+		String result = null;
+		int length = buffer.getInt();
+		if (length != ChatMessageCodec.NULL_LENGTH)
+		{
+			byte[] value = new byte[length];
+			buffer.get(value);
+			result = new String(value, StandardCharsets.UTF_8);
+		}
+
+		return result;
+	}
+}
@@ -0,0 +1,114 @@
+package talmal.contact.messageSender.services;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * remembers, per cached chat, the newest message ts read from slack and when it
+ * was read. a chat not read from slack for a while is stale - the next load
+ * fetches only messages newer than that ts (a delta) instead of the whole
+ * thread.
+ *
+ * bounded - the least recently used chats are dropped first when full, a
+ * dropped chat is stale.
+ */
+public class ChatSyncTracker
+{
+	private final long staleNanos;
+
+	// access order, so the least recently used chat is dropped first. entries do
+	// not expire - a stale chat still needs its newest ts for the delta
+	private final ExpiringMap<String, SyncState> chats;
+
+	/**
+	 * @param staleSeconds - time a chat read from slack is trusted, 0 trusts it
+	 *                     forever (no delta sync)
+	 * @param maxEntries   - max tracked chats
+	 */
+	public ChatSyncTracker(long staleSeconds, int maxEntries)
+	{
+		this.staleNanos = TimeUnit.SECONDS.toNanos(staleSeconds);
+		this.chats = new ExpiringMap<String, SyncState>(0, maxEntries, true);
+	}
+
+	/**
+	 * record a read of chat from slack
+	 * @param chatId   - chat id
+	 * @param newestTs - newest message ts read, null if no message was read
+	 * @param now      - System.nanoTime() of the read
+	 */
+	public void markSynced(String chatId, String newestTs, long now)
+	{
+		if (chatId != null)
+		{
+			// read and replace as one, so concurrent reads of a chat keep the newest ts
+			synchronized (this.chats)
+			{
+				SyncState state = this.chats.get(chatId, now);
+				String resultTs = (state != null) ? state.newestTs : null;
+
+				// slack ts of the same era compare as strings
+				if (newestTs != null && (resultTs == null || newestTs.compareTo(resultTs) > 0))
+				{
+					resultTs = newestTs;
+				}
+				this.chats.put(chatId, new SyncState(resultTs, now), now);
+			}
+		}
+	}
+
+	/**
+	 * @param chatId - chat id
+	 * @param now    - System.nanoTime()
+	 * @return true if chat should be read from slack again
+	 */
+	public boolean isStale(String chatId, long now)
+	{
+		boolean result = false;
+		if (this.staleNanos > 0)
+		{
+			SyncState state = this.chats.get(chatId, now);
+			result = state == null || now - state.syncTime >= this.staleNanos;
+		}
+
+		return result;
+	}
+
+	/**
+	 * @param chatId - chat id
+	 * @return newest message ts read from slack, or null if unknown
+	 */
+	public String getNewestTs(String chatId)
+	{
+		SyncState state = this.chats.get(chatId, System.nanoTime());
+		return (state != null) ? state.newestTs : null;
+	}
+
+	/**
+	 * forget chat, it is stale from now on
+	 * @param chatId - chat id
+	 */
+	public void remove(String chatId)
+	{
+		this.chats.remove(chatId);
+	}
+
+	/**
+	 * @return number of tracked chats
+	 */
+	public int size()
+	{
+		return this.chats.size();
+	}
+
+	private static class SyncState
+	{
+		private final String newestTs;
+		private final long syncTime;
+
+		private SyncState(String newestTs, long syncTime)
+		{
+			this.newestTs = newestTs;
+			this.syncTime = syncTime;
+		}
+	}
+}
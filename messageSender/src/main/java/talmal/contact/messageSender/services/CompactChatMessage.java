@@ -0,0 +1,94 @@
+package talmal.contact.messageSender.services;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+import talmal.contact.messageSender.models.context.ChatMessage;
+import talmal.contact.messageSender.models.context.SenderType;
+
+/**
+ * cached form of a ChatMessage: message id packed into a long (slack ts), name
+ * shared through a NameTable, text kept as utf-8 bytes and date as primitives.
+ * chat id is not kept, it is the cache key. converted back to ChatMessage only
+ * when read (see CompactMessageList).
+ */
+class CompactChatMessage
+{
+	private static final long NO_DATE = Long.MIN_VALUE;
+
+	// packed message id, or Tools.INVALID_TS when messageIdText holds the id (or
+	// there is no id)
+	private final long messageTs;
+	private final String messageIdText;
+	private final String name;
+	private final byte[] text;
+	private final long dateSeconds;
+	private final int dateNanos;
+	private final SenderType senderType;
+
+	CompactChatMessage(ChatMessage message, NameTable nameTable)
+	{
+		long ts = Tools.slackTsToMicros(message.getMessageId());
+		// keep ids that would not format back to the same string (like "1.5") as text
+		if (ts != Tools.INVALID_TS && Tools.microsToSlackTs(ts).equals(message.getMessageId()))
+		{
+			this.messageTs = ts;
+			this.messageIdText = null;
+		}
+		else
+		{
+			this.messageTs = Tools.INVALID_TS;
+			this.messageIdText = message.getMessageId();
+		}
+
+		this.name = nameTable.intern(message.getName());
+		this.text = (message.getMessage() != null) ? message.getMessage().getBytes(StandardCharsets.UTF_8) : null;
+		this.dateSeconds = (message.getDate() != null) ? message.getDate().getEpochSecond() : CompactChatMessage.NO_DATE;
+		this.dateNanos = (message.getDate() != null) ? message.getDate().getNano() : 0;
+		this.senderType = message.getSenderType();
+	}
+
+	/**
+	 * @return message id as packed slack ts, Tools.INVALID_TS if id is not a slack
+	 *         ts
+	 */
+	long getMessageTs()
+	{
+		return (this.messageIdText == null) ? this.messageTs : Tools.slackTsToMicros(this.messageIdText);
+	}
+
+	String getMessageIdText()
+	{
+		return this.messageIdText;
+	}
+
+	String getName()
+	{
+		return this.name;
+	}
+
+	byte[] getText()
+	{
+		return this.text;
+	}
+
+	/**
+	 * @param chatId - chat the message is cached under
+	 * @return message as ChatMessage
+	 */
+	ChatMessage toChatMessage(String chatId)
+	{
+		String messageId = this.messageIdText;
+		if (messageId == null && this.messageTs != Tools.INVALID_TS)
+		{
+			messageId = Tools.microsToSlackTs(this.messageTs);
+		}
+
+		return new ChatMessage(chatId, 
+			messageId, 
+			this.name,
+			(this.text != null) ? new String(this.text, StandardCharsets.UTF_8) : null,
+			(this.dateSeconds != CompactChatMessage.NO_DATE) ? Instant.ofEpochSecond(this.dateSeconds, this.dateNanos) : null, 
+			this.senderType);
+	}
+}
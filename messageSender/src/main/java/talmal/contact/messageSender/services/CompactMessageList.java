@@ -0,0 +1,34 @@
+package talmal.contact.messageSender.services;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+import talmal.contact.messageSender.models.context.ChatMessage;
+
+/**
+ * read only list converting cached messages to ChatMessage on access, over a
+ * snapshot of the chat messages
+ */
+class CompactMessageList extends AbstractList<ChatMessage> implements RandomAccess
+{
+	private final String chatId;
+	private final CompactChatMessage[] messages;
+
+	CompactMessageList(String chatId, CompactChatMessage[] messages)
+	{
+		this.chatId = chatId;
+		this.messages = messages;
+	}
+
+	@Override
+	public ChatMessage get(int index)
+	{
+		return this.messages[index].toChatMessage(this.chatId);
+	}
+
+	@Override
+	public int size()
+	{
+		return this.messages.length;
+	}
+}
@@ -0,0 +1,119 @@
+package talmal.contact.messageSender.services;
+
+import java.util.function.LongUnaryOperator;
+
+/**
+ * heap side of a chat whose messages are encoded outside the heap (see
+ * ChatMessageCodec) - the addresses of its records ordered by message ts, and
+ * the message ids for duplicate detection. an address packs the id of the
+ * buffer holding the record with the record offset in it.
+ * 
+ * written only inside compute() on the chat's map entry. addresses are copied
+ * on write, so readers get a consistent snapshot without locks.
+ */
+class EncodedChat
+{
+	private static final int BUFFER_ID_SHIFT = 32;
+	private static final long OFFSET_MASK = 0xFFFFFFFFL;
+
+	private volatile long[] addresses = new long[0];
+	// message ts of each address, same order, guarded by owner
+	private long[] timestamps = new long[0];
+	private final MessageIdSet messageIds = new MessageIdSet();
+	private long sizeInBytes;
+
+	/**
+	 * @param messageId - id of message to add
+	 * @return true if message id is already in chat
+	 */
+	boolean isDuplicate(String messageId)
+	{
+		return !this.messageIds.add(messageId);
+	}
+
+	/**
+	 * add record address in message ts order. call isDuplicate() first.
+	 * @param address      - record address
+	 * @param recordLength - record length in bytes
+	 * @param messageId    - message id of the record
+	 */
+	void add(long address, int recordLength, String messageId)
+	{
+		long ts = Tools.slackTsToMicros(messageId);
+		int count = this.timestamps.length;
+		int index = count;
+		if (ts != Tools.INVALID_TS)
+		{
+			// messages mostly arrive in order - search from the end
+			while (index > 0 && this.timestamps[index - 1] > ts)
+			{
+				index--;
+			}
+		}
+
+		long[] newAddresses = new long[count + 1];
+		long[] newTimestamps = new long[count + 1];
+		System.arraycopy(this.addresses, 0, newAddresses, 0, index);
+		System.arraycopy(this.timestamps, 0, newTimestamps, 0, index);
+		newAddresses[index] = address;
+		newTimestamps[index] = ts;
+		System.arraycopy(this.addresses, index, newAddresses, index + 1, count - index);
+		System.arraycopy(this.timestamps, index, newTimestamps, index + 1, count - index);
+
+		this.timestamps = newTimestamps;
+		this.addresses = newAddresses;
+		this.sizeInBytes += recordLength;
+	}
+
+	/**
+	 * move records to new addresses, message order is kept
+	 * @param move - new address of a record, or the same address to keep it
+	 */
+	void relocate(LongUnaryOperator move)
+	{
+		long[] newAddresses = this.addresses.clone();
+		boolean isMoved = false;
+		for (int i = 0; i < newAddresses.length; i++)
+		{
+			long address = move.applyAsLong(newAddresses[i]);
+			isMoved |= (address != newAddresses[i]);
+			newAddresses[i] = address;
+		}
+
+		if (isMoved)
+		{
+			this.addresses = newAddresses;
+		}
+	}
+
+	/**
+	 * @return record addresses in message order (do not modify)
+	 */
+	long[] getAddresses()
+	{
+		return this.addresses;
+	}
+
+	/**
+	 * @return total length of the chat's records
+	 */
+	long getSizeInBytes()
+	{
+		return this.sizeInBytes;
+	}
+
+	static long address(int bufferId, int offset)
+	{
+		return ((long) bufferId << EncodedChat.BUFFER_ID_SHIFT) | (offset & EncodedChat.OFFSET_MASK);
+	}
+
+	static int bufferId(long address)
+	{
+		return (int) (address >>> EncodedChat.BUFFER_ID_SHIFT);
+	}
+
+	static int offset(long address)
+	{
+		return (int) (address & EncodedChat.OFFSET_MASK);
+	}
+}
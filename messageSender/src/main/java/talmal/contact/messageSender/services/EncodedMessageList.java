@@ -0,0 +1,36 @@
+package talmal.contact.messageSender.services;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+
+import talmal.contact.messageSender.models.context.ChatMessage;
+
+/**
+ * read only list decoding messages from their buffers on access. holds the
+ * buffers, so they stay readable even if the cache releases them meanwhile.
+ */
+class EncodedMessageList extends AbstractList<ChatMessage>
+{
+	private final String chatId;
+	private final long[] addresses;
+	private final ByteBuffer[] buffers;
+
+	EncodedMessageList(String chatId, long[] addresses, ByteBuffer[] buffers)
+	{
+		this.chatId = chatId;
+		this.addresses = addresses;
+		this.buffers = buffers;
+	}
+
+	@Override
+	public ChatMessage get(int index)
+	{
+		return ChatMessageCodec.decode(this.chatId, this.buffers[index], EncodedChat.offset(this.addresses[index]));
+	}
+
+	@Override
+	public int size()
+	{
+		return this.addresses.length;
+	}
+}
@@ -0,0 +1,175 @@
+package talmal.contact.messageSender.services;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * small bounded map whose entries live for a fixed time, for the in-memory
+ * tables of the slack service (idempotency keys, missing chats, chat sync
+ * state). thread safe.
+ *
+ * entries are kept in order of their last write - or last use, in access
+ * order - and every entry lives ttl from then, so the eldest entry always
+ * expires first and expiry only looks at the head. a full map drops its eldest
+ * entries.
+ * @param <K> - key type
+ * @param <V> - value type
+ */
+public class ExpiringMap<K, V>
+{
+	private final long ttlNanos;
+	private final int maxEntries;
+	private final boolean isAccessOrder;
+
+	// guarded by this
+	private final LinkedHashMap<K, Node<V>> entries = new LinkedHashMap<K, Node<V>>();
+
+	/**
+	 * @param ttlNanos      - time an entry lives after its last write (or use),
+	 *                      0 keeps entries until they are dropped for room
+	 * @param maxEntries    - max entries
+	 * @param isAccessOrder - true if a read counts as a use - renews the entry
+	 *                      and moves it away from the eldest end
+	 */
+	public ExpiringMap(long ttlNanos, int maxEntries, boolean isAccessOrder)
+	{
+		this.ttlNanos = ttlNanos;
+		this.maxEntries = Math.max(1, maxEntries);
+		this.isAccessOrder = isAccessOrder;
+	}
+
+	/**
+	 * @param key - key
+	 * @param now - System.nanoTime()
+	 * @return value of key, or null if there is none or it expired
+	 */
+	public synchronized V get(K key, long now)
+	{
+		V result = null;
+		this.expire(now);
+
+		Node<V> node = this.entries.get(key);
+		if (node != null)
+		{
+			result = node.value;
+			if (this.isAccessOrder)
+			{
+				this.write(key, node.value, now);
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * add or replace value of key, it lives ttl from now
+	 * @param key   - key
+	 * @param value - value
+	 * @param now   - System.nanoTime()
+	 */
+	public synchronized void put(K key, V value, long now)
+	{
+		this.expire(now);
+		this.write(key, value, now);
+	}
+
+	/**
+	 * @param key   - key
+	 * @param value - value to add if key has none
+	 * @param now   - System.nanoTime()
+	 * @return current value of key, or null if value was added
+	 */
+	public synchronized V putIfAbsent(K key, V value, long now)
+	{
+		V result = this.get(key, now);
+		if (result == null)
+		{
+			this.write(key, value, now);
+		}
+
+		return result;
+	}
+
+	/**
+	 * @param key - key
+	 * @return removed value, or null
+	 */
+	public synchronized V remove(K key)
+	{
+		Node<V> node = this.entries.remove(key);
+		return (node != null) ? node.value : null;
+	}
+
+	/**
+	 * remove key only while it still has input value
+	 * @param key   - key
+	 * @param value - expected value
+	 */
+	public synchronized void remove(K key, V value)
+	{
+		Node<V> node = this.entries.get(key);
+		if (node != null && node.value == value)
+		{
+			this.entries.remove(key);
+		}
+	}
+
+	/**
+	 * @return number of entries, expired ones not yet dropped included
+	 */
+	public synchronized int size()
+	{
+		return this.entries.size();
+	}
+
+	/**
+	 * put key at the young end, and drop the eldest entries over max size
+	 */
+	private void write(K key, V value, long now)
+	{
+		this.entries.remove(key);
+		this.entries.put(key, new Node<V>(value, now + this.ttlNanos));
+
+		Iterator<Node<V>> eldest = this.entries.values().iterator();
+		while (this.entries.size() > this.maxEntries)
+		{
+			eldest.next();
+			eldest.remove();
+		}
+	}
+
+	/**
+	 * drop expired entries from the eldest end
+	 */
+	private void expire(long now)
+	{
+		if (this.ttlNanos > 0)
+		{
+			Iterator<Node<V>> iterator = this.entries.values().iterator();
+			boolean isDone = false;
+			while (!isDone && iterator.hasNext())
+			{
+				if (now - iterator.next().expiryTime >= 0)
+				{
+					iterator.remove();
+				}
+				else
+				{
+					isDone = true;
+				}
+			}
+		}
+	}
+
+	private static class Node<V>
+	{
+		private final V value;
+		private final long expiryTime;
+
+		private Node(V value, long expiryTime)
+		{
+			this.value = value;
+			this.expiryTime = expiryTime;
+		}
+	}
+}
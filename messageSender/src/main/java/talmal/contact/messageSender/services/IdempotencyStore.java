@@ -0,0 +1,113 @@
+package talmal.contact.messageSender.services;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * remembers the response of each idempotency key for a time window, so a
+ * repeated request (amqp redelivery, client retry after timeout) gets the
+ * original response instead of running again. a repeat that arrives while the
+ * original is still running shares its response. failed responses are not
+ * kept, so they can be retried.
+ *
+ * bounded - the oldest keys are dropped first when the store is full.
+ *
+ * in memory only - only retries that reach this same process within the window
+ * are deduplicated. keys are lost on restart, and are not shared between
+ * instances, so a retry after a restart (e.g. an amqp redelivery of a message
+ * that was sent before a crash) or a retry routed to another instance is sent
+ * again.
+ * @param <T> - response type
+ */
+public class IdempotencyStore<T>
+{
+	private final Predicate<T> isFailure;
+	private final LongAdder replays = new LongAdder();
+
+	// key to response, lives for the window from the first request
+	private final ExpiringMap<String, CompletableFuture<T>> entries;
+
+	/**
+	 * @param windowSeconds - time a response is kept
+	 * @param maxEntries    - max kept responses
+	 * @param isFailure     - responses not to keep
+	 */
+	public IdempotencyStore(long windowSeconds, int maxEntries, Predicate<T> isFailure)
+	{
+		this.entries = new ExpiringMap<String, CompletableFuture<T>>(TimeUnit.SECONDS.toNanos(windowSeconds), maxEntries, false);
+		this.isFailure = isFailure;
+	}
+
+	/**
+	 * run request once per key
+	 * @param key     - idempotency key, null runs the request without checks
+	 * @param request - runs the request
+	 * @return response of the first request with this key
+	 */
+	public CompletableFuture<T> execute(String key, Supplier<CompletableFuture<T>> request)
+	{
+		CompletableFuture<T> result = null;
+		if (key != null)
+		{
+			CompletableFuture<T> newResponse = new CompletableFuture<T>();
+			result = this.entries.putIfAbsent(key, newResponse, System.nanoTime());
+			if (result != null)
+			{
+				this.replays.increment();
+			}
+			else
+			{
+				result = newResponse;
+				try
+				{
+					request.get().whenComplete((response, e) ->
+					{
+						if (e != null || this.isFailure.test(response))
+						{
+							this.entries.remove(key, newResponse);
+						}
+
+						if (e != null)
+						{
+							newResponse.completeExceptionally(e);
+						}
+						else
+						{
+							newResponse.complete(response);
+						}
+					});
+				}
+				catch (RuntimeException e)
+				{
+					this.entries.remove(key, newResponse);
+					newResponse.completeExceptionally(e);
+				}
+			}
+		}
+		else
+		{
+			result = request.get();
+		}
+
+		return result;
+	}
+
+	/**
+	 * @return requests answered from the store
+	 */
+	public long getReplays()
+	{
+		return this.replays.sum();
+	}
+
+	/**
+	 * @return number of kept keys
+	 */
+	public int size()
+	{
+		return this.entries.size();
+	}
+}
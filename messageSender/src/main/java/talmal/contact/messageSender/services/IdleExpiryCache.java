@@ -0,0 +1,197 @@
+package talmal.contact.messageSender.services;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import lombok.extern.slf4j.Slf4j;
+import talmal.contact.messageSender.models.context.ChatMessage;
+
+/**
+ * cache wrapper that removes chats not read or written for an idle timeout -
+ * chats of clients that left without sending "close chat". every
+ * addMessage/getMessages moves the chat deadline on a timing wheel, a single
+ * background tick removes chats whose deadline passed.
+ */
+@Slf4j
+public class IdleExpiryCache implements CacheInterface
+{
+	// wheel turn covers 2 idle timeouts, so a touched deadline is never more than a turn away
+	private static final int IDLE_TIMEOUTS_PER_WHEEL_TURN = 2;
+
+	private final CacheInterface cache;
+	private final long idleTimeoutNanos;
+	private final TimingWheel<String> timingWheel;
+	private final ScheduledExecutorService ticker;
+
+	/**
+	 * @param cache        - cache to expire idle chats of
+	 * @param idleTimeout  - time a chat may stay idle
+	 * @param tickDuration - expiry resolution, chats expire late by up to a tick
+	 */
+	public IdleExpiryCache(CacheInterface cache, Duration idleTimeout, Duration tickDuration)
+	{
+		this.cache = cache;
+		this.idleTimeoutNanos = idleTimeout.toNanos();
+		long tickNanos = Math.max(1, tickDuration.toNanos());
+		int slotCount = (int) Math.min(1 << 16, Math.max(1, this.idleTimeoutNanos / tickNanos * IdleExpiryCache.IDLE_TIMEOUTS_PER_WHEEL_TURN));
+		this.timingWheel = new TimingWheel<String>(tickNanos, slotCount, System.nanoTime());
+
+		// chats already in cache (restored by a persistent cache) start idle now
+		this.cache.getChatIds().forEach(chatId -> this.touch(chatId));
+
+		this.ticker = Executors.newSingleThreadScheduledExecutor(runnable ->
+		{
+			Thread thread = new Thread(runnable, "cache-idle-expiry");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.ticker.scheduleAtFixedRate(() -> this.expireIdleChats(System.nanoTime()), tickNanos, tickNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * remove chats whose idle deadline passed
+	 * @param now - System.nanoTime() time
+	 * @return removed chat ids
+	 */
+	List<String> expireIdleChats(long now)
+	{
+		List<String> result = List.of();
+		try
+		{
+			// removed as part of the expiry, so a touch of the chat waits for it
+			result = this.timingWheel.advance(now, chatId ->
+			{
+				// chat may have been removed without this wrapper, or never added
+				if (this.cache.isChatExists(chatId))
+				{
+					this.cache.removeMessages(chatId);
+					this.cache.getStatistics().recordExpiration();
+				}
+			});
+
+			if (!result.isEmpty())
+			{
+				log.debug("expired idle chats: {}", result);
+			}
+		}
+		catch (RuntimeException e)
+		{
+			// keep ticking
+			log.error(e.getMessage(), e);
+		}
+
+		return result;
+	}
+
+	private void touch(String chatId)
+	{
+		this.timingWheel.schedule(chatId, System.nanoTime() + this.idleTimeoutNanos);
+	}
+
+	@Override
+	public List<ChatMessage> getMessages(String chatId)
+	{
+		List<ChatMessage> result = this.cache.getMessages(chatId);
+		if (result != null)
+		{
+			this.touch(chatId);
+		}
+
+		return result;
+	}
+
+	@Override
+	public boolean addMessage(ChatMessage message)
+	{
+		// move deadline before adding: an expiry that runs first removes the chat
+		// before the touch returns, a later one sees the moved deadline - so a
+		// tick never drops this message. a deadline of a chat that was not added
+		// expires as a no-op removal.
+		if (message != null && message.getChatId() != null)
+		{
+			this.touch(message.getChatId());
+		}
+
+		return this.cache.addMessage(message);
+	}
+
+	@Override
+	public boolean addMessages(List<ChatMessage> messages)
+	{
+		if (messages != null)
+		{
+			messages.stream().filter(message -> message != null && message.getChatId() != null).map(message -> message.getChatId()).distinct()
+				.forEach(chatId -> this.touch(chatId));
+		}
+
+		return this.cache.addMessages(messages);
+	}
+
+	@Override
+	public void removeMessages(String chatId)
+	{
+		this.cache.removeMessages(chatId);
+		this.timingWheel.cancel(chatId);
+	}
+
+	@Override
+	public boolean isChatExists(String chatId)
+	{
+		return this.cache.isChatExists(chatId);
+	}
+
+	@Override
+	public Set<String> getChatIds()
+	{
+		return this.cache.getChatIds();
+	}
+
+	@Override
+	public boolean isMemoryLimitReached()
+	{
+		return this.cache.isMemoryLimitReached();
+	}
+
+	@Override
+	public String removeOldest()
+	{
+		String result = this.cache.removeOldest();
+		if (result != null)
+		{
+			this.timingWheel.cancel(result);
+		}
+
+		return result;
+	}
+
+	@Override
+	public List<String> evictUntilUnderMemoryLimit()
+	{
+		List<String> result = this.cache.evictUntilUnderMemoryLimit();
+		result.forEach(chatId -> this.timingWheel.cancel(chatId));
+		return result;
+	}
+
+	@Override
+	public CacheStatistics getStatistics()
+	{
+		return this.cache.getStatistics();
+	}
+
+	@Override
+	public void close()
+	{
+		this.ticker.shutdownNow();
+		this.cache.close();
+	}
+
+	@Override
+	public String toString()
+	{
+		return this.cache.toString();
+	}
+}
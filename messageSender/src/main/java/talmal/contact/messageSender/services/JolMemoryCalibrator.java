@@ -0,0 +1,71 @@
+package talmal.contact.messageSender.services;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.openjdk.jol.info.ClassLayout;
+import org.openjdk.jol.info.GraphLayout;
+import org.openjdk.jol.vm.VM;
+
+/**
+ * calibration / debug helper - the only class using jol-core. jol-core is a
+ * provided dependency, so this class is loaded only when
+ * services.cache.calibrateMemory is on, and jol-core must be on the class path
+ * then.
+ */
+public class JolMemoryCalibrator
+{
+	/**
+	 * measure object layouts of the running jvm
+	 * @return estimator using measured sizes
+	 */
+	public static CacheMemoryEstimator createEstimator()
+	{
+		int objectAlignment = VM.current().objectAlignment();
+		int arrayHeaderSize = VM.current().arrayHeaderSize();
+		int referenceSize = (int) ((VM.current().sizeOf(new Object[4]) - VM.current().sizeOf(new Object[2])) / 2);
+
+		// fixed cost of a cached chat: map node, table slot (x2 for load factor),
+		// holder object, message list and its lock, message id set and its table
+		long chatEntrySize = JolMemoryCalibrator.instanceSize(JolMemoryCalibrator.mapNodeClass()) 
+			+ 2 * referenceSize 
+			+ JolMemoryCalibrator.instanceSize(CacheService.CachedChat.class)
+			+ JolMemoryCalibrator.instanceSize(CopyOnWriteArrayList.class) 
+			+ JolMemoryCalibrator.instanceSize(Object.class)
+			+ JolMemoryCalibrator.instanceSize(MessageIdSet.class)
+			+ VM.current().sizeOf(new MessageIdSet().getTable());
+
+		return new CacheMemoryEstimator(objectAlignment, arrayHeaderSize, referenceSize, JolMemoryCalibrator.instanceSize(String.class),
+			JolMemoryCalibrator.instanceSize(CompactChatMessage.class), chatEntrySize);
+	}
+
+	/**
+	 * walk input object graph and measure its actual size (slow, for debug only)
+	 * @param root - object to measure
+	 * @return total size in bytes
+	 */
+	public static long measure(Object root)
+	{
+		return GraphLayout.parseInstance(root).totalSize();
+	}
+
+	private static long instanceSize(Class<?> type)
+	{
+		return ClassLayout.parseClass(type).instanceSize();
+	}
+
+	private static Class<?> mapNodeClass()
+	{
+		Class<?> result = Object.class;
+		for (Class<?> inner : ConcurrentHashMap.class.getDeclaredClasses())
+		{
+			if (inner.getSimpleName().equals("Node"))
+			{
+				result = inner;
+				break;
+			}
+		}
+
+		return result;
+	}
+}
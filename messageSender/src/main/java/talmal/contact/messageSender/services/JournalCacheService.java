@@ -0,0 +1,916 @@
+package talmal.contact.messageSender.services;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+
+import lombok.extern.slf4j.Slf4j;
+import talmal.contact.messageSender.models.context.ChatMessage;
+import talmal.contact.messageSender.services.eviction.EvictionPolicy;
+import talmal.contact.messageSender.services.eviction.EvictionPolicyType;
+
+/**
+ * persistent cache - an append only journal of memory mapped segment files, so
+ * cached chats survive restarts. the heap keeps only an index of chat id to
+ * record addresses (segment id, offset), messages are decoded lazily from the
+ * mapped segments.
+ * 
+ * record layout: [int record length][int crc32][byte type][short chat id
+ * length][chat id utf-8][payload]. crc covers everything after itself.
+ * <ul>
+ * <li>ADD - payload is one ChatMessageCodec record</li>
+ * <li>REMOVE - no payload, chat was closed / evicted</li>
+ * <li>SNAPSHOT - payload is [int count][ChatMessageCodec records], replaces all
+ * earlier records of the chat (written by compaction)</li>
+ * </ul>
+ * on startup segments are replayed in order to rebuild the index. a zero record
+ * length marks the end of written data, a record with a bad length or crc (torn
+ * write on crash) ends the replay of its segment, and the segment tail is
+ * cleared.
+ * 
+ * compaction runs in the background on every sealed segment whose live bytes
+ * drop under services.cache.journal.compactionLiveRatio: every live chat in it
+ * is rewritten as a SNAPSHOT at the journal head and the segment file is
+ * deleted. so one long lived chat in an old segment does not hold back newer
+ * dead segments. a REMOVE record of a deleted segment is carried to the head
+ * while an older segment still has records of its chat, so a closed chat is
+ * never resurrected.
+ */
+@Slf4j
+@Lazy
+@Component(value = "journal")
+public class JournalCacheService implements CacheInterface
+{
+	private static final long BYTES_IN_MB = 1000000;
+	private static final int BYTES_IN_KB = 1024;
+	private static final String SEGMENT_FILE_PREFIX = "segment-";
+	private static final String SEGMENT_FILE_SUFFIX = ".journal";
+	private static final String SEGMENT_FILE_FORMAT = JournalCacheService.SEGMENT_FILE_PREFIX + "%010d" + JournalCacheService.SEGMENT_FILE_SUFFIX;
+
+	private static final byte RECORD_TYPE_ADD = 1;
+	private static final byte RECORD_TYPE_REMOVE = 2;
+	private static final byte RECORD_TYPE_SNAPSHOT = 3;
+
+	// record length + crc
+	private static final int CRC_START = Integer.BYTES * 2;
+	// record length + crc + type + chat id length
+	private static final int RECORD_HEADER_SIZE = JournalCacheService.CRC_START + Byte.BYTES + Short.BYTES;
+
+	private final boolean isActive;
+	private final int cacheMaxMemoryInMb;
+	private final Path directory;
+	private final int segmentSize;
+	private final double compactionLiveRatio;
+	private final EvictionPolicy evictionPolicy;
+	private final CacheStatistics statistics;
+
+	private final Map<String, EncodedChat> openChats;
+	private final ConcurrentSkipListMap<Integer, Segment> segments;
+	private final AtomicLong liveBytes;
+	private ScheduledExecutorService maintenanceExecutor;
+
+	// written under writeLock
+	private final Object writeLock = new Object();
+	private volatile Segment currentSegment;
+	private int nextSegmentId;
+
+	public JournalCacheService(@Value(value = "${services.cache.isActive:true}") boolean isActive, @Value(value = "${services.cache.maxMemory:10}") int cacheMaxMemoryInMb,
+		@Value(value = "${services.cache.evictionPolicy:OLDEST}") EvictionPolicyType evictionPolicyType,
+		@Value(value = "${services.cache.journal.directory:chat-journal}") String directory,
+		@Value(value = "${services.cache.journal.segmentSizeInKb:16384}") int segmentSizeInKb,
+		@Value(value = "${services.cache.journal.compactionLiveRatio:0.5}") double compactionLiveRatio,
+		@Value(value = "${services.cache.journal.maintenanceIntervalInSeconds:10}") int maintenanceIntervalInSeconds) throws IOException
+	{
+		this.isActive = isActive;
+		this.cacheMaxMemoryInMb = cacheMaxMemoryInMb;
+		this.directory = Paths.get(directory);
+		this.segmentSize = segmentSizeInKb * JournalCacheService.BYTES_IN_KB;
+		this.compactionLiveRatio = compactionLiveRatio;
+		this.evictionPolicy = evictionPolicyType.create();
+		this.statistics = new CacheStatistics();
+		this.openChats = new ConcurrentHashMap<String, EncodedChat>();
+		this.segments = new ConcurrentSkipListMap<Integer, Segment>();
+		this.liveBytes = new AtomicLong();
+
+		if (isActive)
+		{
+			long start = System.currentTimeMillis();
+			this.recover();
+			log.info("journal {} recovered {} chats from {} segments in {} ms", this.directory.toAbsolutePath(), this.openChats.size(), this.segments.size(),
+				System.currentTimeMillis() - start);
+
+			// background flush to disk and compaction, 0 disables (call flush() / compact() manually)
+			if (maintenanceIntervalInSeconds > 0)
+			{
+				this.maintenanceExecutor = Executors.newSingleThreadScheduledExecutor(runnable ->
+				{
+					Thread thread = new Thread(runnable, "chat-journal-maintenance");
+					thread.setDaemon(true);
+					return thread;
+				});
+				this.maintenanceExecutor.scheduleWithFixedDelay(this::maintain, maintenanceIntervalInSeconds, maintenanceIntervalInSeconds, TimeUnit.SECONDS);
+			}
+		}
+	}
+
+	@Override
+	public List<ChatMessage> getMessages(String chatId)
+	{
+		List<ChatMessage> result = null;
+		if (this.isActive && chatId != null)
+		{
+			result = this.snapshot(chatId);
+			if (result != null)
+			{
+				this.evictionPolicy.onAccess(chatId);
+				this.statistics.recordHit();
+			}
+			else
+			{
+				this.statistics.recordMiss();
+			}
+		}
+
+		return result;
+	}
+
+	@Override
+	public boolean isChatExists(String chatId)
+	{
+		boolean result = false;
+		if (this.isActive && chatId != null)
+		{
+			result = this.openChats.containsKey(chatId);
+		}
+
+		return result;
+	}
+
+	@Override
+	public Set<String> getChatIds()
+	{
+		Set<String> result = null;
+		if (this.isActive)
+		{
+			result = this.openChats.keySet();
+		}
+
+		return result;
+	}
+
+	@Override
+	public boolean addMessage(ChatMessage message)
+	{
+		boolean result = false;
+		if (this.isActive && message != null && message.getChatId() != null)
+		{
+			result = this.append(message);
+		}
+
+		return result;
+	}
+
+	@Override
+	public boolean addMessages(List<ChatMessage> messages)
+	{
+		boolean result = false;
+
+		if (this.isActive && messages != null && !messages.isEmpty())
+		{
+			for (ChatMessage message : messages)
+			{
+				if (message != null && message.getChatId() != null)
+				{
+					result |= this.append(message);
+				}
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * write an ADD record and index it, inside compute() on the chat entry so it
+	 * can not race with removal or compaction of the same chat. messages already
+	 * in the chat (same message id) are not written.
+	 * @param message - message with a non null chat id
+	 * @return true if message was added, false if it is a duplicate
+	 */
+	private boolean append(ChatMessage message)
+	{
+		boolean[] isAdded = { false };
+		byte[] record = ChatMessageCodec.encode(message);
+		this.openChats.compute(message.getChatId(), (chatId, chat) ->
+		{
+			if (chat != null && chat.isDuplicate(message.getMessageId()))
+			{
+				this.evictionPolicy.onAccess(chatId);
+			}
+			else
+			{
+				long address = this.writeRecord(JournalCacheService.RECORD_TYPE_ADD, chatId, List.of(record));
+				chat = this.index(chatId, chat, address, record.length, message.getMessageId());
+				isAdded[0] = true;
+			}
+			return chat;
+		});
+
+		return isAdded[0];
+	}
+
+	/**
+	 * add a written message record to the chat index
+	 * @return chat entry (created if input chat is null)
+	 */
+	private EncodedChat index(String chatId, EncodedChat chat, long address, int recordLength, String messageId)
+	{
+		if (chat == null)
+		{
+			chat = new EncodedChat();
+			chat.isDuplicate(messageId);
+			this.evictionPolicy.onAdd(chatId);
+		}
+		else
+		{
+			this.evictionPolicy.onAccess(chatId);
+		}
+
+		chat.add(address, recordLength, messageId);
+		this.segments.get(EncodedChat.bufferId(address)).liveBytes.addAndGet(recordLength);
+		this.liveBytes.addAndGet(recordLength);
+
+		return chat;
+	}
+
+	/**
+	 * mark chat records as dead
+	 * @param chat - removed or replaced chat
+	 */
+	private void unindex(EncodedChat chat)
+	{
+		for (long address : chat.getAddresses())
+		{
+			Segment segment = this.segments.get(EncodedChat.bufferId(address));
+			segment.liveBytes.addAndGet(-ChatMessageCodec.recordLength(segment.buffer, EncodedChat.offset(address)));
+		}
+
+		this.liveBytes.addAndGet(-chat.getSizeInBytes());
+	}
+
+	/**
+	 * append a record to the journal head, start a new segment when it is full
+	 * @param type     - record type
+	 * @param chatId   - chat the record belongs to
+	 * @param payloads - payload parts, written one after the other
+	 * @return address of the payload in the journal
+	 */
+	private long writeRecord(byte type, String chatId, List<byte[]> payloads)
+	{
+		byte[] chatIdBytes = chatId.getBytes(StandardCharsets.UTF_8);
+		int length = JournalCacheService.RECORD_HEADER_SIZE + chatIdBytes.length;
+		for (byte[] payload : payloads)
+		{
+			length += payload.length;
+		}
+
+		synchronized (this.writeLock)
+		{
+			if (this.currentSegment.position + length > this.currentSegment.buffer.capacity())
+			{
+				this.rollSegment(length);
+			}
+
+			Segment segment = this.currentSegment;
+			int offset = segment.position;
+			ByteBuffer view = segment.buffer.duplicate();
+			view.position(offset + JournalCacheService.CRC_START);
+			view.put(type);
+			view.putShort((short) chatIdBytes.length);
+			view.put(chatIdBytes);
+			int payloadOffset = view.position();
+			for (byte[] payload : payloads)
+			{
+				view.put(payload);
+			}
+
+			// length goes last - a torn record is either all zeros or fails the crc
+			segment.buffer.putInt(offset + Integer.BYTES, JournalCacheService.crc(segment.buffer, offset, length));
+			segment.buffer.putInt(offset, length);
+			segment.position += length;
+
+			return EncodedChat.address(segment.id, payloadOffset);
+		}
+	}
+
+	/**
+	 * seal current segment and open a new one (called under writeLock)
+	 * @param recordLength - length of the record to fit in the new segment
+	 */
+	private void rollSegment(int recordLength)
+	{
+		try
+		{
+			if (this.currentSegment != null)
+			{
+				this.currentSegment.buffer.force();
+			}
+
+			Segment segment = this.openSegment(this.nextSegmentId++, Math.max(this.segmentSize, recordLength));
+			this.segments.put(segment.id, segment);
+			this.currentSegment = segment;
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException("can not open journal segment in " + this.directory.toAbsolutePath(), e);
+		}
+	}
+
+	private Segment openSegment(int id, int size) throws IOException
+	{
+		Path path = this.directory.resolve(String.format(JournalCacheService.SEGMENT_FILE_FORMAT, id));
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE))
+		{
+			// mapping stays valid after the channel is closed
+			return new Segment(id, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, channel.size())));
+		}
+	}
+
+	/**
+	 * rebuild the index from the segment files
+	 */
+	private void recover() throws IOException
+	{
+		Files.createDirectories(this.directory);
+
+		List<Path> files = new ArrayList<Path>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.directory, JournalCacheService.SEGMENT_FILE_PREFIX + "*" + JournalCacheService.SEGMENT_FILE_SUFFIX))
+		{
+			stream.forEach(files::add);
+		}
+		// zero padded ids - name order is id order
+		files.sort(null);
+
+		for (Path file : files)
+		{
+			String name = file.getFileName().toString();
+			int id = Integer.parseInt(name.substring(JournalCacheService.SEGMENT_FILE_PREFIX.length(), name.length() - JournalCacheService.SEGMENT_FILE_SUFFIX.length()));
+			Segment segment = this.openSegment(id, (int) Files.size(file));
+			this.segments.put(id, segment);
+			this.replay(segment);
+			this.currentSegment = segment;
+			this.nextSegmentId = id + 1;
+		}
+
+		if (this.currentSegment == null)
+		{
+			this.rollSegment(0);
+		}
+	}
+
+	/**
+	 * apply segment records to the index, in write order
+	 * @param segment
+	 */
+	private void replay(Segment segment)
+	{
+		ByteBuffer buffer = segment.buffer;
+		int position = 0;
+		boolean isEnd = false;
+		while (!isEnd && position + JournalCacheService.RECORD_HEADER_SIZE <= buffer.capacity())
+		{
+			int length = buffer.getInt(position);
+			if (length == 0)
+			{
+				// end of written data
+				isEnd = true;
+			}
+			else if (length < JournalCacheService.RECORD_HEADER_SIZE || position + length > buffer.capacity()
+				|| buffer.getInt(position + Integer.BYTES) != JournalCacheService.crc(buffer, position, length))
+			{
+				log.warn("journal segment {} has a corrupted record at {}, ignoring the rest of it", segment.path, position);
+				for (int i = position; i < buffer.capacity(); i++)
+				{
+					buffer.put(i, (byte) 0);
+				}
+				isEnd = true;
+			}
+			else
+			{
+				this.replayRecord(segment, position);
+				position += length;
+			}
+		}
+
+		segment.position = position;
+	}
+
+	private void replayRecord(Segment segment, int position)
+	{
+		ByteBuffer view = segment.buffer.duplicate();
+		view.position(position + JournalCacheService.CRC_START);
+		byte type = view.get();
+		byte[] chatIdBytes = new byte[view.getShort()];
+		view.get(chatIdBytes);
+		String chatId = new String(chatIdBytes, StandardCharsets.UTF_8);
+
+		switch (type)
+		{
+			case JournalCacheService.RECORD_TYPE_ADD:
+			{
+				this.replayMessages(segment, chatId, view.position(), 1);
+				break;
+			}
+			case JournalCacheService.RECORD_TYPE_REMOVE:
+			{
+				this.replayRemove(chatId);
+				break;
+			}
+			case JournalCacheService.RECORD_TYPE_SNAPSHOT:
+			{
+				this.replayRemove(chatId);
+				int count = view.getInt();
+				this.replayMessages(segment, chatId, view.position(), count);
+				break;
+			}
+			default:
+			{
+				log.error("unknown journal record type {} in segment {} at {}", type, segment.path, position);
+				break;
+			}
+		}
+	}
+
+	private void replayMessages(Segment segment, String chatId, int offset, int count)
+	{
+		int recordOffset = offset;
+		for (int i = 0; i < count; i++)
+		{
+			int recordLength = ChatMessageCodec.recordLength(segment.buffer, recordOffset);
+			long address = EncodedChat.address(segment.id, recordOffset);
+			String messageId = ChatMessageCodec.messageId(segment.buffer, recordOffset);
+			this.openChats.compute(chatId, (key, chat) -> 
+			{
+				// duplicates are never written, skip them anyway
+				if (chat == null || !chat.isDuplicate(messageId))
+				{
+					chat = this.index(key, chat, address, recordLength, messageId);
+				}
+				return chat;
+			});
+			recordOffset += recordLength;
+		}
+	}
+
+	private void replayRemove(String chatId)
+	{
+		EncodedChat chat = this.openChats.remove(chatId);
+		if (chat != null)
+		{
+			this.evictionPolicy.onRemove(chatId);
+			this.unindex(chat);
+		}
+	}
+
+	/**
+	 * @return lazily decoded list of chat messages at the time of the call, or null
+	 *         if chat is not cached
+	 */
+	private List<ChatMessage> snapshot(String chatId)
+	{
+		List<ChatMessage> result = null;
+
+		// retry once if compaction moved the chat and deleted its segment meanwhile
+		for (int attempt = 0; attempt < 2 && result == null; attempt++)
+		{
+			EncodedChat chat = this.openChats.get(chatId);
+			if (chat == null)
+			{
+				break;
+			}
+
+			long[] addresses = chat.getAddresses();
+			ByteBuffer[] buffers = new ByteBuffer[addresses.length];
+			boolean isMoved = false;
+			for (int i = 0; i < addresses.length && !isMoved; i++)
+			{
+				Segment segment = this.segments.get(EncodedChat.bufferId(addresses[i]));
+				if (segment != null)
+				{
+					buffers[i] = segment.buffer;
+				}
+				else
+				{
+					isMoved = true;
+				}
+			}
+
+			if (!isMoved)
+			{
+				result = new EncodedMessageList(chatId, addresses, buffers);
+			}
+		}
+
+		return result;
+	}
+
+	@Override
+	public void removeMessages(String chatId)
+	{
+		if (this.isActive && chatId != null)
+		{
+			this.remove(chatId);
+		}
+	}
+
+	/**
+	 * write a REMOVE record and drop chat from the index
+	 * @param chatId
+	 * @return true if chat was removed
+	 */
+	private boolean remove(String chatId)
+	{
+		boolean[] isRemoved = { false };
+		this.openChats.computeIfPresent(chatId, (key, chat) ->
+		{
+			this.writeRecord(JournalCacheService.RECORD_TYPE_REMOVE, chatId, List.of());
+			this.evictionPolicy.onRemove(chatId);
+			this.unindex(chat);
+			isRemoved[0] = true;
+			return null;
+		});
+
+		return isRemoved[0];
+	}
+
+	@Override
+	public String removeOldest()
+	{
+		String result = null;
+
+		if (this.isActive)
+		{
+			// let the eviction policy choose.
+			// retry if the chat was removed by another thread meanwhile
+			String victim;
+			while (result == null && (victim = this.evictionPolicy.nextVictim()) != null)
+			{
+				if (this.remove(victim))
+				{
+					result = victim;
+					this.statistics.recordEviction();
+				}
+			}
+		}
+
+		return result;
+	}
+
+	@Override
+	public List<String> evictUntilUnderMemoryLimit()
+	{
+		List<String> result = new ArrayList<String>();
+
+		if (this.isActive)
+		{
+			String removedChatId;
+			while (this.isMemoryLimitReached() && (removedChatId = this.removeOldest()) != null)
+			{
+				result.add(removedChatId);
+			}
+		}
+
+		return result;
+	}
+
+	@Override
+	public boolean isMemoryLimitReached()
+	{
+		boolean result = false;
+		if (this.isActive)
+		{
+			result = this.cacheMaxMemoryInMb <= (this.liveBytes.get() / JournalCacheService.BYTES_IN_MB);
+		}
+
+		return result;
+	}
+
+	@Override
+	public CacheStatistics getStatistics()
+	{
+		return this.statistics;
+	}
+
+	/**
+	 * @return bytes of cached message records
+	 */
+	public long getSizeInBytes()
+	{
+		return this.liveBytes.get();
+	}
+
+	/**
+	 * @return number of segment files
+	 */
+	public int getSegmentCount()
+	{
+		return this.segments.size();
+	}
+
+	private void maintain()
+	{
+		try
+		{
+			this.flush();
+			this.compact();
+		}
+		catch (RuntimeException e)
+		{
+			log.error("journal maintenance failed: {}", e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * force written records of the current segment to disk
+	 */
+	public void flush()
+	{
+		synchronized (this.writeLock)
+		{
+			this.currentSegment.buffer.force();
+		}
+	}
+
+	/**
+	 * compact sealed segments whose live bytes ratio is under
+	 * services.cache.journal.compactionLiveRatio - move their live chats to the
+	 * journal head, then delete them
+	 */
+	public void compact()
+	{
+		// chats with records in older segments that stay - their REMOVE records must survive
+		Set<String> olderChatIds = new HashSet<String>();
+		for (Segment segment : List.copyOf(this.segments.values()))
+		{
+			if (segment == this.currentSegment)
+			{
+				break;
+			}
+
+			if (segment.liveBytes.get() <= segment.position * this.compactionLiveRatio)
+			{
+				int movedChats = 0;
+				for (String chatId : this.chatIdsIn(segment, false))
+				{
+					if (this.relocate(chatId, segment.id))
+					{
+						movedChats++;
+					}
+				}
+
+				for (String chatId : this.chatIdsIn(segment, true))
+				{
+					if (olderChatIds.contains(chatId))
+					{
+						this.carryRemove(chatId);
+					}
+				}
+
+				// moved records must be on disk before their old copies are deleted
+				this.flush();
+				this.segments.remove(segment.id);
+				try
+				{
+					Files.deleteIfExists(segment.path);
+				}
+				catch (IOException e)
+				{
+					log.error("can not delete compacted journal segment {}: {}", segment.path, e.getMessage(), e);
+				}
+				log.debug("compacted journal segment {}, moved {} chats", segment.path, movedChats);
+			}
+			else
+			{
+				olderChatIds.addAll(this.chatIdsIn(segment, false));
+			}
+		}
+	}
+
+	/**
+	 * @param isRemove - true for ids of chats with REMOVE records, false for ids
+	 *                 of chats with message records
+	 * @return ids of chats with records of the requested kind in segment
+	 */
+	private Set<String> chatIdsIn(Segment segment, boolean isRemove)
+	{
+		Set<String> result = new HashSet<String>();
+		ByteBuffer view = segment.buffer.duplicate();
+		int position = 0;
+		while (position < segment.position)
+		{
+			int length = view.getInt(position);
+			view.position(position + JournalCacheService.CRC_START);
+			byte type = view.get();
+			byte[] chatIdBytes = new byte[view.getShort()];
+			view.get(chatIdBytes);
+			if ((type == JournalCacheService.RECORD_TYPE_REMOVE) == isRemove)
+			{
+				result.add(new String(chatIdBytes, StandardCharsets.UTF_8));
+			}
+
+			position += length;
+		}
+
+		return result;
+	}
+
+	/**
+	 * keep a REMOVE record of a compacted segment in effect - write it again at
+	 * the journal head if chat is still closed, or rewrite chat as a SNAPSHOT
+	 * (which replaces all its earlier records) if it was opened again since
+	 * @param chatId - chat removed in the compacted segment
+	 */
+	private void carryRemove(String chatId)
+	{
+		this.openChats.compute(chatId, (key, chat) ->
+		{
+			EncodedChat result = chat;
+			if (chat == null)
+			{
+				this.writeRecord(JournalCacheService.RECORD_TYPE_REMOVE, chatId, List.of());
+			}
+			else
+			{
+				result = this.writeSnapshot(chatId, chat);
+			}
+			return result;
+		});
+	}
+
+	/**
+	 * rewrite chat as a single SNAPSHOT record at the journal head, if it has
+	 * records in input segment
+	 * @return true if chat was moved
+	 */
+	private boolean relocate(String chatId, int segmentId)
+	{
+		boolean[] isMoved = { false };
+		this.openChats.computeIfPresent(chatId, (key, chat) ->
+		{
+			EncodedChat result = chat;
+			long[] addresses = chat.getAddresses();
+			boolean isInSegment = false;
+			for (long address : addresses)
+			{
+				isInSegment |= EncodedChat.bufferId(address) == segmentId;
+			}
+
+			if (isInSegment)
+			{
+				result = this.writeSnapshot(chatId, chat);
+				isMoved[0] = true;
+			}
+
+			return result;
+		});
+
+		return isMoved[0];
+	}
+
+	/**
+	 * write chat as a single SNAPSHOT record at the journal head, and index it
+	 * there (called inside compute() on the chat entry)
+	 * @return new chat entry
+	 */
+	private EncodedChat writeSnapshot(String chatId, EncodedChat chat)
+	{
+		long[] addresses = chat.getAddresses();
+		// copy message records as they are, after a message count
+		List<byte[]> payloads = new ArrayList<byte[]>();
+		payloads.add(ByteBuffer.allocate(Integer.BYTES).putInt(addresses.length).array());
+		for (long address : addresses)
+		{
+			ByteBuffer buffer = this.segments.get(EncodedChat.bufferId(address)).buffer;
+			byte[] record = new byte[ChatMessageCodec.recordLength(buffer, EncodedChat.offset(address))];
+			buffer.get(EncodedChat.offset(address), record);
+			payloads.add(record);
+		}
+
+		long address = this.writeRecord(JournalCacheService.RECORD_TYPE_SNAPSHOT, chatId, payloads);
+
+		this.unindex(chat);
+		EncodedChat result = new EncodedChat();
+		Segment head = this.segments.get(EncodedChat.bufferId(address));
+		int recordOffset = EncodedChat.offset(address) + Integer.BYTES;
+		for (int i = 1; i < payloads.size(); i++)
+		{
+			int recordLength = payloads.get(i).length;
+			String messageId = ChatMessageCodec.messageId(head.buffer, recordOffset);
+			result.isDuplicate(messageId);
+			result.add(EncodedChat.address(head.id, recordOffset), recordLength, messageId);
+			head.liveBytes.addAndGet(recordLength);
+			this.liveBytes.addAndGet(recordLength);
+			recordOffset += recordLength;
+		}
+
+		return result;
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder builder = new StringBuilder();
+
+		if (this.isActive)
+		{
+			for (String chatId : this.openChats.keySet())
+			{
+				builder.append(chatId);
+				builder.append(System.lineSeparator());
+				List<ChatMessage> messages = this.snapshot(chatId);
+				if (messages != null)
+				{
+					for (ChatMessage message : messages)
+					{
+						builder.append(message);
+						builder.append(System.lineSeparator());
+					}
+				}
+
+				builder.append(System.lineSeparator());
+				builder.append(System.lineSeparator());
+			}
+		}
+
+		return builder.toString();
+	}
+
+	@Override
+	public void close()
+	{
+		if (this.isActive)
+		{
+			if (this.maintenanceExecutor != null)
+			{
+				this.maintenanceExecutor.shutdownNow();
+			}
+
+			this.flush();
+			log.info("journal {} closed with {} chats, {} live bytes in {} segments", this.directory.toAbsolutePath(), this.openChats.size(), this.liveBytes.get(),
+				this.segments.size());
+		}
+	}
+
+	private static int crc(ByteBuffer buffer, int offset, int length)
+	{
+		CRC32 crc = new CRC32();
+		ByteBuffer view = buffer.duplicate();
+		view.limit(offset + length);
+		view.position(offset + JournalCacheService.CRC_START);
+		crc.update(view);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * memory mapped journal file
+	 */
+	private static class Segment
+	{
+		private final int id;
+		private final Path path;
+		private final MappedByteBuffer buffer;
+		// bytes of message records still referenced by the index
+		private final AtomicLong liveBytes = new AtomicLong();
+		// end of written data, guarded by writeLock
+		private volatile int position;
+
+		Segment(int id, Path path, MappedByteBuffer buffer)
+		{
+			this.id = id;
+			this.path = path;
+			this.buffer = buffer;
+		}
+	}
+}
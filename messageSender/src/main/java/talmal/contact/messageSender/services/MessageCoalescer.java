@@ -0,0 +1,212 @@
+package talmal.contact.messageSender.services;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import talmal.contact.messageSender.models.context.ChatMessage;
+import talmal.contact.messageSender.models.context.MessageIdFlag;
+
+/**
+ * merges messages a sender types in quick succession into a single slack post,
+ * to save slack's ~1 message per second channel budget. the first message of a
+ * chat opens a batch, consecutive messages of the same sender that arrive
+ * within a window join it. the batch waits on a timer, not in the chat send
+ * lane, and is queued in the lane when its window closes. a message from
+ * another sender, or any message of the chat that is not coalesced (see
+ * seal()), queues the open batch at once, before itself, so order is kept.
+ *
+ * every merged message gets its own response - the original text with the
+ * message id (slack ts) of the combined post.
+ */
+public class MessageCoalescer
+{
+	private static final String MESSAGE_SEPARATOR = "\n";
+
+	private final long windowMillis;
+	private final int maxMessages;
+	private final Function<ChatMessage, CompletableFuture<ChatMessage>> sender;
+
+	// open batch per chat id
+	private final Map<String, Batch> batches = new ConcurrentHashMap<String, Batch>();
+
+	/**
+	 * @param windowMillis - time a batch waits for more messages
+	 * @param maxMessages  - max messages merged into a single post
+	 * @param sender       - sends a message to slack, never fails (errors are
+	 *                     returned as error messages)
+	 */
+	public MessageCoalescer(long windowMillis, int maxMessages, Function<ChatMessage, CompletableFuture<ChatMessage>> sender)
+	{
+		this.windowMillis = windowMillis;
+		this.maxMessages = Math.max(1, maxMessages);
+		this.sender = sender;
+	}
+
+	/**
+	 * add message to the open batch of its chat, or open a new batch
+	 * @param message    - message with a chat id
+	 * @param laneSubmit - queues a batch send task (in the chat send lane)
+	 * @return response of input message, or the lane rejection
+	 */
+	public CompletableFuture<ChatMessage> send(ChatMessage message, Function<Supplier<CompletableFuture<ChatMessage>>, CompletableFuture<ChatMessage>> laneSubmit)
+	{
+		CompletableFuture<ChatMessage> result = new CompletableFuture<ChatMessage>();
+		Batch[] sealedBatch = { null };
+		Batch[] newBatch = { null };
+		this.batches.compute(message.getChatId(), (chatId, batch) ->
+		{
+			if (batch != null && batch.messages.size() < this.maxMessages && Objects.equals(batch.name, message.getName()))
+			{
+				batch.add(message, result);
+			}
+			else
+			{
+				// the replaced batch takes no more messages
+				sealedBatch[0] = batch;
+
+				batch = new Batch(message, result, laneSubmit);
+				newBatch[0] = batch;
+			}
+
+			return batch;
+		});
+
+		if (sealedBatch[0] != null)
+		{
+			this.submit(sealedBatch[0]);
+		}
+
+		if (newBatch[0] != null)
+		{
+			Batch batch = newBatch[0];
+			CompletableFuture.runAsync(() -> this.close(batch), CompletableFuture.delayedExecutor(this.windowMillis, TimeUnit.MILLISECONDS));
+		}
+
+		return result;
+	}
+
+	/**
+	 * queue the open batch of chat in its send lane now. call before queueing a
+	 * message of the chat that is not coalesced, so it is sent after the batch.
+	 * @param chatId - chat id
+	 */
+	public void seal(String chatId)
+	{
+		Batch batch = this.batches.remove(chatId);
+		if (batch != null)
+		{
+			this.submit(batch);
+		}
+	}
+
+	/**
+	 * window of batch is over - stop it from taking messages, and queue it
+	 */
+	private void close(Batch batch)
+	{
+		this.batches.remove(batch.chatId, batch);
+		this.submit(batch);
+	}
+
+	/**
+	 * queue a sealed batch in its send lane, once. the timer and a sealing
+	 * message may both get here - the lock keeps a message that sealed the batch
+	 * queued after it.
+	 */
+	private void submit(Batch batch)
+	{
+		synchronized (batch)
+		{
+			if (!batch.isSubmitted)
+			{
+				batch.isSubmitted = true;
+				batch.laneSubmit.apply(() -> this.sender.apply(batch.combine()).thenApply(response ->
+				{
+					batch.complete(response);
+					return response;
+				})).whenComplete((response, e) ->
+				{
+					// the sender does not fail, so this is a lane rejection
+					if (e != null)
+					{
+						batch.responses.forEach(batchResponse -> batchResponse.completeExceptionally(e));
+					}
+				});
+			}
+		}
+	}
+
+	/**
+	 * messages to send as one post. messages are added only inside compute() on
+	 * its chat entry, while it is the open batch of its chat - once it is removed
+	 * from the map its message list does not change.
+	 */
+	private static class Batch
+	{
+		private final String chatId;
+		private final String name;
+		private final Function<Supplier<CompletableFuture<ChatMessage>>, CompletableFuture<ChatMessage>> laneSubmit;
+		private final List<ChatMessage> messages = new ArrayList<ChatMessage>();
+		private final List<CompletableFuture<ChatMessage>> responses = new ArrayList<CompletableFuture<ChatMessage>>();
+		private boolean isSubmitted;
+
+		private Batch(ChatMessage message, CompletableFuture<ChatMessage> response, Function<Supplier<CompletableFuture<ChatMessage>>, CompletableFuture<ChatMessage>> laneSubmit)
+		{
+			this.chatId = message.getChatId();
+			this.name = message.getName();
+			this.laneSubmit = laneSubmit;
+			this.add(message, response);
+		}
+
+		private void add(ChatMessage message, CompletableFuture<ChatMessage> response)
+		{
+			this.messages.add(message);
+			this.responses.add(response);
+		}
+
+		/**
+		 * @return single message holding the text of all batch messages
+		 */
+		private ChatMessage combine()
+		{
+			ChatMessage first = this.messages.get(0);
+			ChatMessage result = first;
+			if (this.messages.size() > 1)
+			{
+				result = new ChatMessage(first.getChatId(), first.getMessageId(), first.getName(),
+					this.messages.stream().map(message -> message.getMessage()).collect(Collectors.joining(MessageCoalescer.MESSAGE_SEPARATOR)), first.getDate(),
+					first.getSenderType());
+			}
+
+			return result;
+		}
+
+		/**
+		 * answer every batch message with its own text, under the combined post id
+		 * @param response - slack response to the combined post
+		 */
+		private void complete(ChatMessage response)
+		{
+			for (int i = 0; i < this.messages.size(); i++)
+			{
+				ChatMessage message = this.messages.get(i);
+				ChatMessage messageResponse = response;
+				if (this.messages.size() > 1 && response.getMessageId().compareTo(MessageIdFlag.ERROR.name()) != 0)
+				{
+					messageResponse = new ChatMessage(response.getChatId(), response.getMessageId(), response.getName(), message.getMessage(), response.getDate(),
+						response.getSenderType());
+				}
+
+				this.responses.get(i).complete(messageResponse);
+			}
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package talmal.contact.messageSender.services;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * set of message ids of a single chat, for O(1) duplicate detection. slack
+ * message ids are timestamps, kept packed as longs (Tools.slackTsToMicros) in an
+ * open addressing table - 16 bytes per message instead of a String and a hash
+ * node. other ids (like flags) fall back to a HashSet. null ids are never
+ * considered duplicates. not thread safe - guarded by its owner.
+ */
+class MessageIdSet
+{
+	private static final int INITIAL_CAPACITY = 8;
+	private static final long EMPTY = Tools.INVALID_TS;
+
+	private long[] table;
+	private int size;
+	private Set<String> otherIds;
+
+	MessageIdSet()
+	{
+		this.table = new long[MessageIdSet.INITIAL_CAPACITY];
+		Arrays.fill(this.table, MessageIdSet.EMPTY);
+	}
+
+	/**
+	 * @param messageId
+	 * @return true if id was added, false if it is already in the set
+	 */
+	boolean add(String messageId)
+	{
+		boolean result = true;
+		if (messageId != null)
+		{
+			long ts = Tools.slackTsToMicros(messageId);
+			if (ts != Tools.INVALID_TS)
+			{
+				result = this.insert(ts);
+			}
+			else
+			{
+				if (this.otherIds == null)
+				{
+					this.otherIds = new HashSet<String>();
+				}
+
+				result = this.otherIds.add(messageId);
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * @param ts - message id packed by Tools.slackTsToMicros
+	 * @return true if id was added, false if it is already in the set
+	 */
+	boolean add(long ts)
+	{
+		return this.insert(ts);
+	}
+
+	private boolean insert(long ts)
+	{
+		boolean result = true;
+
+		// keep load factor under 0.5
+		if ((this.size + 1) * 2 > this.table.length)
+		{
+			this.resize();
+		}
+
+		int mask = this.table.length - 1;
+		int index = MessageIdSet.hash(ts) & mask;
+		while (this.table[index] != MessageIdSet.EMPTY && result)
+		{
+			if (this.table[index] == ts)
+			{
+				result = false;
+			}
+			else
+			{
+				index = (index + 1) & mask;
+			}
+		}
+
+		if (result)
+		{
+			this.table[index] = ts;
+			this.size++;
+		}
+
+		return result;
+	}
+
+	private void resize()
+	{
+		long[] oldTable = this.table;
+		this.table = new long[oldTable.length * 2];
+		Arrays.fill(this.table, MessageIdSet.EMPTY);
+		this.size = 0;
+		for (long ts : oldTable)
+		{
+			if (ts != MessageIdSet.EMPTY)
+			{
+				this.insert(ts);
+			}
+		}
+	}
+
+	/**
+	 * @return id table (for memory calibration)
+	 */
+	long[] getTable()
+	{
+		return this.table;
+	}
+
+	private static int hash(long ts)
+	{
+		long hash = ts * 0x9E3779B97F4A7C15L;
+		return (int) (hash ^ (hash >>> 32));
+	}
+}
@@ -0,0 +1,84 @@
+package talmal.contact.messageSender.services;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * negative cache - remembers chat ids slack did not find, for a short time, so
+ * repeated loads of a chat that does not exist (broken or malicious clients)
+ * are answered here instead of spending slack rate budget.
+ *
+ * bounded - the oldest chat ids are dropped first when full.
+ */
+public class MissingChatCache
+{
+	private final long ttlNanos;
+	private final LongAdder hits = new LongAdder();
+
+	// chat id to a marker, lives ttl from when slack did not find the chat
+	private final ExpiringMap<String, Boolean> missingChats;
+
+	/**
+	 * @param ttlSeconds - time a missing chat id is remembered, 0 remembers none
+	 * @param maxEntries - max remembered chat ids
+	 */
+	public MissingChatCache(long ttlSeconds, int maxEntries)
+	{
+		this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+		this.missingChats = new ExpiringMap<String, Boolean>(this.ttlNanos, maxEntries, false);
+	}
+
+	/**
+	 * @param chatId - chat id
+	 * @param now    - System.nanoTime()
+	 * @return true if slack did not find chat lately
+	 */
+	public boolean isMissing(String chatId, long now)
+	{
+		boolean result = this.missingChats.get(chatId, now) != null;
+		if (result)
+		{
+			this.hits.increment();
+		}
+
+		return result;
+	}
+
+	/**
+	 * remember that slack did not find chat
+	 * @param chatId - chat id
+	 * @param now    - System.nanoTime()
+	 */
+	public void addMissing(String chatId, long now)
+	{
+		if (chatId != null && this.ttlNanos > 0)
+		{
+			this.missingChats.put(chatId, Boolean.TRUE, now);
+		}
+	}
+
+	/**
+	 * forget chat id - it may exist now
+	 * @param chatId - chat id
+	 */
+	public void remove(String chatId)
+	{
+		this.missingChats.remove(chatId);
+	}
+
+	/**
+	 * @return loads answered as missing without asking slack
+	 */
+	public long getHits()
+	{
+		return this.hits.sum();
+	}
+
+	/**
+	 * @return number of remembered chat ids
+	 */
+	public int size()
+	{
+		return this.missingChats.size();
+	}
+}
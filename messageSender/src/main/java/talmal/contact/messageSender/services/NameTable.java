@@ -0,0 +1,67 @@
+package talmal.contact.messageSender.services;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * flyweight table of sender names - chats repeat a few names (owner, robot,
+ * the user) in every message, so cached messages share a single String per
+ * name. the table is bounded, names seen after it is full are not shared.
+ */
+class NameTable
+{
+	private static final int DEFAULT_MAX_SIZE = 1024;
+
+	private final Map<String, String> names = new ConcurrentHashMap<String, String>();
+	private final int maxSize;
+
+	NameTable()
+	{
+		this(NameTable.DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * @param maxSize - max names to share
+	 */
+	NameTable(int maxSize)
+	{
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @param name
+	 * @return shared instance equal to input name, or input name if table is full
+	 */
+	String intern(String name)
+	{
+		String result = name;
+		if (name != null)
+		{
+			String sharedName = this.names.get(name);
+			if (sharedName == null && this.names.size() < this.maxSize)
+			{
+				sharedName = this.names.putIfAbsent(name, name);
+				if (sharedName == null)
+				{
+					sharedName = name;
+				}
+			}
+
+			if (sharedName != null)
+			{
+				result = sharedName;
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * @param name
+	 * @return true if input is the shared instance of its name
+	 */
+	boolean isShared(String name)
+	{
+		return name != null && this.names.get(name) == name;
+	}
+}
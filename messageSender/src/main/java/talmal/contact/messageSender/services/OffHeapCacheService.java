@@ -0,0 +1,560 @@
+package talmal.contact.messageSender.services;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+
+import lombok.extern.slf4j.Slf4j;
+import talmal.contact.messageSender.models.context.ChatMessage;
+import talmal.contact.messageSender.services.eviction.EvictionPolicy;
+import talmal.contact.messageSender.services.eviction.EvictionPolicyType;
+
+/**
+ * cache keeping messages outside the java heap. messages are encoded with
+ * ChatMessageCodec and appended to arenas of direct ByteBuffers, each chat only
+ * keeps a long[] of record addresses (arena id, offset) on the heap. messages
+ * are decoded lazily, when an item of the list returned by getMessages is read.
+ * 
+ * arenas are append only. an arena is released once all its records belong to
+ * removed chats - lists handed to readers keep their arenas reachable, so a
+ * released arena is never read after it is freed. the memory limit
+ * (services.cache.maxMemory) applies to the allocated arena bytes, not only
+ * the live ones. a few long lived chats would keep whole arenas allocated, so
+ * when less than half of the allocated bytes are live, the live records of
+ * sparse arenas are first copied to the current arena (compaction) and the
+ * sparse arenas released - chats are evicted only while that is not enough.
+ */
+@Slf4j
+@Lazy
+@Component(value = "offHeap")
+public class OffHeapCacheService implements CacheInterface
+{
+	private static final long BYTES_IN_MB = 1000000;
+	private static final int BYTES_IN_KB = 1024;
+	// compact when live bytes are under this part of the allocated bytes, and
+	// move the records of arenas whose live part is under it
+	private static final double COMPACT_LIVE_RATIO = 0.5;
+
+	private final boolean isActive;
+	private final int cacheMaxMemoryInMb;
+	private final int arenaSize;
+	private final EvictionPolicy evictionPolicy;
+	private final CacheStatistics statistics;
+
+	private final Map<String, EncodedChat> openChats;
+	private final Map<Integer, Arena> arenas;
+	private final AtomicLong liveBytes;
+	private final AtomicLong allocatedBytes;
+
+	// guarded by arenaLock
+	private final Object arenaLock = new Object();
+	private Arena currentArena;
+	private int nextArenaId;
+
+	public OffHeapCacheService(@Value(value = "${services.cache.isActive:true}") boolean isActive, @Value(value = "${services.cache.maxMemory:10}") int cacheMaxMemoryInMb,
+		@Value(value = "${services.cache.evictionPolicy:OLDEST}") EvictionPolicyType evictionPolicyType,
+		@Value(value = "${services.cache.offHeap.arenaSizeInKb:1024}") int arenaSizeInKb)
+	{
+		this.isActive = isActive;
+		this.cacheMaxMemoryInMb = cacheMaxMemoryInMb;
+		this.arenaSize = arenaSizeInKb * OffHeapCacheService.BYTES_IN_KB;
+		this.evictionPolicy = evictionPolicyType.create();
+		this.statistics = new CacheStatistics();
+		this.openChats = new ConcurrentHashMap<String, EncodedChat>();
+		this.arenas = new ConcurrentHashMap<Integer, Arena>();
+		this.liveBytes = new AtomicLong();
+		this.allocatedBytes = new AtomicLong();
+	}
+
+	@Override
+	public List<ChatMessage> getMessages(String chatId)
+	{
+		List<ChatMessage> result = null;
+		if (this.isActive && chatId != null)
+		{
+			EncodedChat chat = this.openChats.get(chatId);
+			if (chat != null && (result = this.snapshot(chatId, chat)) != null)
+			{
+				this.evictionPolicy.onAccess(chatId);
+				this.statistics.recordHit();
+			}
+			else
+			{
+				this.statistics.recordMiss();
+			}
+		}
+
+		return result;
+	}
+
+	@Override
+	public boolean isChatExists(String chatId)
+	{
+		boolean result = false;
+		if (this.isActive && chatId != null)
+		{
+			result = this.openChats.containsKey(chatId);
+		}
+
+		return result;
+	}
+
+	@Override
+	public Set<String> getChatIds()
+	{
+		Set<String> result = null;
+		if (this.isActive)
+		{
+			result = this.openChats.keySet();
+		}
+
+		return result;
+	}
+
+	@Override
+	public boolean addMessage(ChatMessage message)
+	{
+		boolean result = false;
+		if (this.isActive && message != null && message.getChatId() != null)
+		{
+			result = this.append(message);
+		}
+
+		return result;
+	}
+
+	@Override
+	public boolean addMessages(List<ChatMessage> messages)
+	{
+		boolean result = false;
+
+		if (this.isActive && messages != null && !messages.isEmpty())
+		{
+			for (ChatMessage message : messages)
+			{
+				if (message != null && message.getChatId() != null)
+				{
+					result |= this.append(message);
+				}
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * encode message and append it to the current arena, inside compute() on the
+	 * chat entry so it can not race with removal of the same chat. messages
+	 * already in the chat (same message id) are skipped.
+	 * @param message - message with a non null chat id
+	 * @return true if message was added, false if it is a duplicate
+	 */
+	private boolean append(ChatMessage message)
+	{
+		boolean[] isAdded = { false };
+		byte[] record = ChatMessageCodec.encode(message);
+		this.openChats.compute(message.getChatId(), (chatId, chat) ->
+		{
+			if (chat == null)
+			{
+				chat = new EncodedChat();
+				this.evictionPolicy.onAdd(chatId);
+			}
+			else
+			{
+				this.evictionPolicy.onAccess(chatId);
+			}
+
+			if (!chat.isDuplicate(message.getMessageId()))
+			{
+				chat.add(this.write(record), record.length, message.getMessageId());
+				this.liveBytes.addAndGet(record.length);
+				isAdded[0] = true;
+			}
+			return chat;
+		});
+
+		return isAdded[0];
+	}
+
+	/**
+	 * copy record into the current arena, start a new arena when it is full
+	 * @param record - encoded message
+	 * @return record address
+	 */
+	private long write(byte[] record)
+	{
+		synchronized (this.arenaLock)
+		{
+			if (this.currentArena == null || this.currentArena.position + record.length > this.currentArena.buffer.capacity())
+			{
+				Arena fullArena = this.currentArena;
+				this.currentArena = new Arena(this.nextArenaId++, Math.max(this.arenaSize, record.length));
+				this.arenas.put(this.currentArena.id, this.currentArena);
+				this.allocatedBytes.addAndGet(this.currentArena.buffer.capacity());
+
+				if (fullArena != null && fullArena.liveBytes.get() == 0)
+				{
+					this.release(fullArena);
+				}
+			}
+
+			Arena arena = this.currentArena;
+			int offset = arena.position;
+			ByteBuffer view = arena.buffer.duplicate();
+			view.position(offset);
+			view.put(record);
+			arena.position += record.length;
+			arena.liveBytes.addAndGet(record.length);
+
+			return EncodedChat.address(arena.id, offset);
+		}
+	}
+
+	/**
+	 * mark chat records as dead, release arenas left without live records
+	 * @param chat - removed chat
+	 */
+	private void free(EncodedChat chat)
+	{
+		for (long address : chat.getAddresses())
+		{
+			this.freeRecord(address);
+		}
+
+		this.liveBytes.addAndGet(-chat.getSizeInBytes());
+	}
+
+	/**
+	 * mark record as dead, release its arena if no live record is left in it
+	 * @param address - record address
+	 */
+	private void freeRecord(long address)
+	{
+		Arena arena = this.arenas.get(EncodedChat.bufferId(address));
+		if (arena != null)
+		{
+			int recordLength = ChatMessageCodec.recordLength(arena.buffer, EncodedChat.offset(address));
+			if (arena.liveBytes.addAndGet(-recordLength) == 0)
+			{
+				synchronized (this.arenaLock)
+				{
+					// current arena is still written to - keep it
+					if (arena != this.currentArena && arena.liveBytes.get() == 0)
+					{
+						this.release(arena);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * copy the live records of sparse arenas to the current arena, so the sparse
+	 * arenas are released. each chat is moved inside compute() on its entry, so
+	 * it can not race with an add or removal of the same chat.
+	 * @return true if allocated bytes went down
+	 */
+	private boolean compact()
+	{
+		Set<Integer> sparseArenaIds = new HashSet<Integer>();
+		synchronized (this.arenaLock)
+		{
+			for (Arena arena : this.arenas.values())
+			{
+				if (arena != this.currentArena && arena.liveBytes.get() < arena.buffer.capacity() * OffHeapCacheService.COMPACT_LIVE_RATIO)
+				{
+					sparseArenaIds.add(arena.id);
+				}
+			}
+		}
+
+		long allocatedBytes = this.allocatedBytes.get();
+		if (!sparseArenaIds.isEmpty())
+		{
+			for (String chatId : this.openChats.keySet())
+			{
+				this.openChats.computeIfPresent(chatId, (key, chat) ->
+				{
+					chat.relocate(address -> sparseArenaIds.contains(EncodedChat.bufferId(address)) ? this.move(address) : address);
+					return chat;
+				});
+			}
+
+			log.debug("compacted {} sparse arenas, allocated bytes {} -> {}, live bytes {}", sparseArenaIds.size(), allocatedBytes, this.allocatedBytes.get(),
+				this.liveBytes.get());
+		}
+
+		return this.allocatedBytes.get() < allocatedBytes;
+	}
+
+	/**
+	 * copy record to the current arena and free it in its old one
+	 * @param address - record address
+	 * @return new record address
+	 */
+	private long move(long address)
+	{
+		long result = address;
+		Arena arena = this.arenas.get(EncodedChat.bufferId(address));
+		if (arena != null)
+		{
+			int offset = EncodedChat.offset(address);
+			byte[] record = new byte[ChatMessageCodec.recordLength(arena.buffer, offset)];
+			ByteBuffer view = arena.buffer.duplicate();
+			view.position(offset);
+			view.get(record);
+
+			result = this.write(record);
+			this.freeRecord(address);
+		}
+
+		return result;
+	}
+
+	/**
+	 * drop arena, its direct memory is freed once no reader list refers to it
+	 * @param arena
+	 */
+	private void release(Arena arena)
+	{
+		if (this.arenas.remove(arena.id) != null)
+		{
+			this.allocatedBytes.addAndGet(-arena.buffer.capacity());
+		}
+	}
+
+	/**
+	 * @return lazily decoded list of chat messages at the time of the call, or
+	 *         null if the chat was removed meanwhile (and its arenas released)
+	 */
+	private List<ChatMessage> snapshot(String chatId, EncodedChat chat)
+	{
+		List<ChatMessage> result = null;
+
+		long[] addresses = null;
+		boolean isReleased = false;
+		do
+		{
+			addresses = chat.getAddresses();
+			ByteBuffer[] buffers = new ByteBuffer[addresses.length];
+			isReleased = false;
+			for (int i = 0; i < addresses.length && !isReleased; i++)
+			{
+				Arena arena = this.arenas.get(EncodedChat.bufferId(addresses[i]));
+				if (arena != null)
+				{
+					buffers[i] = arena.buffer;
+				}
+				else
+				{
+					isReleased = true;
+				}
+			}
+
+			if (!isReleased)
+			{
+				result = new EncodedMessageList(chatId, addresses, buffers);
+			}
+		}
+		// records moved by compaction meanwhile - read their new addresses
+		while (isReleased && chat.getAddresses() != addresses);
+
+		return result;
+	}
+
+	@Override
+	public void removeMessages(String chatId)
+	{
+		if (this.isActive && chatId != null)
+		{
+			this.remove(chatId);
+		}
+	}
+
+	/**
+	 * remove chat and free its off heap records
+	 * @param chatId
+	 * @return true if chat was removed
+	 */
+	private boolean remove(String chatId)
+	{
+		boolean[] isRemoved = { false };
+		this.openChats.computeIfPresent(chatId, (key, chat) ->
+		{
+			this.evictionPolicy.onRemove(chatId);
+			this.free(chat);
+			isRemoved[0] = true;
+			return null;
+		});
+
+		return isRemoved[0];
+	}
+
+	@Override
+	public String removeOldest()
+	{
+		String result = null;
+
+		if (this.isActive)
+		{
+			// let the eviction policy choose.
+			// retry if the chat was removed by another thread meanwhile
+			String victim;
+			while (result == null && (victim = this.evictionPolicy.nextVictim()) != null)
+			{
+				if (this.remove(victim))
+				{
+					result = victim;
+					this.statistics.recordEviction();
+				}
+			}
+		}
+
+		return result;
+	}
+
+	@Override
+	public List<String> evictUntilUnderMemoryLimit()
+	{
+		List<String> result = new ArrayList<String>();
+
+		if (this.isActive)
+		{
+			// compaction releases allocated bytes on every round it runs, or
+			// eviction takes over
+			boolean isDone = false;
+			while (!isDone && this.isMemoryLimitReached())
+			{
+				if (!(this.isFragmented() && this.compact()))
+				{
+					String removedChatId = this.removeOldest();
+					if (removedChatId != null)
+					{
+						result.add(removedChatId);
+					}
+					else
+					{
+						isDone = true;
+					}
+				}
+			}
+		}
+
+		return result;
+	}
+
+	@Override
+	public boolean isMemoryLimitReached()
+	{
+		boolean result = false;
+		if (this.isActive)
+		{
+			// dead records of an arena are freed only with the arena
+			result = this.cacheMaxMemoryInMb <= (this.allocatedBytes.get() / OffHeapCacheService.BYTES_IN_MB);
+		}
+
+		return result;
+	}
+
+	/**
+	 * @return true if most allocated arena bytes are dead records
+	 */
+	private boolean isFragmented()
+	{
+		return this.liveBytes.get() < this.allocatedBytes.get() * OffHeapCacheService.COMPACT_LIVE_RATIO;
+	}
+
+	@Override
+	public CacheStatistics getStatistics()
+	{
+		return this.statistics;
+	}
+
+	/**
+	 * @return off heap bytes of cached messages
+	 */
+	public long getSizeInBytes()
+	{
+		return this.liveBytes.get();
+	}
+
+	/**
+	 * @return off heap bytes held by arenas (live messages and not yet released
+	 *         dead records)
+	 */
+	public long getAllocatedBytes()
+	{
+		return this.allocatedBytes.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder builder = new StringBuilder();
+
+		if (this.isActive)
+		{
+			for (Map.Entry<String, EncodedChat> chat : this.openChats.entrySet())
+			{
+				builder.append(chat.getKey());
+				builder.append(System.lineSeparator());
+				List<ChatMessage> messages = this.snapshot(chat.getKey(), chat.getValue());
+				if (messages != null)
+				{
+					for (ChatMessage message : messages)
+					{
+						builder.append(message);
+						builder.append(System.lineSeparator());
+					}
+				}
+
+				builder.append(System.lineSeparator());
+				builder.append(System.lineSeparator());
+			}
+		}
+
+		return builder.toString();
+	}
+
+	@Override
+	public void close()
+	{
+		log.info("off heap cache closed with {} live bytes, {} allocated bytes", this.liveBytes.get(), this.allocatedBytes.get());
+		this.openChats.clear();
+		synchronized (this.arenaLock)
+		{
+			this.arenas.clear();
+			this.currentArena = null;
+			this.liveBytes.set(0);
+			this.allocatedBytes.set(0);
+		}
+	}
+
+	/**
+	 * direct buffer messages are appended to
+	 */
+	private static class Arena
+	{
+		private final int id;
+		private final ByteBuffer buffer;
+		private final AtomicInteger liveBytes = new AtomicInteger();
+		private int position;
+
+		Arena(int id, int size)
+		{
+			this.id = id;
+			this.buffer = ByteBuffer.allocateDirect(size);
+		}
+	}
+}
@@ -0,0 +1,323 @@
+package talmal.contact.messageSender.services;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * runs tasks of the same key one after the other, in submit order, while tasks
+ * of different keys run in parallel. keys are hashed onto a fixed number of
+ * lanes - a bounded queue with a single consumer thread each. a task may be
+ * async (returns a CompletionStage), its lane waits for it to complete before
+ * starting the next task, so async tasks keep their order too.
+ *
+ * a full lane pushes back on the caller: trySubmit fails at once, submit waits
+ * for room. close(drainTimeout) lets the lanes run their queued tasks before
+ * they stop, tasks still queued then fail with RejectedExecutionException.
+ * @param <K> - ordering key type, null keys are spread over the lanes
+ */
+@Slf4j
+public class OrderedLaneExecutor<K>
+{
+	private final Lane[] lanes;
+	private final AtomicInteger nextLane = new AtomicInteger();
+	private final LongAdder rejectedTasks = new LongAdder();
+	private volatile boolean isClosed;
+
+	/**
+	 * @param name      - lane thread name prefix
+	 * @param laneCount - number of lanes (parallelism)
+	 * @param laneDepth - max tasks waiting in a lane
+	 */
+	public OrderedLaneExecutor(String name, int laneCount, int laneDepth)
+	{
+		this.lanes = new Lane[Math.max(1, laneCount)];
+		for (int i = 0; i < this.lanes.length; i++)
+		{
+			this.lanes[i] = new Lane(name + "-" + i, Math.max(1, laneDepth));
+		}
+	}
+
+	/**
+	 * queue task in the lane of its key, fail if the lane is full
+	 * @param key  - ordering key
+	 * @param task - task to run, returns its (possibly async) result
+	 * @return task result, or RejectedExecutionException if lane is full
+	 */
+	public <T> CompletableFuture<T> trySubmit(K key, Supplier<? extends CompletionStage<T>> task)
+	{
+		CompletableFuture<T> result = new CompletableFuture<T>();
+		Lane lane = this.getLane(key);
+		LaneTask laneTask = this.wrap(task, result);
+		if (this.isClosed || !lane.queue.offer(laneTask))
+		{
+			this.rejectedTasks.increment();
+			result.completeExceptionally(new RejectedExecutionException(String.format("lane %s is full", lane.thread.getName())));
+		}
+		else
+		{
+			this.rejectIfClosed(lane, laneTask);
+		}
+
+		return result;
+	}
+
+	/**
+	 * queue task in the lane of its key, wait for room if the lane is full
+	 * @param key  - ordering key
+	 * @param task - task to run, returns its (possibly async) result
+	 * @return task result, or RejectedExecutionException if interrupted or
+	 *         closed while waiting for room
+	 */
+	public <T> CompletableFuture<T> submit(K key, Supplier<? extends CompletionStage<T>> task)
+	{
+		CompletableFuture<T> result = new CompletableFuture<T>();
+		Lane lane = this.getLane(key);
+		LaneTask laneTask = this.wrap(task, result);
+		try
+		{
+			// wait in steps, a lane closed meanwhile never makes room
+			boolean isQueued = false;
+			while (!isQueued)
+			{
+				if (this.isClosed)
+				{
+					throw new RejectedExecutionException("lanes are closed");
+				}
+
+				isQueued = lane.queue.offer(laneTask, Lane.POLL_MILLIS, TimeUnit.MILLISECONDS);
+			}
+
+			this.rejectIfClosed(lane, laneTask);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			this.rejectedTasks.increment();
+			result.completeExceptionally(new RejectedExecutionException("interrupted while waiting for lane " + lane.thread.getName(), e));
+		}
+		catch (RejectedExecutionException e)
+		{
+			this.rejectedTasks.increment();
+			result.completeExceptionally(e);
+		}
+
+		return result;
+	}
+
+	/**
+	 * @return tasks waiting in all lanes
+	 */
+	public int getQueuedTasks()
+	{
+		int result = 0;
+		for (Lane lane : this.lanes)
+		{
+			result += lane.queue.size();
+		}
+
+		return result;
+	}
+
+	/**
+	 * @return tasks refused because their lane was full (or closed)
+	 */
+	public long getRejectedTasks()
+	{
+		return this.rejectedTasks.sum();
+	}
+
+	/**
+	 * stop lane threads, queued tasks fail with RejectedExecutionException
+	 */
+	public void close()
+	{
+		this.close(Duration.ZERO);
+	}
+
+	/**
+	 * refuse new tasks, let the lanes run the tasks already queued for up to
+	 * drainTimeout, then stop lane threads. tasks still queued then are dropped
+	 * and their results fail with RejectedExecutionException.
+	 * @param drainTimeout - max time to wait for queued tasks, 0 does not wait
+	 */
+	public void close(Duration drainTimeout)
+	{
+		this.isClosed = true;
+		for (Lane lane : this.lanes)
+		{
+			lane.isDraining = true;
+		}
+
+		long deadline = System.nanoTime() + drainTimeout.toNanos();
+		try
+		{
+			for (Lane lane : this.lanes)
+			{
+				long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+				if (remainingMillis > 0)
+				{
+					lane.thread.join(remainingMillis);
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		List<LaneTask> droppedTasks = new ArrayList<LaneTask>();
+		for (Lane lane : this.lanes)
+		{
+			lane.isClosed = true;
+			lane.thread.interrupt();
+			lane.queue.drainTo(droppedTasks);
+		}
+
+		if (!droppedTasks.isEmpty())
+		{
+			log.warn("lanes closed with {} queued tasks dropped", droppedTasks.size());
+			droppedTasks.forEach(LaneTask::reject);
+		}
+	}
+
+	/**
+	 * a task queued while close drained the lanes may be missed by it, take it
+	 * back and fail it
+	 */
+	private void rejectIfClosed(Lane lane, LaneTask laneTask)
+	{
+		if (this.isClosed && lane.queue.remove(laneTask))
+		{
+			this.rejectedTasks.increment();
+			laneTask.reject();
+		}
+	}
+
+	private Lane getLane(K key)
+	{
+		int index = (key != null) ? key.hashCode() : this.nextLane.getAndIncrement();
+		// spread hash bits, keep index positive
+		index ^= (index >>> 16);
+		return this.lanes[(index & Integer.MAX_VALUE) % this.lanes.length];
+	}
+
+	private <T> LaneTask wrap(Supplier<? extends CompletionStage<T>> task, CompletableFuture<T> result)
+	{
+		return new LaneTask(result, () ->
+		{
+			try
+			{
+				CompletableFuture<T> taskResult = task.get().toCompletableFuture();
+				taskResult.whenComplete((value, error) ->
+				{
+					if (error != null)
+					{
+						result.completeExceptionally(error);
+					}
+					else
+					{
+						result.complete(value);
+					}
+				});
+
+				// next task of this lane starts after this one completes
+				taskResult.handle((value, error) -> null).join();
+			}
+			catch (RuntimeException e)
+			{
+				result.completeExceptionally(e);
+			}
+		});
+	}
+
+	/**
+	 * queued task, keeps its result so a dropped task can be failed
+	 */
+	private static class LaneTask implements Runnable
+	{
+		private final CompletableFuture<?> result;
+		private final Runnable body;
+
+		private LaneTask(CompletableFuture<?> result, Runnable body)
+		{
+			this.result = result;
+			this.body = body;
+		}
+
+		@Override
+		public void run()
+		{
+			this.body.run();
+		}
+
+		private void reject()
+		{
+			this.result.completeExceptionally(new RejectedExecutionException("lanes are closed"));
+		}
+	}
+
+	private static class Lane implements Runnable
+	{
+		// how often an idle lane checks whether it is draining
+		private static final long POLL_MILLIS = 100;
+
+		private final BlockingQueue<LaneTask> queue;
+		private final Thread thread;
+		private volatile boolean isClosed;
+		// no new tasks come, stop once the queue is empty
+		private volatile boolean isDraining;
+
+		private Lane(String name, int depth)
+		{
+			this.queue = new ArrayBlockingQueue<LaneTask>(depth);
+			this.thread = new Thread(this, name);
+			this.thread.setDaemon(true);
+			this.thread.start();
+		}
+
+		@Override
+		public void run()
+		{
+			while (!this.isClosed)
+			{
+				try
+				{
+					LaneTask task = this.queue.poll(Lane.POLL_MILLIS, TimeUnit.MILLISECONDS);
+					if (task != null && this.isClosed)
+					{
+						// closed while polling, close drains the rest
+						task.reject();
+					}
+					else if (task != null)
+					{
+						task.run();
+					}
+					else if (this.isDraining)
+					{
+						this.isClosed = true;
+					}
+				}
+				catch (InterruptedException e)
+				{
+					// closed
+				}
+				catch (RuntimeException e)
+				{
+					log.error(e.getMessage(), e);
+				}
+			}
+		}
+	}
+}
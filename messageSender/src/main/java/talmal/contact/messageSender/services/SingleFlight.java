@@ -0,0 +1,75 @@
+package talmal.contact.messageSender.services;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import reactor.core.publisher.Flux;
+
+/**
+ * runs one load per key at a time. a caller that asks for a key while its load
+ * is in flight subscribes to that load - it gets the items loaded so far, then
+ * the rest as they arrive. the in-flight entry is dropped when the load ends,
+ * the next caller starts a new load.
+ *
+ * a started load runs to its end even if all its subscribers cancel, so its
+ * result still fills the cache.
+ * @param <K> - load key
+ * @param <T> - loaded item type
+ */
+public class SingleFlight<K, T>
+{
+	private final ConcurrentHashMap<K, Flux<T>> inFlight = new ConcurrentHashMap<K, Flux<T>>();
+	private final LongAdder joins = new LongAdder();
+
+	/**
+	 * @param key  - load key
+	 * @param load - creates the load, called once per flight
+	 * @return items of the in-flight load of key, or of a new one
+	 */
+	public Flux<T> execute(K key, Supplier<Flux<T>> load)
+	{
+		return Flux.defer(() ->
+		{
+			boolean[] isCreated = { false };
+			Flux<T> result = this.inFlight.computeIfAbsent(key, k ->
+			{
+				isCreated[0] = true;
+				return this.share(k, load.get());
+			});
+
+			if (!isCreated[0])
+			{
+				this.joins.increment();
+			}
+
+			return result;
+		});
+	}
+
+	/**
+	 * @return callers that joined a load in flight instead of starting one
+	 */
+	public long getJoins()
+	{
+		return this.joins.sum();
+	}
+
+	/**
+	 * @return number of loads in flight
+	 */
+	public int size()
+	{
+		return this.inFlight.size();
+	}
+
+	private Flux<T> share(K key, Flux<T> load)
+	{
+		AtomicReference<Flux<T>> shared = new AtomicReference<Flux<T>>();
+		// dropped before the end signal reaches callers, so a caller that asks again
+		// as soon as it sees the end starts a new load instead of replaying this one
+		shared.set(load.doOnTerminate(() -> this.inFlight.remove(key, shared.get())).replay().autoConnect());
+		return shared.get();
+	}
+}
@@ -0,0 +1,626 @@
+package talmal.contact.messageSender.services;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+import lombok.extern.slf4j.Slf4j;
+import talmal.contact.messageSender.models.context.ChatMessage;
+
+/**
+ * durable local outbox of messages to slack. a message is appended to a local
+ * journal and accepted once it is on disk, a background replayer sends it to
+ * slack later - so a slack outage delays messages instead of losing them, and
+ * senders do not wait for slack.
+ *
+ * writes are fsynced in batches (group commit): a flush every flushInterval
+ * forces all records written since the last one, and completes their appends.
+ * the replayer sends pending messages in append order. a message that fails
+ * blocks the rest of its chat until its retry time, other chats go on - so
+ * messages of a chat reach slack in order. delivery is at least once: a crash
+ * between a send and the fsync of its DONE record sends it again on restart.
+ *
+ * record layout: [int record length][int crc32][byte type][long sequence]
+ * [short chat id length][chat id utf-8][payload]. crc covers everything after
+ * itself.
+ * <ul>
+ * <li>MESSAGE - payload is one ChatMessageCodec record</li>
+ * <li>DONE - no payload, the message with this sequence was sent</li>
+ * </ul>
+ * segment files are deleted oldest first, once all their messages are done and
+ * a newer segment is written - a segment with a pending message keeps all
+ * newer ones, since they may hold DONE records of its sent messages. on startup segments are replayed in order, messages
+ * without a DONE record are pending again. a record with a bad length or crc
+ * (torn write on crash) ends its segment, and the segment is truncated there.
+ */
+@Slf4j
+public class SlackOutbox
+{
+	private static final int BYTES_IN_KB = 1024;
+	private static final String SEGMENT_FILE_PREFIX = "outbox-";
+	private static final String SEGMENT_FILE_SUFFIX = ".log";
+	private static final String SEGMENT_FILE_FORMAT = SlackOutbox.SEGMENT_FILE_PREFIX + "%010d" + SlackOutbox.SEGMENT_FILE_SUFFIX;
+
+	private static final byte RECORD_TYPE_MESSAGE = 1;
+	private static final byte RECORD_TYPE_DONE = 2;
+
+	// record length + crc
+	private static final int CRC_START = Integer.BYTES * 2;
+	// record length + crc + type + sequence + chat id length
+	private static final int RECORD_HEADER_SIZE = SlackOutbox.CRC_START + Byte.BYTES + Long.BYTES + Short.BYTES;
+
+	private final Path directory;
+	private final int segmentSize;
+	private final long retryIntervalMillis;
+	private final Function<ChatMessage, CompletableFuture<ChatMessage>> sender;
+
+	// messages on disk waiting to be sent, sequence order is send order
+	private final ConcurrentSkipListMap<Long, Entry> pending = new ConcurrentSkipListMap<Long, Entry>();
+
+	// guards the fields below, and all file writes
+	private final Object writeLock = new Object();
+	private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+	private final List<Entry> unflushedEntries = new ArrayList<Entry>();
+	// pending (or unflushed) messages per chat id
+	private final Map<String, Integer> pendingChats = new HashMap<String, Integer>();
+	private Segment currentSegment;
+	private int nextSegmentId;
+	private long nextSequence;
+
+	// released on new pending messages, to wake the replayer
+	private final Semaphore wakeUp = new Semaphore(0);
+	private final ScheduledExecutorService flusher;
+	private final Thread replayer;
+	private volatile boolean isClosed;
+
+	/**
+	 * @param directory           - outbox files directory
+	 * @param segmentSizeInKb     - segment file size to roll a new segment at
+	 * @param flushIntervalMillis - max time an append waits for its fsync
+	 * @param retryIntervalMillis - time between retries while messages fail
+	 * @param sender              - sends a message to slack. a failed future
+	 *                            (slack unreachable) is retried, a completed one
+	 *                            is done - error responses included
+	 */
+	public SlackOutbox(String directory, int segmentSizeInKb, long flushIntervalMillis, long retryIntervalMillis,
+		Function<ChatMessage, CompletableFuture<ChatMessage>> sender) throws IOException
+	{
+		this.directory = Paths.get(directory);
+		this.segmentSize = segmentSizeInKb * SlackOutbox.BYTES_IN_KB;
+		this.retryIntervalMillis = retryIntervalMillis;
+		this.sender = sender;
+
+		this.recover();
+		log.info("outbox {} recovered {} pending messages from {} segments", this.directory.toAbsolutePath(), this.pending.size(), this.segments.size());
+
+		this.flusher = Executors.newSingleThreadScheduledExecutor(runnable ->
+		{
+			Thread thread = new Thread(runnable, "slack-outbox-flush");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long flushIntervalNanos = Math.max(1, TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis));
+		this.flusher.scheduleWithFixedDelay(this::flush, flushIntervalNanos, flushIntervalNanos, TimeUnit.NANOSECONDS);
+
+		this.replayer = new Thread(this::replay, "slack-outbox-replay");
+		this.replayer.setDaemon(true);
+		this.replayer.start();
+	}
+
+	/**
+	 * write message to the outbox
+	 * @param message - message with a chat id
+	 * @return completes when the message is on disk, it is sent to slack later
+	 */
+	public CompletableFuture<Void> append(ChatMessage message)
+	{
+		CompletableFuture<Void> result = null;
+		byte[] payload = ChatMessageCodec.encode(message);
+		synchronized (this.writeLock)
+		{
+			if (this.isClosed)
+			{
+				result = CompletableFuture.failedFuture(new IOException("outbox is closed"));
+			}
+			else
+			{
+				try
+				{
+					Entry entry = new Entry(this.nextSequence, message);
+					entry.segment = this.writeRecord(SlackOutbox.RECORD_TYPE_MESSAGE, entry.sequence, message.getChatId(), payload);
+					entry.segment.pendingMessages++;
+					this.pendingChats.merge(message.getChatId(), 1, Integer::sum);
+					this.nextSequence++;
+					this.unflushedEntries.add(entry);
+					result = entry.flushed;
+				}
+				catch (IOException e)
+				{
+					log.error("can not write to outbox {}: {}", this.directory.toAbsolutePath(), e.getMessage(), e);
+					result = CompletableFuture.failedFuture(e);
+				}
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * @return messages waiting to be sent
+	 */
+	public int getPendingCount()
+	{
+		return this.pending.size();
+	}
+
+	/**
+	 * @param chatId - chat to check
+	 * @return true if the chat has messages written and not sent yet
+	 */
+	public boolean hasPending(String chatId)
+	{
+		synchronized (this.writeLock)
+		{
+			return this.pendingChats.containsKey(chatId);
+		}
+	}
+
+	/**
+	 * @return number of segment files
+	 */
+	public int getSegmentCount()
+	{
+		synchronized (this.writeLock)
+		{
+			return this.segments.size();
+		}
+	}
+
+	/**
+	 * stop sending, flush written records. pending messages are sent after the
+	 * next start.
+	 */
+	public void close()
+	{
+		this.isClosed = true;
+		this.replayer.interrupt();
+		this.flusher.shutdownNow();
+		this.flush();
+
+		synchronized (this.writeLock)
+		{
+			for (Segment segment : this.segments.values())
+			{
+				try
+				{
+					segment.channel.close();
+				}
+				catch (IOException e)
+				{
+					log.error("can not close outbox segment {}: {}", segment.path, e.getMessage(), e);
+				}
+			}
+		}
+
+		log.info("outbox {} closed with {} pending messages", this.directory.toAbsolutePath(), this.pending.size());
+	}
+
+	/**
+	 * force written records to disk, hand flushed messages to the replayer and
+	 * delete segments with no pending messages
+	 */
+	void flush()
+	{
+		List<Entry> flushedEntries = null;
+		synchronized (this.writeLock)
+		{
+			try
+			{
+				if (this.currentSegment.isDirty)
+				{
+					this.currentSegment.channel.force(false);
+					this.currentSegment.isDirty = false;
+				}
+
+				flushedEntries = new ArrayList<Entry>(this.unflushedEntries);
+				this.unflushedEntries.clear();
+				this.deleteDoneSegments();
+			}
+			catch (IOException e)
+			{
+				// appends wait for the next flush
+				log.error("can not flush outbox {}: {}", this.directory.toAbsolutePath(), e.getMessage(), e);
+			}
+		}
+
+		if (flushedEntries != null && !flushedEntries.isEmpty())
+		{
+			for (Entry entry : flushedEntries)
+			{
+				this.pending.put(entry.sequence, entry);
+				entry.flushed.complete(null);
+			}
+
+			this.wakeUp.release();
+		}
+	}
+
+	/**
+	 * replayer thread - send pending messages until closed
+	 */
+	private void replay()
+	{
+		// System.nanoTime() time to retry a failed chat at, used by this thread only
+		Map<String, Long> retryTimes = new HashMap<String, Long>();
+		long retryIntervalNanos = TimeUnit.MILLISECONDS.toNanos(this.retryIntervalMillis);
+		while (!this.isClosed)
+		{
+			try
+			{
+				this.sendPending(retryTimes, retryIntervalNanos);
+
+				// wait for new messages, or for the next chat retry
+				long waitNanos = retryIntervalNanos;
+				long now = System.nanoTime();
+				for (long retryTime : retryTimes.values())
+				{
+					waitNanos = Math.min(waitNanos, Math.max(0, retryTime - now));
+				}
+
+				this.wakeUp.tryAcquire(waitNanos, TimeUnit.NANOSECONDS);
+				this.wakeUp.drainPermits();
+			}
+			catch (InterruptedException e)
+			{
+				// closed
+			}
+			catch (RuntimeException e)
+			{
+				log.error(e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * send pending messages in order. once a message of a chat fails, the rest of
+	 * the chat waits for its retry time - other chats go on.
+	 * @param retryTimes         - retry time of failed chats
+	 * @param retryIntervalNanos - time to retry a failed chat after
+	 */
+	private void sendPending(Map<String, Long> retryTimes, long retryIntervalNanos) throws InterruptedException
+	{
+		Set<String> blockedChatIds = new HashSet<String>();
+		long now = System.nanoTime();
+		retryTimes.forEach((chatId, retryTime) ->
+		{
+			if (retryTime - now > 0)
+			{
+				blockedChatIds.add(chatId);
+			}
+		});
+
+		Iterator<Entry> iterator = this.pending.values().iterator();
+		while (!this.isClosed && iterator.hasNext())
+		{
+			Entry entry = iterator.next();
+			String chatId = entry.message.getChatId();
+			if (!blockedChatIds.contains(chatId))
+			{
+				try
+				{
+					this.sender.apply(entry.message).get();
+					this.markDone(entry);
+					retryTimes.remove(chatId);
+				}
+				catch (ExecutionException | RuntimeException e)
+				{
+					log.warn("outbox message {} of chat {} not sent, will retry: {}", entry.sequence, chatId, e.getMessage());
+					blockedChatIds.add(chatId);
+					retryTimes.put(chatId, System.nanoTime() + retryIntervalNanos);
+				}
+			}
+		}
+	}
+
+	/**
+	 * write a DONE record of a sent message, it is synced with the next flush
+	 * @param entry - sent message
+	 */
+	private void markDone(Entry entry)
+	{
+		synchronized (this.writeLock)
+		{
+			try
+			{
+				this.writeRecord(SlackOutbox.RECORD_TYPE_DONE, entry.sequence, "", new byte[0]);
+			}
+			catch (IOException e)
+			{
+				// message is sent again after a restart
+				log.error("can not write outbox DONE record of message {}: {}", entry.sequence, e.getMessage(), e);
+			}
+
+			entry.segment.pendingMessages--;
+			this.pending.remove(entry.sequence);
+			this.removePendingChat(entry.message.getChatId());
+		}
+	}
+
+	/**
+	 * count down the pending messages of a chat (called under writeLock)
+	 * @param chatId - chat of a sent message
+	 */
+	private void removePendingChat(String chatId)
+	{
+		this.pendingChats.computeIfPresent(chatId, (key, count) -> (count > 1) ? count - 1 : null);
+	}
+
+	/**
+	 * append a record to the current segment, start a new segment when it is
+	 * full (called under writeLock)
+	 * @return segment the record was written to
+	 */
+	private Segment writeRecord(byte type, long sequence, String chatId, byte[] payload) throws IOException
+	{
+		byte[] chatIdBytes = chatId.getBytes(StandardCharsets.UTF_8);
+		int length = SlackOutbox.RECORD_HEADER_SIZE + chatIdBytes.length + payload.length;
+		if (this.currentSegment.size > 0 && this.currentSegment.size + length > this.segmentSize)
+		{
+			this.rollSegment();
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		buffer.putInt(length);
+		buffer.putInt(0);
+		buffer.put(type);
+		buffer.putLong(sequence);
+		buffer.putShort((short) chatIdBytes.length);
+		buffer.put(chatIdBytes);
+		buffer.put(payload);
+		buffer.putInt(Integer.BYTES, SlackOutbox.crc(buffer.array(), 0, length));
+		buffer.flip();
+
+		Segment segment = this.currentSegment;
+		long position = segment.size;
+		while (buffer.hasRemaining())
+		{
+			position += segment.channel.write(buffer, position);
+		}
+
+		segment.size = position;
+		segment.isDirty = true;
+		return segment;
+	}
+
+	/**
+	 * seal current segment and open a new one (called under writeLock)
+	 */
+	private void rollSegment() throws IOException
+	{
+		if (this.currentSegment != null && this.currentSegment.isDirty)
+		{
+			this.currentSegment.channel.force(false);
+			this.currentSegment.isDirty = false;
+		}
+
+		Segment segment = this.openSegment(this.nextSegmentId++);
+		this.segments.put(segment.id, segment);
+		this.currentSegment = segment;
+	}
+
+	private Segment openSegment(int id) throws IOException
+	{
+		Path path = this.directory.resolve(String.format(SlackOutbox.SEGMENT_FILE_FORMAT, id));
+		return new Segment(id, path, FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE));
+	}
+
+	/**
+	 * delete the oldest sealed segments while all their messages were sent
+	 * (called under writeLock). a DONE record is always in the segment of its
+	 * message or a newer one, so deleting only from the oldest end never drops
+	 * the DONE record of a message still on disk. DONE records of deleted
+	 * messages may stay in newer segments, recovery ignores them.
+	 */
+	private void deleteDoneSegments() throws IOException
+	{
+		Iterator<Segment> iterator = this.segments.values().iterator();
+		boolean isDone = false;
+		while (!isDone && iterator.hasNext())
+		{
+			Segment segment = iterator.next();
+			if (segment != this.currentSegment && segment.pendingMessages == 0)
+			{
+				segment.channel.close();
+				Files.deleteIfExists(segment.path);
+				iterator.remove();
+				log.debug("deleted sent outbox segment {}", segment.path);
+			}
+			else
+			{
+				isDone = true;
+			}
+		}
+	}
+
+	/**
+	 * rebuild pending messages from the segment files
+	 */
+	private void recover() throws IOException
+	{
+		Files.createDirectories(this.directory);
+
+		List<Path> files = new ArrayList<Path>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.directory, SlackOutbox.SEGMENT_FILE_PREFIX + "*" + SlackOutbox.SEGMENT_FILE_SUFFIX))
+		{
+			stream.forEach(files::add);
+		}
+		// zero padded ids - name order is id order
+		files.sort(null);
+
+		synchronized (this.writeLock)
+		{
+			for (Path file : files)
+			{
+				String name = file.getFileName().toString();
+				int id = Integer.parseInt(name.substring(SlackOutbox.SEGMENT_FILE_PREFIX.length(), name.length() - SlackOutbox.SEGMENT_FILE_SUFFIX.length()));
+				Segment segment = this.openSegment(id);
+				this.segments.put(id, segment);
+				this.replaySegment(segment);
+				this.currentSegment = segment;
+				this.nextSegmentId = id + 1;
+			}
+
+			if (this.currentSegment == null)
+			{
+				this.rollSegment();
+			}
+
+			this.deleteDoneSegments();
+		}
+	}
+
+	/**
+	 * apply segment records to the pending messages, in write order
+	 * @param segment
+	 */
+	private void replaySegment(Segment segment) throws IOException
+	{
+		byte[] data = Files.readAllBytes(segment.path);
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		int position = 0;
+		boolean isEnd = false;
+		while (!isEnd && position + SlackOutbox.RECORD_HEADER_SIZE <= data.length)
+		{
+			int length = buffer.getInt(position);
+			if (length < SlackOutbox.RECORD_HEADER_SIZE || position + length > data.length
+				|| buffer.getInt(position + Integer.BYTES) != SlackOutbox.crc(data, position, length))
+			{
+				log.warn("outbox segment {} has a corrupted record at {}, ignoring the rest of it", segment.path, position);
+				isEnd = true;
+			}
+			else
+			{
+				this.replayRecord(segment, buffer, position);
+				position += length;
+			}
+		}
+
+		if (position < data.length)
+		{
+			segment.channel.truncate(position);
+		}
+
+		segment.size = position;
+	}
+
+	private void replayRecord(Segment segment, ByteBuffer buffer, int position)
+	{
+		ByteBuffer view = buffer.duplicate();
+		view.position(position + SlackOutbox.CRC_START);
+		byte type = view.get();
+		long sequence = view.getLong();
+		byte[] chatIdBytes = new byte[view.getShort()];
+		view.get(chatIdBytes);
+		this.nextSequence = Math.max(this.nextSequence, sequence + 1);
+
+		switch (type)
+		{
+			case SlackOutbox.RECORD_TYPE_MESSAGE:
+			{
+				ChatMessage message = ChatMessageCodec.decode(new String(chatIdBytes, StandardCharsets.UTF_8), buffer, view.position());
+				Entry entry = new Entry(sequence, message);
+				entry.segment = segment;
+				entry.flushed.complete(null);
+				segment.pendingMessages++;
+				this.pendingChats.merge(message.getChatId(), 1, Integer::sum);
+				this.pending.put(sequence, entry);
+				break;
+			}
+			case SlackOutbox.RECORD_TYPE_DONE:
+			{
+				// message may be in a deleted segment
+				Entry entry = this.pending.remove(sequence);
+				if (entry != null)
+				{
+					entry.segment.pendingMessages--;
+					this.removePendingChat(entry.message.getChatId());
+				}
+				break;
+			}
+			default:
+			{
+				log.error("unknown outbox record type {} in segment {} at {}", type, segment.path, position);
+				break;
+			}
+		}
+	}
+
+	private static int crc(byte[] data, int offset, int length)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(data, offset + SlackOutbox.CRC_START, length - SlackOutbox.CRC_START);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * outbox file
+	 */
+	private static class Segment
+	{
+		private final int id;
+		private final Path path;
+		private final FileChannel channel;
+		// guarded by writeLock
+		private long size;
+		private boolean isDirty;
+		private int pendingMessages;
+
+		private Segment(int id, Path path, FileChannel channel)
+		{
+			this.id = id;
+			this.path = path;
+			this.channel = channel;
+		}
+	}
+
+	/**
+	 * message waiting in the outbox
+	 */
+	private static class Entry
+	{
+		private final long sequence;
+		private final ChatMessage message;
+		private final CompletableFuture<Void> flushed = new CompletableFuture<Void>();
+		// guarded by writeLock
+		private Segment segment;
+
+		private Entry(long sequence, ChatMessage message)
+		{
+			this.sequence = sequence;
+			this.message = message;
+		}
+	}
+}
@@ -1,10 +1,21 @@
 package talmal.contact.messageSender.services;
 
 import java.io.IOException;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 import javax.annotation.PostConstruct;
@@ -15,10 +26,8 @@ import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
 import com.slack.api.Slack;
-import com.slack.api.app_backend.events.payload.MessagePayload;
+import com.slack.api.methods.AsyncMethodsClient;
 import com.slack.api.methods.MethodsClient;
 import com.slack.api.methods.SlackApiException;
 import com.slack.api.methods.request.chat.ChatPostMessageRequest;
@@ -30,6 +39,7 @@ import com.slack.api.methods.response.conversations.ConversationsListResponse;
 import com.slack.api.methods.response.conversations.ConversationsRepliesResponse;
 import com.slack.api.model.Conversation;
 import com.slack.api.model.Message;
+import com.slack.api.model.ResponseMetadata;
 import com.slack.api.socket_mode.SocketModeClient;
 import com.slack.api.socket_mode.listener.EnvelopeListener;
 import com.slack.api.socket_mode.listener.WebSocketCloseListener;
@@ -39,14 +49,22 @@ import com.slack.api.socket_mode.request.InteractiveEnvelope;
 import com.slack.api.socket_mode.response.AckResponse;
 
 import lombok.extern.slf4j.Slf4j;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 import talmal.contact.messageSender.config.MessagingConfig;
 import talmal.contact.messageSender.config.SlackGson;
 import talmal.contact.messageSender.models.ContactDetails;
 import talmal.contact.messageSender.models.MessageToSlack;
+import talmal.contact.messageSender.models.SlackEvent;
 import talmal.contact.messageSender.models.context.ChatIdFlag;
 import talmal.contact.messageSender.models.context.ChatMessage;
 import talmal.contact.messageSender.models.context.MessageIdFlag;
 import talmal.contact.messageSender.models.context.SenderType;
+import talmal.contact.messageSender.services.ratelimit.SlackApiTier;
+import talmal.contact.messageSender.services.ratelimit.SlackOperation;
+import talmal.contact.messageSender.services.ratelimit.SlackRequestRejectedException;
+import talmal.contact.messageSender.services.ratelimit.SlackRequestScheduler;
 
 @Slf4j
 @Service
@@ -59,11 +77,6 @@ public class SlackService
 	private static final String SLACK_USER_OWNER = "U03CSHQP35J";
 	private static final String SLACK_USER_ROBOT = "U03DE3JP1DW";
 
-	private static final String SLACK_EVENT_PAYLOAD_KEY_EVENT = "event";
-	private static final String SLACK_EVENT_PAYLOAD_KEY_THREAD_TS = "thread_ts";
-	private static final String SLACK_EVENT_PAYLOAD_KEY_USER = "user";
-	private static final String SLACK_EVENT_PAYLOAD_KEY_TYPE = "type";
-	private static final String SLACK_EVENT_PAYLOAD_KEY_SUBTYPE = "subtype";
 	private static final String SLACK_EVENT_TYPE_VALUE_MESSAGE = "message";
 	private static final String SLACK_EVENT_SUBTYPE_VALUE_BOT_MESSAGE = "bot_message";
 
@@ -72,28 +85,143 @@ public class SlackService
 
 	private static final String DEFAULT_USER_NAME = "";
 
+	// conversations.history / conversations.replies page size, slack recommends no more than 200
+	private static final int SLACK_HISTORY_PAGE_SIZE = 200;
+
+	// conversations.replies error of a chat id that is not a message in channel
+	private static final String SLACK_ERROR_THREAD_NOT_FOUND = "thread_not_found";
+
+	// chat.postMessage errors of a slack side failure - the same request may work later
+	private static final Set<String> SLACK_TRANSIENT_ERRORS = Set.of("internal_error", "fatal_error", "service_unavailable");
+
 	private final String channelName;
 	private String channelId;
 
 	private Slack apiClient = null;
 	private MethodsClient methodsClient = null;
+	private AsyncMethodsClient methodsAsyncClient = null;
 	private SocketModeClient socketModeClient;
 
 	@Autowired
-	@Qualifier(value = "inMemory")
+	@Qualifier(value = "activeCache")
 	private CacheInterface cache;
 
 	@Autowired
 	private MessageQueueService messageQueueService;
+
+	// every slack web api call goes through here, to stay within slack rate limits
+	@Autowired
+	private SlackRequestScheduler requestScheduler;
+
+	// cache warm-up on startup, loads threads started in the last hours
+	@Value(value = "${slack.warmup.enabled:false}")
+	private boolean isWarmUpEnabled;
+
+	@Value(value = "${slack.warmup.hours:24}")
+	private int warmUpHours;
+
+	// startup waits for warm-up at most this long, then continues with what is loaded
+	@Value(value = "${slack.warmup.timeBudgetInSeconds:30}")
+	private int warmUpTimeBudgetInSeconds;
+
+	@Value(value = "${slack.warmup.parallelism:4}")
+	private int warmUpParallelism;
+
+	// messages of a chat are sent in order, chats are sent in parallel on lanes
+	@Value(value = "${slack.sendLanes.count:8}")
+	private int sendLaneCount;
+
+	// messages waiting per lane before senders are pushed back
+	@Value(value = "${slack.sendLanes.depth:64}")
+	private int sendLaneDepth;
+
+	private OrderedLaneExecutor<String> sendLanes;
+
+	// socket mode events of a chat are handled in order, chats in parallel
+	private final OrderedLaneExecutor<String> eventLanes;
+
+	// on shutdown, time to handle events already queued (and acknowledged)
+	@Value(value = "${slack.eventLanes.drainSeconds:10}")
+	private long eventLaneDrainSeconds;
+
+	// merge messages a user types within this window into one slack post, 0 is off
+	@Value(value = "${slack.coalesce.windowMillis:0}")
+	private long coalesceWindowMillis;
+
+	@Value(value = "${slack.coalesce.maxMessages:10}")
+	private int coalesceMaxMessages;
+
+	private MessageCoalescer coalescer;
+
+	// responses of send requests with an idempotency key are kept this long, in
+	// memory - a retry after a restart or on another instance is sent again
+	@Value(value = "${slack.idempotency.windowSeconds:600}")
+	private long idempotencyWindowSeconds;
+
+	@Value(value = "${slack.idempotency.maxEntries:10000}")
+	private int idempotencyMaxEntries;
+
+	private IdempotencyStore<ChatMessage> idempotencyStore;
+
+	// replies are written to a local outbox and sent from it, so a slack outage
+	// delays them instead of losing them
+	@Value(value = "${slack.outbox.enabled:false}")
+	private boolean isOutboxEnabled;
+
+	@Value(value = "${slack.outbox.directory:slack-outbox}")
+	private String outboxDirectory;
+
+	@Value(value = "${slack.outbox.segmentSizeInKb:4096}")
+	private int outboxSegmentSizeInKb;
+
+	// appends are fsynced together at this interval
+	@Value(value = "${slack.outbox.flushIntervalMillis:10}")
+	private long outboxFlushIntervalMillis;
+
+	@Value(value = "${slack.outbox.retryIntervalMillis:5000}")
+	private long outboxRetryIntervalMillis;
+
+	private SlackOutbox outbox;
+
+	// a cached chat not read from slack for this long is refreshed with only its
+	// newer messages (delta sync), 0 trusts the cache (kept by socket events)
+	@Value(value = "${slack.sync.staleSeconds:0}")
+	private long syncStaleSeconds;
+
+	@Value(value = "${slack.sync.maxEntries:10000}")
+	private int syncMaxEntries;
+
+	private ChatSyncTracker syncTracker;
+
+	// chat ids slack did not find are answered as empty for this long, 0 is off
+	@Value(value = "${slack.missingChats.ttlSeconds:60}")
+	private long missingChatsTtlSeconds;
+
+	@Value(value = "${slack.missingChats.maxEntries:10000}")
+	private int missingChatsMaxEntries;
+
+	private MissingChatCache missingChats;
+
+	// batch loads read this many chats from slack at a time
+	@Value(value = "${slack.batch.parallelism:4}")
+	private int batchParallelism;
+
+	@Value(value = "${slack.batch.maxChats:50}")
+	private int batchMaxChats;
+
+	// concurrent loads of a chat from slack share one load
+	private final SingleFlight<String, ChatMessage> chatLoads = new SingleFlight<String, ChatMessage>();
 	
 	// TODO: use @refreshScope to set config values dynamically, and verify it works
 	// TODO: set load balancer cache. what is that about ?
 	//@SpanName(value = "getAllBooksFromConsumer") // TODO: i could not find this "name" in zipkin, where do i see it ?
 	
-	public SlackService(@Value("${slack.gogo}") String token, @Value("${slack.soso}") String socketToken, @Value("${slack.channelOwnerName}") String slackChannelOwnerName,
-		@Value("${slack.channelRobotName:Robot}") String slackChannelRobotName, @Value("${slack.channelId:}") String channelId, @Value("${slack.channelName:contact-me}") String channelName)
+	public SlackService(Slack apiClient, @Value("${slack.gogo}") String token, @Value("${slack.soso}") String socketToken, @Value("${slack.channelOwnerName}") String slackChannelOwnerName,
+		@Value("${slack.channelRobotName:Robot}") String slackChannelRobotName, @Value("${slack.channelId:}") String channelId, @Value("${slack.channelName:contact-me}") String channelName,
+		@Value("${slack.eventLanes.count:4}") int eventLaneCount, @Value("${slack.eventLanes.depth:256}") int eventLaneDepth)
 	{
-		this.apiClient = Slack.getInstance();
+		// shared http client and executor, tuned in SlackClientConfig
+		this.apiClient = apiClient;
 		this.SLACK_CHANNEL_OWNER_NAME = slackChannelOwnerName;
 		this.SLACK_CHANNEL_ROBOT_NAME = slackChannelRobotName;
 		this.channelId = channelId;
@@ -101,8 +229,13 @@ public class SlackService
 		this.token = new String(Base64.getDecoder().decode(token));
 		this.socketToken = new String(Base64.getDecoder().decode(socketToken));
 
+		// socket mode events are handled here, off the socket thread. created before
+		// the socket connects, so no event arrives before its lanes exist
+		this.eventLanes = new OrderedLaneExecutor<String>("slack-events", eventLaneCount, eventLaneDepth);
+
 		// Initialize an API Methods client with the given token
 		this.methodsClient = this.apiClient.methods(this.token);
+		this.methodsAsyncClient = this.apiClient.methodsAsync(this.token);
 		try // i am not using this.socketModeClient with try-with-resource 
 		// because i need to keep it outside of the local scope.
 		{
@@ -115,66 +248,7 @@ public class SlackService
 				@Override
 				public void handle(EventsApiEnvelope envelope)
 				{
-					ChatMessage message = null;
-					
-					// acknowledge event transmission back to slack
-					SlackService.this.socketModeClient.sendSocketModeResponse(new AckResponse(envelope.getEnvelopeId()));
-
-					// differentiate between messages coming from chat-to-slack to messages coming
-					// from slack-to-chat
-					SenderType messageSender = SlackService.this.getMessageSenderFromPayload(envelope.getPayload());
-					if (messageSender != null)
-					{
-						switch (messageSender)
-						{
-							case OWNER:
-							{
-								// message came from slack
-								// check if message came from an active conversation
-								JsonElement payloadJsonElement = envelope.getPayload();
-								String threadTs = SlackService.this.getActiveChatId(payloadJsonElement);
-								if (threadTs != null)
-								{
-									MessagePayload payload = SlackGson.fromJson(payloadJsonElement, MessagePayload.class);
-									String userName = SlackService.this.parseUserName(payload.getEvent().getUser(), SlackService.DEFAULT_USER_NAME);
-									message = new ChatMessage(threadTs, payload, userName);
-									log.debug("Message from slack: {}", envelope);
-									log.debug("Message parsed into: {}", message);
-								}
-								else
-								{
-									// message came from a closed conversation - nothing to do with it
-									log.debug("mmessage came from a closed conversation - nothing to do with it: {}", envelope);
-								}
-								break;
-							}
-							case USER:
-							{
-								// message came from user, than sent to slack, than slack sent this event - so
-								// nothing to do here
-								break;
-							}
-							case ROBOT:
-							{
-								log.debug("System message - nothing to do here.");
-								break;
-							}
-							default:
-							{
-								log.error("Unimplamented SenderType {}, from message ", messageSender, envelope.toString());
-								break;
-							}
-						}
-					}
-
-					if (message != null)
-					{
-						// save message to memory
-						SlackService.this.cache.addMessage(message);
-
-						// send received message to my chat using RabbitMQ
-						SlackService.this.messageQueueService.convertAndSend(MessagingConfig.FROM_SLACK_NEW_MESSAGE_QUEUE, message);
-					}
+					SlackService.this.acceptEvent(envelope);
 				}
 			});
 
@@ -220,19 +294,308 @@ public class SlackService
 		// make sure i have channel id called here because configuration file is only
 		// loaded in constructor, so it is not available than.
 		this.getChannelId();
+
+		this.sendLanes = new OrderedLaneExecutor<String>("slack-send", this.sendLaneCount, this.sendLaneDepth);
+		// error responses are not kept, so a retry sends again
+		this.idempotencyStore = new IdempotencyStore<ChatMessage>(this.idempotencyWindowSeconds, this.idempotencyMaxEntries,
+			message -> message.getMessageId().compareTo(MessageIdFlag.ERROR.name()) == 0);
+		this.syncTracker = new ChatSyncTracker(this.syncStaleSeconds, this.syncMaxEntries);
+		this.missingChats = new MissingChatCache(this.missingChatsTtlSeconds, this.missingChatsMaxEntries);
+		if (this.coalesceWindowMillis > 0)
+		{
+			this.coalescer = new MessageCoalescer(this.coalesceWindowMillis, this.coalesceMaxMessages, message -> this.sendMessageActual(message));
+		}
+
+		if (this.isOutboxEnabled)
+		{
+			// outbox messages are sent in their chat lane, behind messages sent before them
+			this.outbox = new SlackOutbox(this.outboxDirectory, this.outboxSegmentSizeInKb, this.outboxFlushIntervalMillis, this.outboxRetryIntervalMillis,
+				message -> this.sendLanes.submit(message.getChatId(), () -> this.sendPendingMessage(message)));
+		}
+
+		// warm-up runs before startup completes, so the service registers and
+		// accepts traffic only after warm-up is done or its time budget is over
+		if (this.isWarmUpEnabled)
+		{
+			this.warmUpCache();
+		}
 	}
 
 	@PreDestroy
-	public void close() throws Exception
+	public void close()
 	{
-		// close slack resources
-		this.socketModeClient.disconnect();
-		this.socketModeClient.close();
-		this.apiClient.close();
+		// pending outbox messages stay on disk for the next start
+		if (this.outbox != null)
+		{
+			this.outbox.close();
+		}
+
+		this.sendLanes.close();
+
+		try
+		{
+			if (this.socketModeClient != null)
+			{
+				this.socketModeClient.disconnect();
+				this.socketModeClient.close();
+			}
+
+			// after the socket, so no event is accepted into closed lanes. queued
+			// events were acknowledged already - slack will not resend them
+			this.eventLanes.close(Duration.ofSeconds(this.eventLaneDrainSeconds));
 
+			this.apiClient.close();
+		}
+		catch (Exception e)
+		{
+			log.error(e.getMessage(), e);
+		}
+
+		// last, after every lane that writes to it is closed
+		log.info("cache statistics: {}", this.cache.getStatistics());
 		this.cache.close();
 	}
 
+	/**
+	 * hand a socket mode event to the event lane of its chat, and acknowledge it
+	 * at once - handling (classify, cache, publish) runs on the lane, so a slow
+	 * broker does not hold the socket thread. events of a chat are handled in
+	 * order.
+	 * 
+	 * overflow policy: when the lane of the chat is full the event is not
+	 * acknowledged, so slack sends it again (socket mode retries unacknowledged
+	 * events a few times). the socket thread never blocks and an acknowledged
+	 * event is never dropped, but a redelivered event may be handled after later
+	 * events of its chat.
+	 * @param envelope - slack event
+	 */
+	private void acceptEvent(EventsApiEnvelope envelope)
+	{
+		// the only read of the payload - lane key and handling use its fields
+		SlackEvent event = SlackEvent.parse(envelope.getPayload());
+		CompletableFuture<Void> handled = this.eventLanes.trySubmit((event != null) ? event.chatKey() : null, () ->
+		{
+			try
+			{
+				this.handleEvent(envelope, event);
+			}
+			catch (RuntimeException e)
+			{
+				// the event was accepted - a failure here is not a reason for slack to resend it
+				log.error("failed to handle event {}: {}", envelope.getEnvelopeId(), e.getMessage(), e);
+			}
+			return CompletableFuture.completedFuture(null);
+		});
+
+		// a rejected task fails at once, an accepted one never fails
+		if (handled.isCompletedExceptionally())
+		{
+			log.warn("event lanes are full ({} queued events, {} rejected), envelope {} is left for slack to resend", this.eventLanes.getQueuedTasks(),
+				this.eventLanes.getRejectedTasks(), envelope.getEnvelopeId());
+		}
+		else
+		{
+			// acknowledge event transmission back to slack
+			this.socketModeClient.sendSocketModeResponse(new AckResponse(envelope.getEnvelopeId()));
+		}
+	}
+
+	/**
+	 * handle a socket mode event - a message from slack to an active chat is
+	 * cached and sent to chat
+	 * @param envelope - slack event
+	 * @param event    - fields of event payload, null if it has no event
+	 */
+	private void handleEvent(EventsApiEnvelope envelope, SlackEvent event)
+	{
+		ChatMessage message = null;
+
+		// differentiate between messages coming from chat-to-slack to messages coming
+		// from slack-to-chat
+		SenderType messageSender = this.getMessageSenderFromEvent(event);
+		if (messageSender != null)
+		{
+			switch (messageSender)
+			{
+				case OWNER:
+				{
+					// message came from slack
+					// check if message came from an active conversation
+					String threadTs = this.getActiveChatId(event);
+					if (threadTs != null)
+					{
+						String userName = this.parseUserName(event.user(), SlackService.DEFAULT_USER_NAME);
+						message = new ChatMessage(threadTs, event, userName);
+						log.debug("Message from slack: {}", envelope);
+						log.debug("Message parsed into: {}", message);
+					}
+					else
+					{
+						// message came from a closed conversation - nothing to do with it
+						log.debug("mmessage came from a closed conversation - nothing to do with it: {}", envelope);
+					}
+					break;
+				}
+				case USER:
+				{
+					// message came from user, than sent to slack, than slack sent this event - so
+					// nothing to do here
+					break;
+				}
+				case ROBOT:
+				{
+					log.debug("System message - nothing to do here.");
+					break;
+				}
+				default:
+				{
+					log.error("Unimplamented SenderType {}, from message ", messageSender, envelope.toString());
+					break;
+				}
+			}
+		}
+
+		if (message != null)
+		{
+			// save message to memory
+			this.cache.addMessage(message);
+
+			// send received message to my chat using RabbitMQ
+			this.messageQueueService.convertAndSend(MessagingConfig.FROM_SLACK_NEW_MESSAGE_QUEUE, message);
+		}
+	}
+
+	/**
+	 * @return socket mode events waiting in event lanes
+	 */
+	public int getQueuedEvents()
+	{
+		return this.eventLanes.getQueuedTasks();
+	}
+
+	/**
+	 * @return socket mode events refused because their event lane was full, left
+	 *         for slack to resend
+	 */
+	public long getRejectedEvents()
+	{
+		return this.eventLanes.getRejectedTasks();
+	}
+
+	/**
+	 * load threads started in the last slack.warmup.hours into cache, so the
+	 * first refresh of active chats after a restart does not go to slack. threads
+	 * are loaded in parallel, requests are paced by the request scheduler and
+	 * loading stops when the time budget runs out or the cache is full.
+	 */
+	private void warmUpCache()
+	{
+		long startTime = System.nanoTime();
+		long deadline = startTime + TimeUnit.SECONDS.toNanos(this.warmUpTimeBudgetInSeconds);
+		String oldest = Tools.instantToSlackTs(Instant.now().minus(Duration.ofHours(this.warmUpHours)));
+		AtomicInteger loadedChats = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(this.warmUpParallelism);
+
+		try
+		{
+			String cursor = null;
+			do
+			{
+				String pageCursor = cursor;
+				cursor = null;
+				ConversationsHistoryResponse response = this.requestScheduler.execute(SlackOperation.HISTORY, SlackApiTier.TIER_3, deadline, () -> this.methodsClient.conversationsHistory(r -> r
+					.token(this.token).channel(this.channelId).oldest(oldest).limit(SlackService.SLACK_HISTORY_PAGE_SIZE).cursor(pageCursor)));
+
+				if (response.isOk())
+				{
+					for (Message message : response.getMessages())
+					{
+						// every top level message starts a chat
+						executor.execute(() -> 
+						{
+							if (this.warmUpChat(message, deadline))
+							{
+								loadedChats.incrementAndGet();
+							}
+						});
+					}
+
+					if (response.isHasMore() && response.getResponseMetadata() != null)
+					{
+						cursor = response.getResponseMetadata().getNextCursor();
+					}
+				}
+				else
+				{
+					log.error("Error: {}, warm-up stopped for channel id: {}", response.getError(), this.channelId);
+				}
+			}
+			while (cursor != null && !cursor.isEmpty());
+
+			executor.shutdown();
+			if (!executor.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS))
+			{
+				log.warn("cache warm-up time budget of {} seconds ran out", this.warmUpTimeBudgetInSeconds);
+			}
+		}
+		catch (IOException | SlackApiException e)
+		{
+			// time budget ran out while paging (SlackRequestRejectedException), or slack error
+			log.error("warm-up error: {}", e.getMessage(), e);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+
+		log.info("cache warm-up loaded {} chats in {} ms", loadedChats.get(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+	}
+
+	/**
+	 * load a single chat into cache during warm-up
+	 * @param firstMessage - first message in chat, its ts is the chat id
+	 * @param deadline     - warm-up deadline (nano)
+	 * @return true if chat was loaded
+	 */
+	private boolean warmUpChat(Message firstMessage, long deadline)
+	{
+		boolean result = false;
+		String chatId = firstMessage.getTs();
+
+		// chat may already be in cache (restored by a persistent cache)
+		if (chatId != null && !this.cache.isChatExists(chatId) && !this.cache.isMemoryLimitReached())
+		{
+			List<Message> chatMessages = new ArrayList<Message>();
+			chatMessages.add(firstMessage);
+
+			// a message without replies has no thread to fetch
+			if (firstMessage.getReplyCount() == null || firstMessage.getReplyCount() > 0)
+			{
+				List<Message> replies = this.fetchMessageReplies(chatId, null, deadline);
+				if (replies != null)
+				{
+					chatMessages.addAll(replies);
+				}
+				else
+				{
+					chatMessages = null;
+				}
+			}
+
+			if (chatMessages != null)
+			{
+				result = this.cache.addMessages(chatMessages.stream().map(message -> this.toChatMessage(message)).collect(Collectors.toList()));
+				this.syncTracker.markSynced(chatId, chatMessages.get(chatMessages.size() - 1).getTs(), System.nanoTime());
+			}
+		}
+
+		return result;
+	}
+
 	/**
 	 * erase chat from memory
 	 * 
@@ -241,108 +604,301 @@ public class SlackService
 	public void closeChat(String chatId)
 	{
 		SlackService.this.cache.removeMessages(chatId);
+		this.syncTracker.remove(chatId);
 	}
 
 	/**
-	 * start a conversation in slack channel, or send reply to existing conversation
+	 * start a conversation in slack channel, or send reply to existing conversation.
+	 * blocks until the message is sent, and while its send lane is full.
 	 * 
 	 * @param chatMessage - message details, use MessageIdFlag as flag to signal non
 	 *                    message operations, like closing chat.
-	 * @return - accepted input message, or error message (flag is in messageId
-	 *         field).
+	 * @return - accepted input message, pending message when the outbox is on, or
+	 *         error message (flag is in messageId field). null for unknown
+	 *         message types.
 	 */
 	public ChatMessage sendMessage(MessageToSlack chatMessage)
 	{
 		ChatMessage result = null;
 		log.debug("in sendMessage() with message: {}", chatMessage);
 
-		// check if "close chat" message
-		if (chatMessage instanceof ChatMessage)
+		if (chatMessage instanceof ChatMessage || chatMessage instanceof ContactDetails)
 		{
-			ChatMessage actuallChatMessage = (ChatMessage) chatMessage;
+			result = this.dispatch(chatMessage, true).exceptionally(e -> this.createSendErrorMessage(chatMessage, e.getMessage())).join();
+		}
 
-			// check for "close chat" flag
-			if (actuallChatMessage.getMessageId().compareTo(MessageIdFlag.CLOSE_CHAT.name()) == 0)
-			{
-				// this is a "close chat" message to end chat
-				// erase chat from cache
-				this.cache.removeMessages(actuallChatMessage.getChatId());
+		return result;
+	}
 
-				// if client side did not send a "close chat" message, the memory will
-				// fill quickly, so erase oldest chat from cache.
-				// if chat is not found in cache it is loaded from slack
-				if (this.cache.isMemoryLimitReached())
-				{
-					this.cache.removeOldest();
-				}
+	/**
+	 * non blocking version of sendMessage - the message is queued in its send
+	 * lane and the slack request runs on the async methods client, so the calling
+	 * thread (a netty event loop on web requests) does not wait for slack.
+	 * 
+	 * @param chatMessage - message details, use MessageIdFlag as flag to signal non
+	 *                    message operations, like closing chat.
+	 * @return - accepted input message, pending message when the outbox is on, or
+	 *         error message (flag is in messageId field). empty for unknown
+	 *         message types. RejectedExecutionException if the send lane of the
+	 *         chat is full.
+	 */
+	public Mono<ChatMessage> sendMessageAsync(MessageToSlack chatMessage)
+	{
+		Mono<ChatMessage> result = Mono.empty();
+		log.debug("in sendMessageAsync() with message: {}", chatMessage);
 
-				// return input message as response, to close the conversation on the client
-				// side
-				result = actuallChatMessage;
-			}
-			else
-			{
-				result = this.sendMessageActual(chatMessage);
-			}
-		}
-		else if (chatMessage instanceof ContactDetails)
+		if (chatMessage instanceof ChatMessage || chatMessage instanceof ContactDetails)
 		{
-			result = this.sendMessageActual(chatMessage);
+			result = Mono.fromFuture(() -> this.dispatch(chatMessage, false));
 		}
 
 		return result;
 	}
 
-	private ChatMessage sendMessageActual(MessageToSlack chatMessage)
+	/**
+	 * queue message in the send lane of its chat, merged with messages typed right
+	 * before it when coalescing is on. with the outbox on, replies are written to
+	 * the outbox instead and answered as pending, and "close chat" of a chat with
+	 * pending replies is written behind them. a repeated idempotency key gets
+	 * the response of the first request, without sending again.
+	 * @param chatMessage - message details
+	 * @param isBlocking  - wait for room when lane is full, or fail at once
+	 * @return accepted input message, or error message
+	 */
+	private CompletableFuture<ChatMessage> dispatch(MessageToSlack chatMessage, boolean isBlocking)
 	{
-		ChatMessage result = null;
+		return this.idempotencyStore.execute(chatMessage.getIdempotencyKey(), () -> this.dispatchActual(chatMessage, isBlocking));
+	}
 
-		// input message is a regular message - send it to slack
-		try
+	private CompletableFuture<ChatMessage> dispatchActual(MessageToSlack chatMessage, boolean isBlocking)
+	{
+		CompletableFuture<ChatMessage> result = null;
+		Function<Supplier<CompletableFuture<ChatMessage>>, CompletableFuture<ChatMessage>> laneSubmit = task -> isBlocking 
+			? this.sendLanes.submit(chatMessage.getChatId(), task)
+			: this.sendLanes.trySubmit(chatMessage.getChatId(), task);
+
+		// only replies in existing chats are merged or go through the outbox - new
+		// chats need their slack ts at once, "close chat" is not sent to slack
+		boolean isCloseChat = chatMessage instanceof ChatMessage && chatMessage.getChatId() != null
+			&& ((ChatMessage) chatMessage).getMessageId().compareTo(MessageIdFlag.CLOSE_CHAT.name()) == 0;
+		boolean isReply = chatMessage instanceof ChatMessage && chatMessage.getChatId() != null && !isCloseChat;
+		if (isReply)
 		{
-			// build request to slack
-			ChatPostMessageRequestBuilder requestBuilder = ChatPostMessageRequest.builder().channel(this.getChannelId()).username(chatMessage.getName())
-				// TODO: You can use a blocks[] array to send richer content
-				.text(chatMessage.getText()).parse("none").unfurlLinks(false).unfurlMedia(false);
+			// chat may have been created since it was not found
+			this.missingChats.remove(chatMessage.getChatId());
+		}
 
-			// already existing chats have a chat id - attach input message to existing chat
-			if (chatMessage.getChatId() != null)
+		if (this.outbox != null && isReply)
+		{
+			ChatMessage reply = (ChatMessage) chatMessage;
+			result = this.outbox.append(reply).thenApply(written -> new ChatMessage(reply.getChatId(), MessageIdFlag.PENDING.name(), reply.getName(),
+				reply.getMessage(), Instant.now(), SenderType.USER));
+		}
+		else if (this.outbox != null && isCloseChat && this.outbox.hasPending(chatMessage.getChatId()))
+		{
+			// closing before the pending replies are sent would let them cache the
+			// chat again
+			ChatMessage closeChat = (ChatMessage) chatMessage;
+			result = this.outbox.append(closeChat).thenApply(written -> closeChat);
+		}
+		else if (this.coalescer != null && isReply)
+		{
+			result = this.coalescer.send((ChatMessage) chatMessage, laneSubmit);
+		}
+		else
+		{
+			if (this.coalescer != null && chatMessage.getChatId() != null)
 			{
-				// chat already exist - copy chat id
-				requestBuilder.threadTs(chatMessage.getChatId());
+				// an open batch of the chat goes first, e.g. before its "close chat"
+				this.coalescer.seal(chatMessage.getChatId());
 			}
 
-			// send the message to slack
-			ChatPostMessageResponse response = this.methodsClient.chatPostMessage(requestBuilder.build());
-			if (!response.isOk())
+			result = laneSubmit.apply(() -> this.sendMessageActual(chatMessage));
+		}
+
+		return result;
+	}
+
+	/**
+	 * runs in the send lane of the message chat, so messages of a chat (and its
+	 * closing) reach slack in order, while different chats are sent in parallel
+	 * @param chatMessage - message details
+	 * @return accepted input message, or error message
+	 */
+	private CompletableFuture<ChatMessage> sendMessageActual(MessageToSlack chatMessage)
+	{
+		CompletableFuture<ChatMessage> result = null;
+
+		// check for "close chat" flag
+		if (chatMessage instanceof ChatMessage && ((ChatMessage) chatMessage).getMessageId().compareTo(MessageIdFlag.CLOSE_CHAT.name()) == 0)
+		{
+			// this is a "close chat" message to end chat
+			// erase chat from cache
+			this.cache.removeMessages(chatMessage.getChatId());
+			this.syncTracker.remove(chatMessage.getChatId());
+
+			// if client side did not send a "close chat" message, the memory will
+			// fill quickly, so erase oldest chats from cache until under limit.
+			// if chat is not found in cache it is loaded from slack
+			List<String> evictedChatIds = this.cache.evictUntilUnderMemoryLimit();
+			if (!evictedChatIds.isEmpty())
 			{
-				// tell client about error from slack
-				result = new ChatMessage(ChatIdFlag.INVALID.name(), MessageIdFlag.ERROR.name(), chatMessage.getName(),
-					String.format("Error: %s. Original message: %s.", response.getError(), chatMessage.toString()), Instant.now(), SenderType.USER);
-				log.error("Error - message not sent: {}", response.getError());
+				log.debug("evicted chats: {}, cache statistics: {}", evictedChatIds, this.cache.getStatistics());
 			}
-			else
+
+			// return input message as response, to close the conversation on the client
+			// side
+			result = CompletableFuture.completedFuture((ChatMessage) chatMessage);
+		}
+		else
+		{
+			// input message is a regular message - send it to slack
+			result = this.postMessage(chatMessage).handle((response, e) ->
+				{
+					ChatMessage message = null;
+					if (e == null)
+					{
+						message = this.parsePostMessageResponse(chatMessage, response);
+					}
+					else
+					{
+						// tell client about exception from slack
+						log.error(e.getMessage(), e);
+						message = this.createSendErrorMessage(chatMessage, e.getMessage());
+					}
+
+					// save message to memory
+					this.cache.addMessage(message);
+					log.debug("message accepted at slack: {}", message);
+					return message;
+				});
+		}
+
+		return result;
+	}
+
+	/**
+	 * send an outbox message to slack, runs in the send lane of its chat. the
+	 * sent message is published to the chat like a message from slack, so the
+	 * client gets the slack ts of its pending message.
+	 * a message slack refused is dropped, and an error message is published to
+	 * the chat instead. a "close chat" from the outbox closes the chat, after
+	 * the replies written before it.
+	 * @param chatMessage - reply (or "close chat") from the outbox
+	 * @return message accepted at slack, or error message if slack refused it.
+	 *         fails if slack was not reached or failed on its side, so the
+	 *         outbox retries it.
+	 */
+	private CompletableFuture<ChatMessage> sendPendingMessage(ChatMessage chatMessage)
+	{
+		CompletableFuture<ChatMessage> result = null;
+		if (chatMessage.getMessageId().compareTo(MessageIdFlag.CLOSE_CHAT.name()) == 0)
+		{
+			result = this.sendMessageActual(chatMessage);
+		}
+		else
+		{
+			result = this.postMessage(chatMessage).thenCompose(response ->
 			{
-				// parse slack response to chat message
-				result = new ChatMessage(response);
-			}
+				CompletableFuture<ChatMessage> sendResult = null;
+				if (!response.isOk() && SlackService.SLACK_TRANSIENT_ERRORS.contains(response.getError()))
+				{
+					log.warn("outbox message not accepted at slack, will retry: {}", response.getError());
+					sendResult = CompletableFuture.failedFuture(new IOException(String.format("slack error: %s", response.getError())));
+				}
+				else
+				{
+					ChatMessage message = this.parsePostMessageResponse(chatMessage, response);
+					if (response.isOk())
+					{
+						this.cache.addMessage(message);
+						log.debug("outbox message accepted at slack: {}", message);
+					}
+					else
+					{
+						// a retry gets the same answer - drop it, and tell the client in its chat
+						message = new ChatMessage(chatMessage.getChatId(), message.getMessageId(), message.getName(), message.getMessage(), message.getDate(),
+							message.getSenderType());
+						log.error("outbox message dropped: {}", chatMessage);
+					}
+
+					this.messageQueueService.convertAndSend(MessagingConfig.FROM_SLACK_NEW_MESSAGE_QUEUE, message);
+					sendResult = CompletableFuture.completedFuture(message);
+				}
 
+				return sendResult;
+			});
 		}
-		catch (IOException | SlackApiException e)
+
+		return result;
+	}
+
+	/**
+	 * send input message to slack within the chat.postMessage rate
+	 * @param chatMessage - message to send
+	 * @return slack response, fails if slack was not reached
+	 */
+	private CompletableFuture<ChatPostMessageResponse> postMessage(MessageToSlack chatMessage)
+	{
+		return this.requestScheduler.executeAsync(SlackOperation.SEND, SlackApiTier.POST_MESSAGE, () -> this.methodsAsyncClient.chatPostMessage(this.buildPostMessageRequest(chatMessage)));
+	}
+
+	/**
+	 * build slack request for input message
+	 * @param chatMessage - message to send
+	 * @return chat.postMessage request
+	 */
+	private ChatPostMessageRequest buildPostMessageRequest(MessageToSlack chatMessage)
+	{
+		// build request to slack
+		ChatPostMessageRequestBuilder requestBuilder = ChatPostMessageRequest.builder().channel(this.getChannelId()).username(chatMessage.getName())
+			// TODO: You can use a blocks[] array to send richer content
+			.text(chatMessage.getText()).parse("none").unfurlLinks(false).unfurlMedia(false);
+
+		// already existing chats have a chat id - attach input message to existing chat
+		if (chatMessage.getChatId() != null)
 		{
-			// tell client about exception from slack
-			result = new ChatMessage(ChatIdFlag.INVALID.name(), MessageIdFlag.ERROR.name(), chatMessage.getName(),
-				String.format("Error: %s. Original message: %s.", e.getMessage(), chatMessage.toString()), Instant.now(), SenderType.USER);
-			log.error(e.getMessage(), e);
+			// chat already exist - copy chat id
+			requestBuilder.threadTs(chatMessage.getChatId());
 		}
 
-		// save message to memory
-		this.cache.addMessage(result);
-		log.debug("message accepted at slack: {}", result.toString());
+		return requestBuilder.build();
+	}
+
+	/**
+	 * @param chatMessage - sent message
+	 * @param response    - slack response to sent message
+	 * @return message accepted at slack, or error message
+	 */
+	private ChatMessage parsePostMessageResponse(MessageToSlack chatMessage, ChatPostMessageResponse response)
+	{
+		ChatMessage result = null;
+		if (!response.isOk())
+		{
+			// tell client about error from slack
+			result = this.createSendErrorMessage(chatMessage, response.getError());
+			log.error("Error - message not sent: {}", response.getError());
+		}
+		else
+		{
+			// parse slack response to chat message
+			result = new ChatMessage(response);
+		}
 
 		return result;
 	}
 
+	/**
+	 * @param chatMessage - message that was not sent
+	 * @param error       - error description
+	 * @return error message to return to client (flag is in messageId field)
+	 */
+	private ChatMessage createSendErrorMessage(MessageToSlack chatMessage, String error)
+	{
+		return new ChatMessage(ChatIdFlag.INVALID.name(), MessageIdFlag.ERROR.name(), chatMessage.getName(),
+			String.format("Error: %s. Original message: %s.", error, chatMessage.toString()), Instant.now(), SenderType.USER);
+	}
+
 	/**
 	 * get messages of specific conversation
 	 * 
@@ -351,144 +907,420 @@ public class SlackService
 	 */
 	public List<ChatMessage> getChatMessages(String chatId)
 	{
-		List<ChatMessage> result = new ArrayList<ChatMessage>();
+		return this.streamChatMessages(chatId).collectList().block();
+	}
 
-		if (chatId != null)
+	/**
+	 * get messages of several conversations
+	 * 
+	 * @param chatIds - slack conversation timestamps to get
+	 * @return - chat messages by chat id, in request order. a chat that is not
+	 *         found has an empty list, a chat that failed to load ends with an
+	 *         ERROR message.
+	 * @throws IllegalArgumentException if there are more than slack.batch.maxChats
+	 *                                  chat ids
+	 */
+	public Map<String, List<ChatMessage>> getChatsMessages(List<String> chatIds)
+	{
+		Map<String, List<ChatMessage>> result = new LinkedHashMap<String, List<ChatMessage>>();
+		this.toBatchChatIds(chatIds).forEach(chatId -> result.put(chatId, new ArrayList<ChatMessage>()));
+
+		this.streamChatsMessages(chatIds).toIterable()
+			.forEach(message -> result.computeIfAbsent(message.getChatId(), chatId -> new ArrayList<ChatMessage>()).add(message));
+		return result;
+	}
+
+	/**
+	 * stream messages of several conversations in one response. cached chats are
+	 * sent at once, chats missing in cache are loaded from slack in parallel (up
+	 * to slack.batch.parallelism at a time, each load within the slack request
+	 * scheduler budgets). messages of a chat keep their order, messages of
+	 * different chats interleave - each message carries its chat id. a chat
+	 * that fails to load (shed, circuit open, failed page) ends with an ERROR
+	 * message of its chat, the other chats of the batch are still sent.
+	 * 
+	 * @param chatIds - slack conversation timestamps to get
+	 * @return - chat messages of all found chats
+	 * @throws IllegalArgumentException if there are more than slack.batch.maxChats
+	 *                                  chat ids
+	 */
+	public Flux<ChatMessage> streamChatsMessages(List<String> chatIds)
+	{
+		List<String> batchChatIds = this.toBatchChatIds(chatIds);
+		return Flux.defer(() ->
 		{
-			// look for chat in cache
-			List<ChatMessage> messages = this.cache.getMessages(chatId);
-			if (messages != null)
+			// cached chats first, so they are sent before any slack round trip
+			Map<Boolean, List<String>> isCachedChatIds = batchChatIds.stream().collect(Collectors.partitioningBy(chatId -> this.cache.isChatExists(chatId)));
+			List<String> orderedChatIds = new ArrayList<String>(isCachedChatIds.get(true));
+			orderedChatIds.addAll(isCachedChatIds.get(false));
+
+			return Flux.fromIterable(orderedChatIds).flatMap(chatId -> this.streamChatMessages(chatId).onErrorResume(e -> Flux.just(this.createLoadErrorMessage(chatId, e))),
+				Math.max(1, this.batchParallelism));
+		});
+	}
+
+	/**
+	 * @param chatId - chat that failed to load
+	 * @param e      - load failure
+	 * @return error message in the failed chat
+	 */
+	private ChatMessage createLoadErrorMessage(String chatId, Throwable e)
+	{
+		log.warn("failed to load chat {} of a batch: {}", chatId, e.getMessage());
+		return new ChatMessage(chatId, MessageIdFlag.ERROR.name(), this.SLACK_CHANNEL_ROBOT_NAME, String.format("Error: %s.", e.getMessage()), Instant.now(),
+			SenderType.USER);
+	}
+
+	/**
+	 * @param chatIds - requested chat ids
+	 * @return distinct non null chat ids, in request order
+	 * @throws IllegalArgumentException if there are more than slack.batch.maxChats
+	 *                                  chat ids
+	 */
+	private List<String> toBatchChatIds(List<String> chatIds)
+	{
+		List<String> result = List.of();
+		if (chatIds != null)
+		{
+			result = chatIds.stream().filter(chatId -> chatId != null).distinct().collect(Collectors.toList());
+			if (result.size() > this.batchMaxChats)
 			{
-				result = messages;
+				throw new IllegalArgumentException("batch of " + result.size() + " chats is over the limit of " + this.batchMaxChats);
 			}
-			else
+		}
+
+		return result;
+	}
+
+	/**
+	 * stream messages of specific conversation. a chat missing in cache is loaded
+	 * from slack page by page, each page is sent on as it arrives. concurrent
+	 * callers of the same chat share one load (see SingleFlight), which runs to
+	 * its end and caches the chat. a stale cached chat gets only its newer messages from slack
+	 * (see slack.sync.staleSeconds).
+	 * 
+	 * @param chatId - slack conversation timestamp to get
+	 * @return - chat messages, first message first. empty if chat is not found.
+	 *         fails with SlackRequestRejectedException if slack could not be
+	 *         asked now (history requests are shed).
+	 */
+	public Flux<ChatMessage> streamChatMessages(String chatId)
+	{
+		Flux<ChatMessage> result = Flux.empty();
+
+		if (chatId != null)
+		{
+			result = Flux.defer(() ->
 			{
-				// chat not found in cache - fetch chat messages from slack
-				List<Message> chatMessages = this.fetchHistory(chatId);
+				Flux<ChatMessage> messages = null;
 
-				// parse conversation
-				if (chatMessages != null && !chatMessages.isEmpty())
+				// look for chat in cache
+				List<ChatMessage> cachedMessages = this.cache.getMessages(chatId);
+				if (cachedMessages != null && this.syncTracker.isStale(chatId, System.nanoTime()))
 				{
-					// parse slack messages into chat messages
-					result = chatMessages.stream().map(message ->
-					{
-						// parse slack message into chat message
-						ChatMessage chatMessage = new ChatMessage((message.getThreadTs() == null) ? message.getTs() : message.getThreadTs(), message.getTs(),
-							this.parseUserName(message.getUser(), message.getUsername()), message.getText(), Tools.slackTsToInstant(message.getTs()),
-							this.getMessageSender(message.getUser(), message.getSubtype()));
+					// blocking slack call - keep it off the caller thread
+					messages = this.chatLoads.execute(chatId, () -> Mono.fromCallable(() -> this.syncChat(chatId, cachedMessages))
+						.subscribeOn(Schedulers.boundedElastic()).flatMapMany(Flux::fromIterable));
+				}
+				else if (cachedMessages != null)
+				{
+					messages = Flux.fromIterable(cachedMessages);
+				}
+				else if (this.missingChats.isMissing(chatId, System.nanoTime()))
+				{
+					// slack did not find this chat lately - do not ask again
+					log.debug("chat {} is known to be missing", chatId);
+					messages = Flux.empty();
+				}
+				else
+				{
+					// chat not found in cache - fetch chat messages from slack, once for
+					// all concurrent callers
+					messages = this.chatLoads.execute(chatId, () -> this.loadChatMessages(chatId));
+				}
+
+				return messages;
+			});
+		}
 
-						return chatMessage;
-					}).collect(Collectors.toList());
+		return result;
+	}
 
-					// save messages in memory - for low latency user refresh
-					this.cache.addMessages(result);
+	/**
+	 * load chat from slack page by page, and cache it when fully loaded. a chat
+	 * slack did not find is remembered as missing. a failed page fails the load
+	 * after the pages sent so far - a partly loaded chat is not cached.
+	 * @param chatId - slack conversation timestamp to get
+	 * @return - chat messages, first message first. empty if chat is not found.
+	 *         fails with SlackRequestRejectedException if a page request was
+	 *         not sent (history bulkhead full, circuit open, rate limit).
+	 */
+	private Flux<ChatMessage> loadChatMessages(String chatId)
+	{
+		List<ChatMessage> loadedMessages = new ArrayList<ChatMessage>();
+		RepliesCursor repliesCursor = new RepliesCursor(chatId);
+		return Flux.<List<ChatMessage>, RepliesCursor>generate(() -> repliesCursor, (cursor, sink) ->
+		{
+			List<ChatMessage> page = this.fetchRepliesPage(cursor);
+			if (page != null)
+			{
+				sink.next(page);
+			}
+			else if (cursor.error != null)
+			{
+				// not an empty or a fully read chat - the caller should retry later
+				sink.error(cursor.error);
+			}
+			else
+			{
+				sink.complete();
+			}
+			return cursor;
+		}).subscribeOn(Schedulers.boundedElastic()).concatMapIterable(page ->
+		{
+			loadedMessages.addAll(page);
+			return page;
+		}).doOnComplete(() ->
+		{
+			// all pages were read - save messages in memory, for low latency user refresh
+			if (!loadedMessages.isEmpty())
+			{
+				this.cache.addMessages(loadedMessages);
+				this.syncTracker.markSynced(chatId, loadedMessages.get(loadedMessages.size() - 1).getMessageId(), System.nanoTime());
+			}
+			else
+			{
+				// no chat found for input chatId
+				log.debug("no chat found for input chatId: {}", chatId);
+				if (repliesCursor.isNotFound)
+				{
+					this.missingChats.addMissing(chatId, System.nanoTime());
 				}
-				else
+			}
+		});
+	}
+
+	/**
+	 * delta sync - add messages newer than the newest one read from slack to a
+	 * cached chat. only replies after that ts are fetched, instead of the whole
+	 * thread.
+	 * @param chatId         - cached chat
+	 * @param cachedMessages - messages of chat in cache
+	 * @return messages of chat, the cached ones if slack could not be read
+	 */
+	private List<ChatMessage> syncChat(String chatId, List<ChatMessage> cachedMessages)
+	{
+		List<ChatMessage> result = cachedMessages;
+
+		// a chat not read from slack by this instance (evicted from tracker, restored by
+		// a persistent cache) syncs from its newest cached message
+		String oldest = this.syncTracker.getNewestTs(chatId);
+		if (oldest == null && !cachedMessages.isEmpty())
+		{
+			oldest = cachedMessages.get(cachedMessages.size() - 1).getMessageId();
+		}
+
+		long now = System.nanoTime();
+		List<Message> newerMessages = this.fetchMessageReplies(chatId, oldest, this.requestScheduler.getDefaultDeadline());
+		if (newerMessages != null)
+		{
+			if (!newerMessages.isEmpty())
+			{
+				this.cache.addMessages(newerMessages.stream().map(message -> this.toChatMessage(message)).collect(Collectors.toList()));
+				oldest = newerMessages.get(newerMessages.size() - 1).getTs();
+
+				// chat may have been evicted meanwhile, then keep what was read
+				List<ChatMessage> syncedMessages = this.cache.getMessages(chatId);
+				if (syncedMessages != null)
 				{
-					// no chat found for input chatId
-					log.debug("no chat found for input chatId: {}", chatId);
+					result = syncedMessages;
 				}
 			}
+			log.debug("delta sync of chat {} read {} new messages", chatId, newerMessages.size());
+			this.syncTracker.markSynced(chatId, oldest, now);
 		}
 
 		return result;
 	}
 
 	/**
-	 * Fetch conversation history using channel ID and chat id
-	 * 
-	 * @param chatId - conversation id to fetch (slack timestamp)
+	 * parse slack message into chat message
+	 * @param message - slack message
+	 * @return chat message
 	 */
-	private List<Message> fetchHistory(String chatId)
+	private ChatMessage toChatMessage(Message message)
 	{
-		List<Message> result = new ArrayList<Message>();
+		return new ChatMessage((message.getThreadTs() == null) ? message.getTs() : message.getThreadTs(), message.getTs(),
+			this.parseUserName(message.getUser(), message.getUsername()), message.getText(), Tools.slackTsToInstant(message.getTs()),
+			this.getMessageSender(message.getUser(), message.getSubtype()));
+	}
 
-		if (chatId != null)
+	/**
+	 * fetch next page of a conversation from slack - the first message and its
+	 * replies
+	 * @param cursor - conversation paging state, moved to the next page
+	 * @return chat messages of the page, or null when there are no more pages,
+	 *         the chat is not found or the request failed (see cursor.error)
+	 */
+	private List<ChatMessage> fetchRepliesPage(RepliesCursor cursor)
+	{
+		List<ChatMessage> result = null;
+
+		if (!cursor.isDone)
 		{
-			// keep messages in memory
+			cursor.isDone = true;
 			try
 			{
-				// get a conversation from slack, created at input timestamp (chatId)
-				ConversationsHistoryResponse conversationsHistoryResponse = this.methodsClient
-					.conversationsHistory(r -> r.token(this.token).channel(this.channelId).latest(chatId).oldest(chatId).inclusive(true));
-
-				if (conversationsHistoryResponse.isOk())
+				ConversationsRepliesResponse response = this.fetchReplies(cursor.chatId, null, cursor.nextCursor, this.requestScheduler.getDefaultDeadline());
+				if (response.isOk() && cursor.isFirstPage
+					&& (response.getMessages().isEmpty() || !cursor.chatId.equals(response.getMessages().get(0).getTs())))
 				{
-					// only one conversation should match input chat id
-					if (conversationsHistoryResponse.getMessages().size() <= 1)
-					{
-						conversationsHistoryResponse.getMessages().stream().filter(message -> message.getTs().compareTo(chatId) == 0).forEach(message ->
-						{
-							// add first message in conversation - starting message
-							result.add(message);
-
-							// load the rest of the conversation - all the replies
-							result.addAll(this.fetchMessageReplies(message.getTs()));
-						});
-					}
-					else
-					{
-						log.error("Error: More then one conversation found with chat id: {}", chatId);
-					}
+					// a reply ts gets the thread it is in - not a chat of its own, and
+					// not to be cached under the reply ts
+					log.debug("{} is not the head of a chat", cursor.chatId);
+					cursor.isNotFound = true;
+				}
+				else if (response.isOk())
+				{
+					result = response.getMessages().stream()
+						// the first message heads every page - send it once
+						.filter(message -> cursor.isFirstPage || message.getTs() == null || message.getTs().compareTo(cursor.chatId) != 0)
+						.map(message -> this.toChatMessage(message)).collect(Collectors.toList());
+
+					cursor.isFirstPage = false;
+					cursor.nextCursor = SlackService.getNextCursor(response.isHasMore(), response.getResponseMetadata());
+					cursor.isDone = cursor.nextCursor == null;
+				}
+				else if (SlackService.SLACK_ERROR_THREAD_NOT_FOUND.equals(response.getError()))
+				{
+					cursor.isNotFound = true;
 				}
 				else
 				{
-					log.error("Error: {}, for channel id: {}, and chat Id", conversationsHistoryResponse.getError(), this.channelId, chatId);
+					log.error("Error: {}, for channel id: {}, and chat Id {}", response.getError(), this.channelId, cursor.chatId);
+					cursor.error = new IOException(String.format("slack error: %s", response.getError()));
 				}
 			}
+			catch (SlackRequestRejectedException e)
+			{
+				log.debug("replies page of {} not fetched: {}", cursor.chatId, e.getMessage());
+				cursor.error = e;
+			}
 			catch (IOException | SlackApiException e)
 			{
+				// stop here - the client gets the pages loaded so far, then the error
 				log.error("error: {}", e.getMessage(), e);
+				cursor.error = e;
 			}
 		}
-		else
-		{
-			log.error("error: Invalid input chatId: {}", chatId);
-		}
 
 		return result;
 	}
 
 	/**
-	 * Fetch message replies from slack
-	 * @param ts - conversation (slack timestamp) to get replies for
-	 * @return list of Message (could be empty list)
+	 * Fetch all message replies from slack, page by page
+	 * @param ts       - conversation (slack timestamp) to get replies for
+	 * @param oldest   - get only replies after this slack timestamp, null for all
+	 * @param deadline - System.nanoTime() time the requests must start by
+	 * @return list of Message (could be empty list), or null if a request failed
+	 *         or was not sent before deadline - a part of the replies is never
+	 *         returned
 	 */
-	private List<Message> fetchMessageReplies(String ts)
+	private List<Message> fetchMessageReplies(String ts, String oldest, long deadline)
 	{
 		List<Message> result = new ArrayList<Message>();
 		try
 		{
-			// send request to slack
-			ConversationsRepliesResponse conversationsRepliesResponse = this.methodsClient.conversationsReplies(request -> request.token(this.token).channel(this.channelId).ts(ts));
-			// Assumption: chats are short (smaller then 100 messages) so no need for
-			// pagination
-//				.limit(SlackService.SLACK_REQUEST_SIZE_LIMIT));
-
-			if (conversationsRepliesResponse.isOk())
+			String cursor = null;
+			do
 			{
-				result.addAll(conversationsRepliesResponse.getMessages().stream()
-					// reply messages Ts is always different from ThreadTs
-					.filter(message ->
-					{
-						return message.getTs() != null 
-							&& message.getThreadTs() != null 
-							&& message.getTs().compareTo(message.getThreadTs()) != 0;
-					}).collect(Collectors.toList()));
-			}
-			else
-			{
-				log.error(conversationsRepliesResponse.getError());
+				ConversationsRepliesResponse conversationsRepliesResponse = this.fetchReplies(ts, oldest, cursor, deadline);
+				cursor = null;
+
+				if (conversationsRepliesResponse.isOk())
+				{
+					result.addAll(conversationsRepliesResponse.getMessages().stream()
+						// reply messages Ts is always different from ThreadTs
+						.filter(message ->
+						{
+							return message.getTs() != null 
+								&& message.getThreadTs() != null 
+								&& message.getTs().compareTo(message.getThreadTs()) != 0;
+						}).collect(Collectors.toList()));
+
+					cursor = SlackService.getNextCursor(conversationsRepliesResponse.isHasMore(), conversationsRepliesResponse.getResponseMetadata());
+				}
+				else
+				{
+					log.error("Error: {}, for replies of {}", conversationsRepliesResponse.getError(), ts);
+					result = null;
+				}
 			}
+			while (cursor != null);
+		}
+		catch (SlackRequestRejectedException e)
+		{
+			log.debug("replies of {} not fetched: {}", ts, e.getMessage());
+			result = null;
 		}
 		catch (IOException | SlackApiException e)
 		{
 			log.error("error: {}", e.getMessage(), e);
+			result = null;
 		}
 
 		return result;
 	}
 
+	/**
+	 * fetch a single page of a conversation from slack
+	 * @param ts       - conversation (slack timestamp) to get replies for
+	 * @param oldest   - get only replies after this slack timestamp, null for all
+	 * @param cursor   - page to get, null for the first page
+	 * @param deadline - System.nanoTime() time the request must start by
+	 * @return slack response - the first message and a page of its replies
+	 */
+	private ConversationsRepliesResponse fetchReplies(String ts, String oldest, String cursor, long deadline) throws IOException, SlackApiException
+	{
+		return this.requestScheduler.execute(SlackOperation.HISTORY, SlackApiTier.TIER_3, deadline, () -> this.methodsClient.conversationsReplies(
+			request -> request.token(this.token).channel(this.channelId).ts(ts).oldest(oldest).limit(SlackService.SLACK_HISTORY_PAGE_SIZE).cursor(cursor)));
+	}
+
+	/**
+	 * @return cursor of the next page, or null if this is the last page
+	 */
+	private static String getNextCursor(boolean isHasMore, ResponseMetadata responseMetadata)
+	{
+		String result = null;
+		if (isHasMore && responseMetadata != null && responseMetadata.getNextCursor() != null && !responseMetadata.getNextCursor().isEmpty())
+		{
+			result = responseMetadata.getNextCursor();
+		}
+
+		return result;
+	}
+
+	/**
+	 * paging state of a conversation loaded from slack
+	 */
+	private static class RepliesCursor
+	{
+		private final String chatId;
+		private String nextCursor;
+		private boolean isFirstPage = true;
+		private boolean isDone;
+		// slack answered that there is no such chat (or chat id is a reply ts),
+		// not a failed request
+		private boolean isNotFound;
+		// a page request that failed, or slack was not asked (see SlackRequestScheduler)
+		private Exception error;
+
+		private RepliesCursor(String chatId)
+		{
+			this.chatId = chatId;
+		}
+	}
+
 	/**
 	 * get channel id from environment file under channelId, or from slack according
 	 * to channel name (set in environment file as channelName)
@@ -524,7 +1356,8 @@ public class SlackService
 			if (channelName != null)
 			{
 				// Call the conversations.list method using the built-in WebClient
-				ConversationsListResponse conversationsListResponse = this.methodsClient.conversationsList(r -> r.token(this.token));
+				ConversationsListResponse conversationsListResponse = this.requestScheduler.execute(SlackOperation.ADMIN, SlackApiTier.TIER_2,
+					() -> this.methodsClient.conversationsList(r -> r.token(this.token)));
 
 				if (conversationsListResponse != null)
 				{
@@ -553,24 +1386,21 @@ public class SlackService
 
 	/**
 	 * find out if message came from SenderType.USER (frontEnd chat) or from
-	 * SenderType.OWNER (slack 3rd party service) according to message data. read
-	 * data from payload manually - because the api removes needed data.
+	 * SenderType.OWNER (slack 3rd party service) according to message data.
 	 * 
-	 * @param payload - slack message payload
+	 * @param event - fields of slack event payload, or null
 	 * @return SenderType or null
 	 */
-	private SenderType getMessageSenderFromPayload(JsonElement payload)
+	private SenderType getMessageSenderFromEvent(SlackEvent event)
 	{
 		SenderType result = null;
 
 		// find out if it is a USER/OWNER message
 		// payload from slack contains "user" key in event
-		JsonElement userElement = this.extractValueFromJsonElement(payload, SlackService.SLACK_EVENT_PAYLOAD_KEY_EVENT, SlackService.SLACK_EVENT_PAYLOAD_KEY_USER);
-		if (userElement != null)
+		if (event != null && event.user() != null)
 		{
-			String userString = SlackGson.fromJson(userElement, String.class);
 			// message came from slack
-			switch (userString)
+			switch (event.user())
 			{
 				case SlackService.SLACK_USER_OWNER:
 				{
@@ -584,88 +1414,30 @@ public class SlackService
 				}
 				default:
 				{
-					log.error("unrecognized user: {}", userString);
+					log.error("unrecognized user: {}", event.user());
 					break;
 				}
 			}
 		}
-		else
+		else if (event != null)
 		{
 			// payload from user does not contain "user" key
 			// test if message was sent to slack, from my chat
-			JsonElement eventElement = this.extractValueFromJsonElement(payload, SlackService.SLACK_EVENT_PAYLOAD_KEY_EVENT);
-			if (eventElement != null)
-			{
-				JsonElement typeElement = this.extractValueFromJsonElement(eventElement, SlackService.SLACK_EVENT_PAYLOAD_KEY_TYPE);
-				JsonElement subTypeElement = this.extractValueFromJsonElement(eventElement, SlackService.SLACK_EVENT_PAYLOAD_KEY_SUBTYPE);
-
-				if (typeElement != null && subTypeElement != null)
-				{
-					String eventType = SlackGson.fromJson(typeElement, String.class);
-					String eventSubType = SlackGson.fromJson(subTypeElement, String.class);
-
-					if (eventType.compareTo(SlackService.SLACK_EVENT_TYPE_VALUE_MESSAGE) == 0 
-						&& eventSubType.compareTo(SlackService.SLACK_EVENT_SUBTYPE_VALUE_BOT_MESSAGE) == 0)
-					{
-						result = SenderType.USER;
-					}
-					else
-					{
-						// assume it is a system message like "message_change", "message_delete"...
-						// TODO: handle more message sub-types like "message_change","message_delete"...
-						result = SenderType.ROBOT;
-					}
-				}
-			}
-		}
-
-		return result;
-	}
-
-	/**
-	 * 
-	 * @param jsonElement - a JsonObject
-	 * @param keys        - list of keys representing the path in json tree from
-	 *                    whole object to target key
-	 * @return last found value as JsonElement or null otherwise.
-	 */
-	private JsonElement extractValueFromJsonElement(JsonElement jsonElement, String... keys)
-	{
-		JsonElement result = null;
-
-		if (jsonElement != null && jsonElement.isJsonObject() && keys != null && keys.length > 0)
-		{
-			// search down the tree hierarchy according to input keys
-			JsonObject jsonObject = jsonElement.getAsJsonObject();
-			for (String currentKey : keys)
+			if (event.type() != null && event.subtype() != null)
 			{
-				JsonElement value = jsonObject.get(currentKey);
-				if (value != null)
+				if (event.type().compareTo(SlackService.SLACK_EVENT_TYPE_VALUE_MESSAGE) == 0 
+					&& event.subtype().compareTo(SlackService.SLACK_EVENT_SUBTYPE_VALUE_BOT_MESSAGE) == 0)
 				{
-					result = value;
-
-					// ready for next iteration
-					if (value.isJsonObject())
-					{
-						jsonObject = value.getAsJsonObject();
-					}
-					else
-					{
-						break;
-					}
+					result = SenderType.USER;
 				}
 				else
 				{
-					// end tree search
-					result = null;
-					break;
+					// assume it is a system message like "message_change", "message_delete"...
+					// TODO: handle more message sub-types like "message_change","message_delete"...
+					result = SenderType.ROBOT;
 				}
 			}
 		}
-		else
-		{
-			log.error("Incorrect input for call keys: {}, jsonElement: {}", keys, jsonElement);
-		}
 
 		return result;
 	}
@@ -682,7 +1454,8 @@ public class SlackService
 		try
 		{
 			// get all channels for given taken
-			ConversationsListResponse conversationsListResponse = this.methodsClient.conversationsList(r -> r.token(this.token));
+			ConversationsListResponse conversationsListResponse = this.requestScheduler.execute(SlackOperation.ADMIN, SlackApiTier.TIER_2,
+				() -> this.methodsClient.conversationsList(r -> r.token(this.token)));
 
 			if (conversationsListResponse != null)
 			{
@@ -694,24 +1467,16 @@ public class SlackService
 						String channelId = channel.getId();
 
 						// get all conversations in channel
-						ConversationsHistoryResponse conversationsHistoryResponse = this.methodsClient.conversationsHistory(r -> r.token(this.token).channel(channelId));
+						ConversationsHistoryResponse conversationsHistoryResponse = this.requestScheduler.execute(SlackOperation.ADMIN, SlackApiTier.TIER_3,
+							() -> this.methodsClient.conversationsHistory(r -> r.token(this.token).channel(channelId)));
 
 						if (conversationsHistoryResponse.isOk())
 						{
 							// get all messages in conversation
 							// TODO: for some reason, conversation replies are not deleted - find out why 
+							// slack has a rate limit on calls - deleteMessage is paced by the request scheduler
 							conversationsHistoryResponse.getMessages().stream().forEach(message ->
 							{
-								try
-								{
-									// slack has a rate limit on calls, so take it easy  
-									Thread.sleep(1000);
-								}
-								catch (InterruptedException e)
-								{
-									log.error(e.getLocalizedMessage(),e);
-								}
-								
 								this.deleteMessage(channelId, ((Message) message).getTs());
 							});
 						}
@@ -743,7 +1508,7 @@ public class SlackService
 	{
 		try
 		{
-			ChatDeleteResponse response = this.methodsClient.chatDelete(r -> r.token(this.token).channel(channelId).ts(ts));
+			ChatDeleteResponse response = this.requestScheduler.execute(SlackOperation.ADMIN, SlackApiTier.TIER_3, () -> this.methodsClient.chatDelete(r -> r.token(this.token).channel(channelId).ts(ts)));
 			if (response.isOk())
 			{
 				log.info("Deleted message: {} in channel: {}", response.getTs(), response.getChannel());
@@ -845,33 +1610,26 @@ public class SlackService
 
 	/**
 	 * check if incoming message came from currently active chat with user
-	 * @param payload - slack event envelope.payload
+	 * @param event - fields of slack event payload
 	 * @return chatId if message came from currently active slack conversation, null
 	 *         if message is not in cache
 	 */
-	private String getActiveChatId(JsonElement payload)
+	private String getActiveChatId(SlackEvent event)
 	{
 		String result = null;
 
-		if (payload != null)
+		// slack threadTs is equal to chatId
+		if (event.threadTs() != null)
 		{
-			// extract slack threadTs, which is equal to chatId
-			// manually extract message threadTs, because regular Json deserializing removes
-			// important details
-			JsonElement threadTsJson = SlackService.this.extractValueFromJsonElement(payload, SlackService.SLACK_EVENT_PAYLOAD_KEY_EVENT, SlackService.SLACK_EVENT_PAYLOAD_KEY_THREAD_TS);
-			if (threadTsJson != null)
+			if (this.cache.isChatExists(event.threadTs()))
 			{
-				String threadTs = SlackGson.fromJson(threadTsJson, String.class);
-				if (this.cache.isChatExists(threadTs))
-				{
-					result = threadTs;
-				}
-			}
-			else
-			{
-				log.error("Message threadTs not found in message: {}", payload);
+				result = event.threadTs();
 			}
 		}
+		else
+		{
+			log.error("Message threadTs not found in message: {}", event);
+		}
 
 		return result;
 	}
@@ -0,0 +1,211 @@
+package talmal.contact.messageSender.services;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * hashed timing wheel of key deadlines. a key is placed in the slot of its
+ * deadline tick, deadlines further than one wheel turn wait extra rounds in
+ * their slot. each tick visits a single slot, so there is no scan of all keys.
+ *
+ * rescheduling is lazy: schedule() of a key already in the wheel only moves its
+ * deadline (O(1), no wheel lock). when the old slot comes up, a key whose
+ * deadline moved is placed again instead of expiring. cancel() removes the key
+ * from the map, the wheel drops it when its slot comes up.
+ *
+ * schedule() and cancel() are thread safe, advance() is called by a single
+ * ticking thread.
+ * @param <K> - key type
+ */
+class TimingWheel<K>
+{
+	private final long startTime;
+	private final long tickNanos;
+	private final int mask;
+	private final List<ArrayDeque<Timeout<K>>> slots;
+	private final Map<K, Timeout<K>> timeouts = new ConcurrentHashMap<K, Timeout<K>>();
+
+	// guards slots and currentTick
+	private final Object wheelLock = new Object();
+	private long currentTick;
+
+	/**
+	 * @param tickNanos - wheel resolution, expiry is late by up to one tick
+	 * @param slotCount - slots in wheel, rounded up to power of 2
+	 * @param startTime - System.nanoTime() time of tick 0
+	 */
+	TimingWheel(long tickNanos, int slotCount, long startTime)
+	{
+		int size = Integer.highestOneBit(Math.max(1, slotCount - 1)) << 1;
+		this.startTime = startTime;
+		this.tickNanos = tickNanos;
+		this.mask = size - 1;
+		this.slots = new ArrayList<ArrayDeque<Timeout<K>>>(size);
+		for (int i = 0; i < size; i++)
+		{
+			this.slots.add(new ArrayDeque<Timeout<K>>());
+		}
+	}
+
+	/**
+	 * set key deadline, replacing its previous deadline
+	 * @param key
+	 * @param deadline - System.nanoTime() time to expire key at
+	 */
+	void schedule(K key, long deadline)
+	{
+		boolean[] isNew = { false };
+		Timeout<K> timeout = this.timeouts.compute(key, (k, current) ->
+		{
+			if (current == null)
+			{
+				current = new Timeout<K>(k);
+				isNew[0] = true;
+			}
+
+			current.deadline = deadline;
+			return current;
+		});
+
+		if (isNew[0])
+		{
+			synchronized (this.wheelLock)
+			{
+				this.place(timeout);
+			}
+		}
+	}
+
+	/**
+	 * @param key - key to stop tracking
+	 */
+	void cancel(K key)
+	{
+		this.timeouts.remove(key);
+	}
+
+	/**
+	 * @return number of keys in wheel
+	 */
+	int size()
+	{
+		return this.timeouts.size();
+	}
+
+	/**
+	 * advance wheel to input time, visiting every slot passed on the way
+	 * @param now - System.nanoTime() time
+	 * @return keys whose deadline passed, they are no longer in the wheel
+	 */
+	List<K> advance(long now)
+	{
+		return this.advance(now, key ->
+		{
+		});
+	}
+
+	/**
+	 * advance wheel to input time, visiting every slot passed on the way
+	 * @param now      - System.nanoTime() time
+	 * @param onExpire - called for each expired key, atomically with its expiry:
+	 *                 a schedule() of the key waits for it, so a key is never
+	 *                 expired after its deadline was moved
+	 * @return keys whose deadline passed, they are no longer in the wheel
+	 */
+	List<K> advance(long now, Consumer<K> onExpire)
+	{
+		List<Timeout<K>> dueTimeouts = new ArrayList<Timeout<K>>();
+		synchronized (this.wheelLock)
+		{
+			long targetTick = (now - this.startTime) / this.tickNanos;
+			while (this.currentTick <= targetTick)
+			{
+				Iterator<Timeout<K>> iterator = this.slots.get((int) (this.currentTick & this.mask)).iterator();
+				while (iterator.hasNext())
+				{
+					Timeout<K> timeout = iterator.next();
+					if (timeout.rounds > 0)
+					{
+						timeout.rounds--;
+					}
+					else
+					{
+						iterator.remove();
+						dueTimeouts.add(timeout);
+					}
+				}
+
+				this.currentTick++;
+			}
+		}
+
+		List<K> result = new ArrayList<K>();
+		List<Timeout<K>> movedTimeouts = new ArrayList<Timeout<K>>();
+		for (Timeout<K> dueTimeout : dueTimeouts)
+		{
+			boolean[] isExpired = { false };
+			// a cancelled key is no longer mapped to this timeout - just drop it
+			Timeout<K> timeout = this.timeouts.computeIfPresent(dueTimeout.key, (key, current) ->
+			{
+				if (current == dueTimeout && current.deadline - now <= 0)
+				{
+					isExpired[0] = true;
+					current = null;
+					onExpire.accept(key);
+				}
+
+				return current;
+			});
+
+			if (isExpired[0])
+			{
+				result.add(dueTimeout.key);
+			}
+			else if (timeout == dueTimeout)
+			{
+				// deadline was moved since it was placed
+				movedTimeouts.add(dueTimeout);
+			}
+		}
+
+		if (!movedTimeouts.isEmpty())
+		{
+			synchronized (this.wheelLock)
+			{
+				movedTimeouts.forEach(timeout -> this.place(timeout));
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * put timeout in the slot of its deadline, call with wheelLock held
+	 * @param timeout
+	 */
+	private void place(Timeout<K> timeout)
+	{
+		// past deadlines go to the next slot to be visited
+		long tick = Math.max(this.currentTick, (timeout.deadline - this.startTime) / this.tickNanos);
+		timeout.rounds = (tick - this.currentTick) / this.slots.size();
+		this.slots.get((int) (tick & this.mask)).add(timeout);
+	}
+
+	private static class Timeout<K>
+	{
+		private final K key;
+		private volatile long deadline;
+		// wheel turns left before expiry, guarded by wheelLock
+		private long rounds;
+
+		private Timeout(K key)
+		{
+			this.key = key;
+		}
+	}
+}
@@ -4,6 +4,15 @@ import java.time.Instant;
 
 public class Tools
 {
+	// slack ts is "<epoch seconds>.<6 digit micros>"
+	private static final int SLACK_TS_MICROS_DIGITS = 6;
+	private static final long MICROS_IN_SECOND = 1000000;
+
+	/**
+	 * value returned by slackTsToMicros for input that is not a slack timestamp
+	 */
+	public static final long INVALID_TS = Long.MIN_VALUE;
+
 	/**
 	 * parse slack timestamp into java Instant date
 	 * 
@@ -24,4 +33,74 @@ public class Tools
 
 		return result;
 	}
+
+	/**
+	 * pack slack timestamp into a single long of epoch micro seconds, so
+	 * timestamps compare by time and not as strings ("999.1" < "1000.1")
+	 * 
+	 * @param ts - slack message.ts, like "1668031192.056079"
+	 * @return epoch micro seconds, or Tools.INVALID_TS on invalid input ts
+	 */
+	public static long slackTsToMicros(String ts)
+	{
+		long result = Tools.INVALID_TS;
+		if (ts != null)
+		{
+			int dot = ts.indexOf('.');
+			if (dot > 0 && dot < ts.length() - 1 && ts.length() - dot - 1 <= Tools.SLACK_TS_MICROS_DIGITS)
+			{
+				try
+				{
+					long seconds = Long.parseLong(ts, 0, dot, 10);
+					long micros = Long.parseLong(ts, dot + 1, ts.length(), 10);
+					// right pad short fractions ("1.5" is 500000 micros)
+					for (int i = ts.length() - dot - 1; i < Tools.SLACK_TS_MICROS_DIGITS; i++)
+					{
+						micros *= 10;
+					}
+					
+					if (seconds >= 0 && micros >= 0)
+					{
+						result = seconds * Tools.MICROS_IN_SECOND + micros;
+					}
+				}
+				catch (NumberFormatException e)
+				{
+					// not a slack timestamp
+				}
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * format packed slack timestamp back into its string form
+	 * 
+	 * @param micros - epoch micro seconds, as returned by slackTsToMicros
+	 * @return slack timestamp, like "1668031192.056079"
+	 */
+	public static String microsToSlackTs(long micros)
+	{
+		StringBuilder builder = new StringBuilder(20);
+		builder.append(micros / Tools.MICROS_IN_SECOND).append('.');
+		String fraction = Long.toString(micros % Tools.MICROS_IN_SECOND);
+		for (int i = fraction.length(); i < Tools.SLACK_TS_MICROS_DIGITS; i++)
+		{
+			builder.append('0');
+		}
+
+		return builder.append(fraction).toString();
+	}
+
+	/**
+	 * format java Instant as slack timestamp, for slack time range requests
+	 * 
+	 * @param instant - time to format
+	 * @return slack timestamp, like "1668031192.056079"
+	 */
+	public static String instantToSlackTs(Instant instant)
+	{
+		return String.format("%d.%06d", instant.getEpochSecond(), instant.getNano() / 1000);
+	}
 }
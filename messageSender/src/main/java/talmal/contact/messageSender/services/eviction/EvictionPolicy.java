@@ -0,0 +1,33 @@
+package talmal.contact.messageSender.services.eviction;
+
+/**
+ * decides which cached chat to evict when the cache is over its memory limit.
+ * implementations must be thread safe, and ignore chat ids they do not track
+ * (an access can race with the chat's removal).
+ */
+public interface EvictionPolicy
+{
+	/**
+	 * a new chat was added to the cache
+	 * @param chatId
+	 */
+	public void onAdd(String chatId);
+
+	/**
+	 * an existing chat was read (getMessages) or written to (addMessage)
+	 * @param chatId
+	 */
+	public void onAccess(String chatId);
+
+	/**
+	 * a chat was removed from the cache
+	 * @param chatId
+	 */
+	public void onRemove(String chatId);
+
+	/**
+	 * choose next chat to evict and stop tracking it
+	 * @return chat id to evict, or null if no chat is tracked
+	 */
+	public String nextVictim();
+}
@@ -0,0 +1,49 @@
+package talmal.contact.messageSender.services.eviction;
+
+/**
+ * eviction policies available for services.cache.evictionPolicy
+ */
+public enum EvictionPolicyType
+{
+	/**
+	 * evict chat with the oldest slack ts (chat start time)
+	 */
+	OLDEST,
+
+	/**
+	 * evict least recently used chat
+	 */
+	LRU,
+
+	/**
+	 * window tiny lfu - recency window in front of a frequency filtered segmented
+	 * lru
+	 */
+	TINY_LFU;
+
+	public EvictionPolicy create()
+	{
+		EvictionPolicy result = null;
+		switch (this)
+		{
+			case LRU:
+			{
+				result = new LruEvictionPolicy();
+				break;
+			}
+			case TINY_LFU:
+			{
+				result = new WindowTinyLfuEvictionPolicy();
+				break;
+			}
+			case OLDEST:
+			default:
+			{
+				result = new OldestEvictionPolicy();
+				break;
+			}
+		}
+
+		return result;
+	}
+}
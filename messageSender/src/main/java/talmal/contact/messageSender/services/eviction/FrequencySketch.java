@@ -0,0 +1,126 @@
+package talmal.contact.messageSender.services.eviction;
+
+/**
+ * count min sketch of 4 bit counters, estimating how often a key was seen
+ * recently. every long in the table holds 16 counters, a key maps to 4 counters
+ * and its frequency is the smallest of them. once the number of increments
+ * reaches 10 times the table width all counters are halved, so old popularity
+ * fades. not thread safe - guarded by its owner.
+ */
+class FrequencySketch
+{
+	private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+	private static final long RESET_MASK = 0x7777777777777777L;
+	private static final int MAX_COUNTER = 15;
+	private static final int SAMPLE_FACTOR = 10;
+	private static final int MINIMUM_CAPACITY = 16;
+
+	private long[] table;
+	private int tableMask;
+	private int sampleSize;
+	private int size;
+
+	FrequencySketch(int capacity)
+	{
+		this.ensureCapacity(capacity);
+	}
+
+	/**
+	 * grow the sketch to track about capacity keys. growing drops collected
+	 * frequencies, so it is done in power of 2 steps.
+	 * @param capacity - expected number of tracked keys
+	 */
+	void ensureCapacity(int capacity)
+	{
+		int width = Integer.highestOneBit(Math.max(FrequencySketch.MINIMUM_CAPACITY, capacity) - 1) << 1;
+		if (this.table == null || width > this.table.length)
+		{
+			this.table = new long[width];
+			this.tableMask = width - 1;
+			this.sampleSize = width * FrequencySketch.SAMPLE_FACTOR;
+			this.size = 0;
+		}
+	}
+
+	/**
+	 * @param key
+	 * @return estimated recent frequency of key (0 - 15)
+	 */
+	int frequency(Object key)
+	{
+		int hash = FrequencySketch.spread(key.hashCode());
+		int result = FrequencySketch.MAX_COUNTER;
+		for (int i = 0; i < FrequencySketch.SEEDS.length; i++)
+		{
+			result = Math.min(result, this.counter(hash, i));
+		}
+
+		return result;
+	}
+
+	/**
+	 * count one more occurrence of key
+	 * @param key
+	 */
+	void increment(Object key)
+	{
+		int hash = FrequencySketch.spread(key.hashCode());
+		boolean isIncremented = false;
+		for (int i = 0; i < FrequencySketch.SEEDS.length; i++)
+		{
+			int index = this.indexOf(hash, i);
+			int offset = this.offsetOf(hash, i);
+			if (((this.table[index] >>> offset) & FrequencySketch.MAX_COUNTER) < FrequencySketch.MAX_COUNTER)
+			{
+				this.table[index] += 1L << offset;
+				isIncremented = true;
+			}
+		}
+
+		if (isIncremented && ++this.size >= this.sampleSize)
+		{
+			this.reset();
+		}
+	}
+
+	/**
+	 * halve all counters (aging)
+	 */
+	private void reset()
+	{
+		for (int i = 0; i < this.table.length; i++)
+		{
+			this.table[i] = (this.table[i] >>> 1) & FrequencySketch.RESET_MASK;
+		}
+
+		this.size /= 2;
+	}
+
+	private int counter(int hash, int i)
+	{
+		return (int) ((this.table[this.indexOf(hash, i)] >>> this.offsetOf(hash, i)) & FrequencySketch.MAX_COUNTER);
+	}
+
+	private int indexOf(int hash, int i)
+	{
+		long value = (hash + FrequencySketch.SEEDS[i]) * FrequencySketch.SEEDS[i];
+		value += value >>> 32;
+		return ((int) value) & this.tableMask;
+	}
+
+	/**
+	 * @return bit offset of counter i, inside its long (a different quarter of
+	 *         the long per hash function)
+	 */
+	private int offsetOf(int hash, int i)
+	{
+		return ((i << 2) + ((hash >>> (i << 3)) & 3)) << 2;
+	}
+
+	private static int spread(int hash)
+	{
+		hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+		hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+		return (hash >>> 16) ^ hash;
+	}
+}
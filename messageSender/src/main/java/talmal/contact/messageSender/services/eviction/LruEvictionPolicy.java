@@ -0,0 +1,46 @@
+package talmal.contact.messageSender.services.eviction;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * evict least recently used chat. an access ordered LinkedHashMap keeps
+ * recency, all operations are O(1) under the policy lock.
+ */
+public class LruEvictionPolicy implements EvictionPolicy
+{
+	private final LinkedHashMap<String, Boolean> chats = new LinkedHashMap<String, Boolean>(16, 0.75f, true);
+
+	@Override
+	public synchronized void onAdd(String chatId)
+	{
+		this.chats.put(chatId, Boolean.TRUE);
+	}
+
+	@Override
+	public synchronized void onAccess(String chatId)
+	{
+		// get() moves an existing chat to the most recently used end
+		this.chats.get(chatId);
+	}
+
+	@Override
+	public synchronized void onRemove(String chatId)
+	{
+		this.chats.remove(chatId);
+	}
+
+	@Override
+	public synchronized String nextVictim()
+	{
+		String result = null;
+		Iterator<String> iterator = this.chats.keySet().iterator();
+		if (iterator.hasNext())
+		{
+			result = iterator.next();
+			iterator.remove();
+		}
+
+		return result;
+	}
+}
@@ -0,0 +1,68 @@
+package talmal.contact.messageSender.services.eviction;
+
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import talmal.contact.messageSender.services.Tools;
+
+/**
+ * evict chats in slack ts order (chat id is the ts of the chat's first
+ * message). chats are kept in a skip list, so every operation is O(log n) and
+ * accesses are free.
+ */
+public class OldestEvictionPolicy implements EvictionPolicy
+{
+	private final ConcurrentSkipListSet<ChatAge> chatsByAge = new ConcurrentSkipListSet<ChatAge>();
+
+	@Override
+	public void onAdd(String chatId)
+	{
+		this.chatsByAge.add(new ChatAge(chatId));
+	}
+
+	@Override
+	public void onAccess(String chatId)
+	{
+		// age does not change on access
+	}
+
+	@Override
+	public void onRemove(String chatId)
+	{
+		this.chatsByAge.remove(new ChatAge(chatId));
+	}
+
+	@Override
+	public String nextVictim()
+	{
+		ChatAge oldest = this.chatsByAge.pollFirst();
+		return (oldest != null) ? oldest.chatId : null;
+	}
+
+	/**
+	 * age index key - chat ordered by its slack ts as a number, chat id breaks
+	 * ties (and orders chat ids that are not timestamps first)
+	 */
+	private static class ChatAge implements Comparable<ChatAge>
+	{
+		private final long ts;
+		private final String chatId;
+
+		ChatAge(String chatId)
+		{
+			this.ts = Tools.slackTsToMicros(chatId);
+			this.chatId = chatId;
+		}
+
+		@Override
+		public int compareTo(ChatAge other)
+		{
+			int result = Long.compare(this.ts, other.ts);
+			if (result == 0)
+			{
+				result = this.chatId.compareTo(other.chatId);
+			}
+
+			return result;
+		}
+	}
+}
@@ -0,0 +1,167 @@
+package talmal.contact.messageSender.services.eviction;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * window tiny lfu. new chats enter a small lru window. chats leaving the window
+ * go to the protected segment if they were accessed again while in the window,
+ * otherwise to the probation segment, where a second access promotes them. on
+ * eviction the window's lru chat (candidate) competes with the main lru chat
+ * (victim), and the one seen less often by the frequency sketch is evicted - so
+ * a burst of chats opened once can not push out chats that are refreshed all
+ * the time.
+ * 
+ * the cache is bounded by memory and not by chat count, so segment sizes follow
+ * the current number of chats: window is 1%, protected is cut to 80% of the
+ * rest when evicting.
+ * all operations are O(1) under the policy lock.
+ */
+public class WindowTinyLfuEvictionPolicy implements EvictionPolicy
+{
+	private static final int WINDOW_PERCENT = 1;
+	private static final int PROTECTED_PERCENT = 80;
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private final LinkedHashMap<String, Boolean> window = new LinkedHashMap<String, Boolean>(16, 0.75f, true);
+	private final LinkedHashMap<String, Boolean> probation = new LinkedHashMap<String, Boolean>(16, 0.75f, true);
+	private final LinkedHashMap<String, Boolean> protectedSegment = new LinkedHashMap<String, Boolean>(16, 0.75f, true);
+	private final FrequencySketch sketch = new FrequencySketch(WindowTinyLfuEvictionPolicy.INITIAL_CAPACITY);
+
+	@Override
+	public synchronized void onAdd(String chatId)
+	{
+		this.sketch.ensureCapacity(this.size() + 1);
+		this.sketch.increment(chatId);
+		this.window.put(chatId, Boolean.FALSE);
+
+		// window overflow moves to main - protected if it was accessed again in the window
+		int maxWindowSize = Math.max(1, this.size() * WindowTinyLfuEvictionPolicy.WINDOW_PERCENT / 100);
+		while (this.window.size() > maxWindowSize)
+		{
+			Map.Entry<String, Boolean> oldest = this.window.entrySet().iterator().next();
+			this.window.remove(oldest.getKey());
+			if (oldest.getValue())
+			{
+				this.addProtected(oldest.getKey());
+			}
+			else
+			{
+				this.probation.put(oldest.getKey(), Boolean.TRUE);
+			}
+		}
+	}
+
+	@Override
+	public synchronized void onAccess(String chatId)
+	{
+		if (this.window.containsKey(chatId))
+		{
+			// put() moves chat to most recently used end, and marks it as accessed again
+			this.sketch.increment(chatId);
+			this.window.put(chatId, Boolean.TRUE);
+		}
+		else if (this.protectedSegment.get(chatId) != null)
+		{
+			// get() already moved chat to most recently used end
+			this.sketch.increment(chatId);
+		}
+		else if (this.probation.remove(chatId) != null)
+		{
+			// second access - promote to protected
+			this.sketch.increment(chatId);
+			this.addProtected(chatId);
+		}
+	}
+
+	/**
+	 * add chat to protected segment. protected size is only limited once the cache
+	 * is full, which is known at eviction time
+	 * @param chatId
+	 */
+	private void addProtected(String chatId)
+	{
+		this.protectedSegment.put(chatId, Boolean.TRUE);
+	}
+
+	@Override
+	public synchronized void onRemove(String chatId)
+	{
+		if (this.window.remove(chatId) == null && this.probation.remove(chatId) == null)
+		{
+			this.protectedSegment.remove(chatId);
+		}
+	}
+
+	@Override
+	public synchronized String nextVictim()
+	{
+		String result = null;
+
+		// cache is full - demote protected overflow to probation
+		int maxProtectedSize = Math.max(1, (this.size() - this.window.size()) * WindowTinyLfuEvictionPolicy.PROTECTED_PERCENT / 100);
+		while (this.protectedSegment.size() > maxProtectedSize)
+		{
+			this.probation.put(WindowTinyLfuEvictionPolicy.removeFirst(this.protectedSegment), Boolean.TRUE);
+		}
+
+		// victim is the lru chat of main - probation first, protected if probation is empty
+		LinkedHashMap<String, Boolean> mainSegment = this.probation.isEmpty() ? this.protectedSegment : this.probation;
+		String candidate = WindowTinyLfuEvictionPolicy.first(this.window);
+		String victim = WindowTinyLfuEvictionPolicy.first(mainSegment);
+		if (candidate != null && victim != null)
+		{
+			// admission - keep whichever chat is used more often
+			if (this.sketch.frequency(candidate) > this.sketch.frequency(victim))
+			{
+				result = WindowTinyLfuEvictionPolicy.removeFirst(mainSegment);
+				this.probation.put(WindowTinyLfuEvictionPolicy.removeFirst(this.window), Boolean.TRUE);
+			}
+			else
+			{
+				result = WindowTinyLfuEvictionPolicy.removeFirst(this.window);
+			}
+		}
+		else if (victim != null)
+		{
+			result = WindowTinyLfuEvictionPolicy.removeFirst(mainSegment);
+		}
+		else
+		{
+			result = WindowTinyLfuEvictionPolicy.removeFirst(this.window);
+		}
+
+		return result;
+	}
+
+	private int size()
+	{
+		return this.window.size() + this.probation.size() + this.protectedSegment.size();
+	}
+
+	/**
+	 * @return least recently used key without touching it, or null if empty
+	 */
+	private static String first(LinkedHashMap<String, Boolean> segment)
+	{
+		Iterator<String> iterator = segment.keySet().iterator();
+		return iterator.hasNext() ? iterator.next() : null;
+	}
+
+	/**
+	 * @return removed least recently used key, or null if empty
+	 */
+	private static String removeFirst(LinkedHashMap<String, Boolean> segment)
+	{
+		String result = null;
+		Iterator<String> iterator = segment.keySet().iterator();
+		if (iterator.hasNext())
+		{
+			result = iterator.next();
+			iterator.remove();
+		}
+
+		return result;
+	}
+}
@@ -0,0 +1,129 @@
+package talmal.contact.messageSender.services.ratelimit;
+
+/**
+ * count based circuit breaker. keeps the outcome of the last calls, and opens
+ * when too many of them failed - calls then fail at once, without reaching
+ * slack. after the open time a single trial call is let through (half open),
+ * its outcome closes the breaker or opens it again. a trial that never reports
+ * is replaced after another open time. times are System.nanoTime() values.
+ */
+class CircuitBreaker
+{
+	enum State
+	{
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private final int minimumCalls;
+	private final double failureRatio;
+	private final long openNanos;
+
+	// outcome of the last calls, true is a failure
+	private final boolean[] outcomes;
+	private int nextOutcome;
+	private int calls;
+	private int failures;
+
+	private State state = State.CLOSED;
+	// time the breaker opened, or the trial call started
+	private long stateTime;
+
+	/**
+	 * @param windowSize   - number of last calls to judge by
+	 * @param minimumCalls - calls needed before the breaker can open
+	 * @param failureRatio - failed share of the window that opens the breaker
+	 * @param openNanos    - time to fail calls before a trial call
+	 */
+	CircuitBreaker(int windowSize, int minimumCalls, double failureRatio, long openNanos)
+	{
+		this.outcomes = new boolean[Math.max(1, windowSize)];
+		this.minimumCalls = Math.min(Math.max(1, minimumCalls), this.outcomes.length);
+		this.failureRatio = failureRatio;
+		this.openNanos = openNanos;
+	}
+
+	/**
+	 * @param now - current time
+	 * @return true if a call may be made now
+	 */
+	synchronized boolean tryAcquire(long now)
+	{
+		boolean result = true;
+		if (this.state != State.CLOSED)
+		{
+			result = now - this.stateTime >= this.openNanos;
+			if (result)
+			{
+				this.state = State.HALF_OPEN;
+				this.stateTime = now;
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * record outcome of a call let through by tryAcquire()
+	 * @param isFailure - call failed, or was too slow
+	 * @param now       - current time
+	 */
+	synchronized void record(boolean isFailure, long now)
+	{
+		switch (this.state)
+		{
+			case CLOSED:
+			{
+				if (this.calls == this.outcomes.length)
+				{
+					this.failures -= this.outcomes[this.nextOutcome] ? 1 : 0;
+				}
+				else
+				{
+					this.calls++;
+				}
+
+				this.outcomes[this.nextOutcome] = isFailure;
+				this.failures += isFailure ? 1 : 0;
+				this.nextOutcome = (this.nextOutcome + 1) % this.outcomes.length;
+
+				if (this.calls >= this.minimumCalls && this.failures >= this.calls * this.failureRatio)
+				{
+					this.open(now);
+				}
+				break;
+			}
+			case HALF_OPEN:
+			{
+				if (isFailure)
+				{
+					this.open(now);
+				}
+				else
+				{
+					this.state = State.CLOSED;
+				}
+				break;
+			}
+			case OPEN:
+			default:
+			{
+				// a call made before the breaker opened
+				break;
+			}
+		}
+	}
+
+	synchronized State getState()
+	{
+		return this.state;
+	}
+
+	private void open(long now)
+	{
+		this.state = State.OPEN;
+		this.stateTime = now;
+		this.calls = 0;
+		this.failures = 0;
+		this.nextOutcome = 0;
+	}
+}
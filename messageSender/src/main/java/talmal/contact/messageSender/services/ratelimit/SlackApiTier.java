@@ -0,0 +1,53 @@
+package talmal.contact.messageSender.services.ratelimit;
+
+/**
+ * slack web api rate limit tiers (https://api.slack.com/docs/rate-limits).
+ * each tier has its own request budget per workspace, a token bucket with a
+ * small burst.
+ */
+public enum SlackApiTier
+{
+	/**
+	 * 1+ per minute
+	 */
+	TIER_1(1, 1),
+
+	/**
+	 * 20+ per minute - conversations.list
+	 */
+	TIER_2(20, 5),
+
+	/**
+	 * 50+ per minute - conversations.history, conversations.replies, chat.delete
+	 */
+	TIER_3(50, 10),
+
+	/**
+	 * 100+ per minute
+	 */
+	TIER_4(100, 20),
+
+	/**
+	 * chat.postMessage - 1 per second per channel, short bursts allowed
+	 */
+	POST_MESSAGE(60, 3);
+
+	private final int requestsPerMinute;
+	private final int burst;
+
+	private SlackApiTier(int requestsPerMinute, int burst)
+	{
+		this.requestsPerMinute = requestsPerMinute;
+		this.burst = burst;
+	}
+
+	public int getRequestsPerMinute()
+	{
+		return this.requestsPerMinute;
+	}
+
+	public int getBurst()
+	{
+		return this.burst;
+	}
+}
@@ -0,0 +1,15 @@
+package talmal.contact.messageSender.services.ratelimit;
+
+import java.io.IOException;
+
+import com.slack.api.methods.SlackApiException;
+
+/**
+ * a blocking slack web api call
+ * @param <T> - response type
+ */
+@FunctionalInterface
+public interface SlackCall<T>
+{
+	public T call() throws IOException, SlackApiException;
+}
@@ -0,0 +1,36 @@
+package talmal.contact.messageSender.services.ratelimit;
+
+/**
+ * classes of slack calls made by this service. each class has its own
+ * bulkhead (max calls in flight) and circuit breaker, so a slack brownout of
+ * one class does not take the threads and the slack budget of the others.
+ */
+public enum SlackOperation
+{
+	/**
+	 * chat.postMessage - user messages
+	 */
+	SEND(16),
+
+	/**
+	 * conversations.history, conversations.replies - chat loads and warm-up
+	 */
+	HISTORY(8),
+
+	/**
+	 * conversations.list, chat.delete - channel lookup and clean up
+	 */
+	ADMIN(2);
+
+	private final int maxConcurrentCalls;
+
+	private SlackOperation(int maxConcurrentCalls)
+	{
+		this.maxConcurrentCalls = maxConcurrentCalls;
+	}
+
+	public int getMaxConcurrentCalls()
+	{
+		return this.maxConcurrentCalls;
+	}
+}
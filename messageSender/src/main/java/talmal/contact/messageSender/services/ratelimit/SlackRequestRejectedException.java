@@ -0,0 +1,24 @@
+package talmal.contact.messageSender.services.ratelimit;
+
+import java.io.IOException;
+
+/**
+ * slack request was not sent - its rate limit tier could not take it before the
+ * request deadline, or its operation class failed it at once (bulkhead full,
+ * circuit open). an IOException, so callers handle it like any failed slack
+ * call.
+ */
+public class SlackRequestRejectedException extends IOException
+{
+	private static final long serialVersionUID = 1L;
+
+	public SlackRequestRejectedException(SlackApiTier tier)
+	{
+		super(String.format("slack rate limit - %s request could not be sent before its deadline", tier));
+	}
+
+	public SlackRequestRejectedException(SlackOperation operation, String reason)
+	{
+		super(String.format("slack %s request not sent - %s", operation, reason));
+	}
+}
@@ -0,0 +1,494 @@
+package talmal.contact.messageSender.services.ratelimit;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.slack.api.methods.SlackApiException;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * single gate for slack web api calls. every call takes a token from the
+ * bucket of its rate limit tier first, so bursts are queued and spread out at
+ * the tier rate instead of failing at slack. a request that can not get a token
+ * before its deadline (slack.scheduler.maxWaitMillis) fails with
+ * SlackRequestRejectedException. a 429 answer pauses the tier for the
+ * Retry-After time, and the request is retried (slack.scheduler.maxRetries).
+ *
+ * calls are also isolated by operation class (SlackOperation): a bulkhead caps
+ * the calls of a class in flight, waiting for a token included, and a circuit
+ * breaker fails calls of a class at once while slack keeps failing them or
+ * answers slower than slack.breaker.slowCallMillis. both fail fast with
+ * SlackRequestRejectedException - a slow slack holds at most a bulkhead of
+ * threads per class, and the other classes go on.
+ */
+@Slf4j
+@Component
+public class SlackRequestScheduler
+{
+	private static final int HTTP_TOO_MANY_REQUESTS = 429;
+	private static final String HEADER_RETRY_AFTER = "Retry-After";
+	private static final long DEFAULT_RETRY_AFTER_SECONDS = 1;
+	private static final int HTTP_SERVER_ERROR = 500;
+
+	// circuit breaker judges the last calls of an operation class
+	private static final int BREAKER_WINDOW_SIZE = 20;
+	private static final int BREAKER_MINIMUM_CALLS = 10;
+	private static final double BREAKER_FAILURE_RATIO = 0.5;
+
+	private final Map<SlackApiTier, TokenBucket> buckets = new EnumMap<SlackApiTier, TokenBucket>(SlackApiTier.class);
+	private final Map<SlackApiTier, TierStatistics> statistics = new EnumMap<SlackApiTier, TierStatistics>(SlackApiTier.class);
+	private final Map<SlackOperation, Semaphore> bulkheads = new EnumMap<SlackOperation, Semaphore>(SlackOperation.class);
+	private final Map<SlackOperation, CircuitBreaker> breakers = new EnumMap<SlackOperation, CircuitBreaker>(SlackOperation.class);
+	private final Map<SlackOperation, LongAdder> operationRejections = new EnumMap<SlackOperation, LongAdder>(SlackOperation.class);
+	private final long maxWaitNanos;
+	private final int maxRetries;
+	private final long slowCallNanos;
+
+	// starts async requests when their token is due
+	private final ScheduledExecutorService delayExecutor;
+
+	public SlackRequestScheduler(long maxWaitMillis, int maxRetries)
+	{
+		this(maxWaitMillis, maxRetries, 30000, 5000);
+	}
+
+	@Autowired
+	public SlackRequestScheduler(@Value(value = "${slack.scheduler.maxWaitMillis:10000}") long maxWaitMillis, @Value(value = "${slack.scheduler.maxRetries:2}") int maxRetries,
+		@Value(value = "${slack.breaker.openMillis:30000}") long breakerOpenMillis, @Value(value = "${slack.breaker.slowCallMillis:5000}") long slowCallMillis)
+	{
+		this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+		this.maxRetries = maxRetries;
+		this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(slowCallMillis);
+
+		for (SlackOperation operation : SlackOperation.values())
+		{
+			this.bulkheads.put(operation, new Semaphore(operation.getMaxConcurrentCalls()));
+			this.breakers.put(operation, new CircuitBreaker(SlackRequestScheduler.BREAKER_WINDOW_SIZE, SlackRequestScheduler.BREAKER_MINIMUM_CALLS,
+				SlackRequestScheduler.BREAKER_FAILURE_RATIO, TimeUnit.MILLISECONDS.toNanos(breakerOpenMillis)));
+			this.operationRejections.put(operation, new LongAdder());
+		}
+
+		long now = System.nanoTime();
+		for (SlackApiTier tier : SlackApiTier.values())
+		{
+			this.buckets.put(tier, new TokenBucket(tier.getBurst(), tier.getRequestsPerMinute(), now));
+			this.statistics.put(tier, new TierStatistics());
+		}
+
+		this.delayExecutor = Executors.newSingleThreadScheduledExecutor(runnable ->
+		{
+			Thread thread = new Thread(runnable, "slack-request-scheduler");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	@PreDestroy
+	public void close()
+	{
+		log.info("slack request statistics: {}", this);
+		this.delayExecutor.shutdownNow();
+	}
+
+	/**
+	 * @return System.nanoTime() deadline of a request queued now
+	 *         (slack.scheduler.maxWaitMillis)
+	 */
+	public long getDefaultDeadline()
+	{
+		return System.nanoTime() + this.maxWaitNanos;
+	}
+
+	/**
+	 * run a blocking slack call within its tier rate, waiting up to the default
+	 * deadline
+	 * @param operation - operation class of the call
+	 * @param tier      - rate limit tier of called slack method
+	 * @param call      - slack call
+	 * @return call response
+	 * @throws SlackRequestRejectedException if no token was available in time,
+	 *                                       or the operation class is full or
+	 *                                       its circuit is open
+	 */
+	public <T> T execute(SlackOperation operation, SlackApiTier tier, SlackCall<T> call) throws IOException, SlackApiException
+	{
+		return this.execute(operation, tier, this.getDefaultDeadline(), call);
+	}
+
+	/**
+	 * run a blocking slack call within its tier rate
+	 * @param operation - operation class of the call
+	 * @param tier      - rate limit tier of called slack method
+	 * @param deadline  - System.nanoTime() time the call must start by
+	 * @param call      - slack call
+	 * @return call response
+	 * @throws SlackRequestRejectedException if no token was available in time,
+	 *                                       or the operation class is full or
+	 *                                       its circuit is open
+	 */
+	public <T> T execute(SlackOperation operation, SlackApiTier tier, long deadline, SlackCall<T> call) throws IOException, SlackApiException
+	{
+		T result = null;
+		boolean isDone = false;
+		int attempt = 0;
+
+		this.acquire(operation);
+		try
+		{
+			while (!isDone)
+			{
+				this.sleep(this.reserve(tier, deadline));
+				// a 429 during the wait paused the tier
+				this.sleep(this.buckets.get(tier).getPauseNanos(System.nanoTime()));
+
+				long start = System.nanoTime();
+				try
+				{
+					result = call.call();
+					this.recordCall(operation, start, null);
+					isDone = true;
+				}
+				catch (IOException e)
+				{
+					this.recordCall(operation, start, e);
+					throw e;
+				}
+				catch (SlackApiException e)
+				{
+					this.recordCall(operation, start, e);
+					if (attempt >= this.maxRetries || !this.onRateLimited(tier, e))
+					{
+						throw e;
+					}
+
+					attempt++;
+				}
+			}
+		}
+		finally
+		{
+			this.bulkheads.get(operation).release();
+		}
+
+		return result;
+	}
+
+	/**
+	 * run an async slack call within its tier rate, the call is started when its
+	 * token is due, without blocking the caller
+	 * @param operation - operation class of the call
+	 * @param tier      - rate limit tier of called slack method
+	 * @param call      - starts the slack call
+	 * @return call response, or SlackRequestRejectedException if no token was
+	 *         available in time, or the operation class is full or its circuit
+	 *         is open
+	 */
+	public <T> CompletableFuture<T> executeAsync(SlackOperation operation, SlackApiTier tier, Supplier<CompletableFuture<T>> call)
+	{
+		CompletableFuture<T> result = new CompletableFuture<T>();
+		try
+		{
+			this.acquire(operation);
+			// bulkhead is held until the call is done, retries included
+			result.whenComplete((response, error) -> this.bulkheads.get(operation).release());
+			this.executeAsync(operation, tier, this.getDefaultDeadline(), call, 0, result);
+		}
+		catch (SlackRequestRejectedException e)
+		{
+			result.completeExceptionally(e);
+		}
+
+		return result;
+	}
+
+	private <T> void executeAsync(SlackOperation operation, SlackApiTier tier, long deadline, Supplier<CompletableFuture<T>> call, int attempt, CompletableFuture<T> result)
+	{
+		try
+		{
+			long wait = this.reserve(tier, deadline);
+			this.delayExecutor.schedule(() ->
+			{
+				try
+				{
+					long start = System.nanoTime();
+					call.get().whenComplete((response, error) ->
+					{
+						Throwable cause = (error instanceof CompletionException && error.getCause() != null) ? error.getCause() : error;
+						this.recordCall(operation, start, cause);
+						if (cause == null)
+						{
+							result.complete(response);
+						}
+						else if (attempt < this.maxRetries && cause instanceof SlackApiException && this.onRateLimited(tier, (SlackApiException) cause))
+						{
+							this.executeAsync(operation, tier, deadline, call, attempt + 1, result);
+						}
+						else
+						{
+							result.completeExceptionally(cause);
+						}
+					});
+				}
+				catch (RuntimeException e)
+				{
+					result.completeExceptionally(e);
+				}
+			}, Math.max(wait, this.buckets.get(tier).getPauseNanos(System.nanoTime())), TimeUnit.NANOSECONDS);
+		}
+		catch (SlackRequestRejectedException | RuntimeException e)
+		{
+			result.completeExceptionally(e);
+		}
+	}
+
+	/**
+	 * @param operation
+	 * @return state of the circuit breaker of input operation class
+	 */
+	public String getCircuitState(SlackOperation operation)
+	{
+		return this.breakers.get(operation).getState().name();
+	}
+
+	/**
+	 * @param operation
+	 * @return calls of input operation class failed at once - bulkhead full or
+	 *         circuit open
+	 */
+	public long getRejectedCalls(SlackOperation operation)
+	{
+		return this.operationRejections.get(operation).sum();
+	}
+
+	/**
+	 * @param tier
+	 * @return queue wait / rejection / 429 counters of input tier
+	 */
+	public TierStatistics getStatistics(SlackApiTier tier)
+	{
+		return this.statistics.get(tier);
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder builder = new StringBuilder();
+		for (Map.Entry<SlackApiTier, TierStatistics> tierStatistics : this.statistics.entrySet())
+		{
+			if (tierStatistics.getValue().getRequests() > 0)
+			{
+				builder.append(tierStatistics.getKey()).append(": [").append(tierStatistics.getValue()).append("] ");
+			}
+		}
+
+		for (SlackOperation operation : SlackOperation.values())
+		{
+			builder.append(operation).append(": [circuit: ").append(this.getCircuitState(operation)).append(", rejected: ").append(this.getRejectedCalls(operation))
+				.append("] ");
+		}
+
+		return builder.toString();
+	}
+
+	/**
+	 * take a call permit of input operation class, without waiting
+	 * @throws SlackRequestRejectedException if the class bulkhead is full or its
+	 *                                       circuit is open
+	 */
+	private void acquire(SlackOperation operation) throws SlackRequestRejectedException
+	{
+		if (!this.bulkheads.get(operation).tryAcquire())
+		{
+			this.operationRejections.get(operation).increment();
+			throw new SlackRequestRejectedException(operation, "too many calls in flight");
+		}
+
+		if (!this.breakers.get(operation).tryAcquire(System.nanoTime()))
+		{
+			this.bulkheads.get(operation).release();
+			this.operationRejections.get(operation).increment();
+			throw new SlackRequestRejectedException(operation, "circuit is open");
+		}
+	}
+
+	/**
+	 * feed outcome of a call to the circuit breaker of its operation class. a
+	 * failure is an io error, a slack 5xx, or an answer slower than
+	 * slack.breaker.slowCallMillis. slack answers about the request itself (4xx,
+	 * 429) are not failures of slack.
+	 * @param start - System.nanoTime() time the call started
+	 * @param error - call error, null on success
+	 */
+	private void recordCall(SlackOperation operation, long start, Throwable error)
+	{
+		long now = System.nanoTime();
+		boolean isFailure = now - start > this.slowCallNanos;
+		if (error instanceof SlackApiException)
+		{
+			SlackApiException slackError = (SlackApiException) error;
+			isFailure |= slackError.getResponse() != null && slackError.getResponse().code() >= SlackRequestScheduler.HTTP_SERVER_ERROR;
+		}
+		else if (error != null)
+		{
+			isFailure = true;
+		}
+
+		CircuitBreaker breaker = this.breakers.get(operation);
+		CircuitBreaker.State before = breaker.getState();
+		breaker.record(isFailure, now);
+		CircuitBreaker.State after = breaker.getState();
+		if (before != after)
+		{
+			log.warn("slack {} circuit is now {}", operation, after);
+		}
+	}
+
+	/**
+	 * reserve a token of input tier
+	 * @return nanos to wait for the token
+	 * @throws SlackRequestRejectedException if token is not available before
+	 *                                       deadline
+	 */
+	private long reserve(SlackApiTier tier, long deadline) throws SlackRequestRejectedException
+	{
+		long now = System.nanoTime();
+		long result = this.buckets.get(tier).reserve(now, deadline - now);
+		TierStatistics tierStatistics = this.statistics.get(tier);
+		if (result < 0)
+		{
+			tierStatistics.rejected.increment();
+			throw new SlackRequestRejectedException(tier);
+		}
+
+		tierStatistics.requests.increment();
+		tierStatistics.waitNanos.add(result);
+		tierStatistics.maxWaitNanos.accumulate(result);
+		return result;
+	}
+
+	/**
+	 * pause input tier if slack answered 429
+	 * @return true if exception is a 429 answer (request may be retried)
+	 */
+	private boolean onRateLimited(SlackApiTier tier, SlackApiException e)
+	{
+		boolean result = false;
+		if (e.getResponse() != null && e.getResponse().code() == SlackRequestScheduler.HTTP_TOO_MANY_REQUESTS)
+		{
+			long retryAfterSeconds = SlackRequestScheduler.DEFAULT_RETRY_AFTER_SECONDS;
+			String retryAfter = e.getResponse().header(SlackRequestScheduler.HEADER_RETRY_AFTER);
+			if (retryAfter != null)
+			{
+				try
+				{
+					retryAfterSeconds = Long.parseLong(retryAfter.trim());
+				}
+				catch (NumberFormatException parseException)
+				{
+					log.warn("invalid Retry-After header: {}", retryAfter);
+				}
+			}
+
+			log.warn("slack rate limited {} requests, retry after {} seconds", tier, retryAfterSeconds);
+			this.buckets.get(tier).pauseUntil(System.nanoTime() + TimeUnit.SECONDS.toNanos(retryAfterSeconds));
+			this.statistics.get(tier).rateLimited.increment();
+			result = true;
+		}
+
+		return result;
+	}
+
+	private void sleep(long nanos) throws InterruptedIOException
+	{
+		if (nanos > 0)
+		{
+			try
+			{
+				TimeUnit.NANOSECONDS.sleep(nanos);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted while waiting for slack rate limit");
+			}
+		}
+	}
+
+	/**
+	 * request counters of a single rate limit tier
+	 */
+	public static class TierStatistics
+	{
+		private final LongAdder requests = new LongAdder();
+		private final LongAdder rejected = new LongAdder();
+		private final LongAdder rateLimited = new LongAdder();
+		private final LongAdder waitNanos = new LongAdder();
+		private final LongAccumulator maxWaitNanos = new LongAccumulator(Math::max, 0);
+
+		/**
+		 * @return requests that got a token, retries included
+		 */
+		public long getRequests()
+		{
+			return this.requests.sum();
+		}
+
+		/**
+		 * @return requests dropped because their deadline came before a token
+		 */
+		public long getRejected()
+		{
+			return this.rejected.sum();
+		}
+
+		/**
+		 * @return 429 answers from slack
+		 */
+		public long getRateLimited()
+		{
+			return this.rateLimited.sum();
+		}
+
+		/**
+		 * @return average queue wait in milli seconds
+		 */
+		public double getAverageWaitMillis()
+		{
+			long requests = this.getRequests();
+			return (requests == 0) ? 0 : (double) TimeUnit.NANOSECONDS.toMicros(this.waitNanos.sum()) / 1000 / requests;
+		}
+
+		/**
+		 * @return longest queue wait in milli seconds
+		 */
+		public long getMaxWaitMillis()
+		{
+			return TimeUnit.NANOSECONDS.toMillis(this.maxWaitNanos.get());
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format("requests: %d, rejected: %d, rate limited: %d, average wait: %.1f ms, max wait: %d ms", this.getRequests(), this.getRejected(),
+				this.getRateLimited(), this.getAverageWaitMillis(), this.getMaxWaitMillis());
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package talmal.contact.messageSender.services.ratelimit;
+
+/**
+ * token bucket handing out future tokens - a caller reserves the next token and
+ * gets the time to wait for it, so waiting callers are served in reservation
+ * order at the bucket rate. times are System.nanoTime() values.
+ */
+class TokenBucket
+{
+	private final double capacity;
+	private final double tokensPerNano;
+	// negative when tokens are reserved ahead
+	private double tokens;
+	private long lastRefillTime;
+	// no tokens are used before this time (slack Retry-After)
+	private long pausedUntil;
+
+	/**
+	 * @param capacity          - max tokens saved up for bursts
+	 * @param tokensPerMinute   - refill rate
+	 * @param now               - current time
+	 */
+	TokenBucket(int capacity, int tokensPerMinute, long now)
+	{
+		this.capacity = capacity;
+		this.tokensPerNano = tokensPerMinute / 60e9;
+		this.tokens = capacity;
+		this.lastRefillTime = now;
+		this.pausedUntil = now;
+	}
+
+	/**
+	 * reserve a token if it is available within input wait time
+	 * @param now          - current time
+	 * @param maxWaitNanos - longest acceptable wait
+	 * @return nanos to wait before using the token, or -1 if there is a wait and
+	 *         it would be longer then maxWaitNanos (nothing is reserved then)
+	 */
+	synchronized long reserve(long now, long maxWaitNanos)
+	{
+		this.refill(now);
+		long result = Math.max(0, this.pausedUntil - now);
+		if (this.tokens < 1)
+		{
+			result = Math.max(result, (long) Math.ceil((1 - this.tokens) / this.tokensPerNano));
+		}
+
+		// a free token is always handed out, even with no wait allowed
+		if (result == 0 || result <= maxWaitNanos)
+		{
+			this.tokens--;
+		}
+		else
+		{
+			result = -1;
+		}
+
+		return result;
+	}
+
+	/**
+	 * stop handing out tokens until input time
+	 * @param until - time to resume
+	 */
+	synchronized void pauseUntil(long until)
+	{
+		if (until - this.pausedUntil > 0)
+		{
+			this.pausedUntil = until;
+		}
+	}
+
+	/**
+	 * @param now - current time
+	 * @return nanos left to pause end, 0 if not paused
+	 */
+	synchronized long getPauseNanos(long now)
+	{
+		return Math.max(0, this.pausedUntil - now);
+	}
+
+	private void refill(long now)
+	{
+		this.tokens = Math.min(this.capacity, this.tokens + (now - this.lastRefillTime) * this.tokensPerNano);
+		this.lastRefillTime = now;
+	}
+}
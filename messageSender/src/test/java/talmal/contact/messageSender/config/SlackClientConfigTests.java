@@ -0,0 +1,120 @@
+package talmal.contact.messageSender.config;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.slack.api.Slack;
+import com.slack.api.methods.MethodsClient;
+import com.slack.api.methods.SlackApiException;
+import com.sun.net.httpserver.HttpServer;
+
+import lombok.extern.slf4j.Slf4j;
+
+@Slf4j
+public class SlackClientConfigTests
+{
+	private static final int REQUESTS = 50;
+	private static final String RESPONSE = "{\"ok\":true,\"channel\":\"C1\",\"ts\":\"1700000000.000100\",\"message\":{\"ts\":\"1700000000.000100\",\"text\":\"hi\"}}";
+
+	static
+	{
+		// the jdk server writes headers and body apart - without this, nagle and
+		// delayed acks stall every keep-alive response by ~40 ms
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+	}
+
+	// local slack stand-in, answers every web api method with ok
+	private HttpServer server;
+	// client port of every request - one port per connection
+	private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+
+	@BeforeEach
+	public void startServer() throws IOException
+	{
+		this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		this.server.createContext("/api/", exchange ->
+		{
+			this.clientPorts.add(exchange.getRemoteAddress().getPort());
+			exchange.getRequestBody().readAllBytes();
+			byte[] body = SlackClientConfigTests.RESPONSE.getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().add("Content-Type", "application/json");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream output = exchange.getResponseBody())
+			{
+				output.write(body);
+			}
+		});
+		this.server.start();
+	}
+
+	@AfterEach
+	public void stopServer()
+	{
+		this.server.stop(0);
+	}
+
+	/**
+	 * pooled connections are reused across calls, without a pool every call opens
+	 * a new connection. average latency of both is logged as a rough benchmark.
+	 */
+	@Test
+	public void connectionReuseTest() throws Exception
+	{
+		long pooledNanos = this.run(8);
+		int pooledConnections = this.clientPorts.size();
+
+		this.clientPorts.clear();
+		long unpooledNanos = this.run(0);
+		int unpooledConnections = this.clientPorts.size();
+
+		log.info("{} sequential chat.postMessage calls to a local stand-in - pooled: {} connections, {} us average, unpooled: {} connections, {} us average",
+			SlackClientConfigTests.REQUESTS, pooledConnections, TimeUnit.NANOSECONDS.toMicros(pooledNanos / SlackClientConfigTests.REQUESTS), unpooledConnections,
+			TimeUnit.NANOSECONDS.toMicros(unpooledNanos / SlackClientConfigTests.REQUESTS));
+
+		assertEquals(1, pooledConnections);
+		assertTrue(unpooledConnections > SlackClientConfigTests.REQUESTS / 2);
+	}
+
+	/**
+	 * @param maxIdleConnections - connection pool size
+	 * @return nanos taken by all requests, after a warm-up round
+	 */
+	private long run(int maxIdleConnections) throws Exception
+	{
+		Slack slack = new SlackClientConfig().slack(maxIdleConnections, 300, true, 5000, 10000, 10000, 0, 64, 16, 2,
+			"http://localhost:" + this.server.getAddress().getPort() + "/api/");
+		try
+		{
+			MethodsClient methods = slack.methods("xoxb-test");
+			this.post(methods, SlackClientConfigTests.REQUESTS / 10);
+
+			long start = System.nanoTime();
+			this.post(methods, SlackClientConfigTests.REQUESTS);
+			return System.nanoTime() - start;
+		}
+		finally
+		{
+			slack.close();
+		}
+	}
+
+	private void post(MethodsClient methods, int requests) throws IOException, SlackApiException
+	{
+		for (int i = 0; i < requests; i++)
+		{
+			assertTrue(methods.chatPostMessage(r -> r.channel("C1").text("hi")).isOk());
+		}
+	}
+}
@@ -0,0 +1,265 @@
+package talmal.contact.messageSender.controllers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.amqp.AmqpRejectAndDontRequeueException;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.MediaType;
+import org.springframework.http.server.reactive.ReactorHttpHandlerAdapter;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.reactive.config.EnableWebFlux;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.server.adapter.WebHttpHandlerBuilder;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.slack.api.Slack;
+import com.sun.net.httpserver.HttpServer;
+
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.Exceptions;
+import reactor.core.publisher.Flux;
+import reactor.netty.DisposableServer;
+import reactor.netty.resources.LoopResources;
+import talmal.contact.messageSender.config.SlackClientConfig;
+import talmal.contact.messageSender.models.context.ChatMessage;
+import talmal.contact.messageSender.models.context.SenderType;
+import talmal.contact.messageSender.services.CacheService;
+import talmal.contact.messageSender.services.MessageQueueService;
+import talmal.contact.messageSender.services.SlackService;
+import talmal.contact.messageSender.services.ratelimit.SlackApiTier;
+import talmal.contact.messageSender.services.ratelimit.SlackOperation;
+import talmal.contact.messageSender.services.ratelimit.SlackRequestRejectedException;
+import talmal.contact.messageSender.services.ratelimit.SlackRequestScheduler;
+
+@Slf4j
+public class MessageSenderControllerTests
+{
+	private static final int REQUESTS = 32;
+	private static final int SLACK_DELAY_MILLIS = 200;
+	private static final String POST_MESSAGE_RESPONSE = "{\"ok\":true,\"channel\":\"C1\",\"ts\":\"1700000001.000100\","
+		+ "\"message\":{\"ts\":\"1700000001.000100\",\"thread_ts\":\"1700000000.000100\",\"text\":\"hi\"}}";
+
+	static
+	{
+		// see SlackClientConfigTests
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+	}
+
+	/**
+	 * a chat that fails to load over amqp (block() wraps the checked failure) is
+	 * answered with no messages, so the request is not requeued and the caller
+	 * gets a reply
+	 */
+	@Test
+	public void loadChatQueueFailureTest()
+	{
+		SlackService slackService = mock(SlackService.class);
+		when(slackService.getChatMessages("1700000000.000100")).thenAnswer(invocation ->
+		{
+			throw Exceptions.propagate(new SlackRequestRejectedException(SlackOperation.HISTORY, "bulkhead is full"));
+		});
+		MessageSenderController controller = new MessageSenderController();
+		ReflectionTestUtils.setField(controller, "slackService", slackService);
+
+		assertEquals(0, JsonParser.parseString(controller.subscribeToChatQueue("\"1700000000.000100\"")).getAsJsonArray().size());
+	}
+
+	/**
+	 * a batch load over amqp is answered with a json object of chat id to its
+	 * messages, in request order. a failed batch is not requeued.
+	 */
+	@Test
+	public void loadChatsQueueTest()
+	{
+		Map<String, List<ChatMessage>> chats = new LinkedHashMap<String, List<ChatMessage>>();
+		chats.put("1700000000.000100", List.of(new ChatMessage("1700000000.000100", "1700000000.000100", "owner", "hello", Instant.ofEpochSecond(1700000000),
+			SenderType.OWNER)));
+		chats.put("1700000009.000100", List.of());
+
+		SlackService slackService = mock(SlackService.class);
+		when(slackService.getChatsMessages(List.of("1700000000.000100", "1700000009.000100"))).thenReturn(chats);
+		MessageSenderController controller = new MessageSenderController();
+		ReflectionTestUtils.setField(controller, "slackService", slackService);
+
+		JsonObject reply = JsonParser.parseString(controller.subscribeToChatsQueue("[\"1700000000.000100\",\"1700000009.000100\"]")).getAsJsonObject();
+		assertEquals(List.of("1700000000.000100", "1700000009.000100"), List.copyOf(reply.keySet()));
+		assertEquals(1, reply.getAsJsonArray("1700000000.000100").size());
+		assertEquals("hello", reply.getAsJsonArray("1700000000.000100").get(0).getAsJsonObject().get("message").getAsString());
+		assertEquals(0, reply.getAsJsonArray("1700000009.000100").size());
+
+		when(slackService.getChatsMessages(anyList())).thenThrow(new IllegalArgumentException("batch of 51 chats is over the limit of 50"));
+		assertThrows(AmqpRejectAndDontRequeueException.class, () -> controller.subscribeToChatsQueue("[\"1700000000.000100\"]"));
+
+		// a failure of the whole batch is not requeued either
+		doAnswer(invocation ->
+		{
+			throw Exceptions.propagate(new SlackRequestRejectedException(SlackOperation.HISTORY, "bulkhead is full"));
+		}).when(slackService).getChatsMessages(anyList());
+		assertThrows(AmqpRejectAndDontRequeueException.class, () -> controller.subscribeToChatsQueue("[\"1700000000.000100\"]"));
+	}
+
+	/**
+	 * /message/send on a single event loop thread against a slack stand-in that
+	 * takes SLACK_DELAY_MILLIS per call. the event loop does not wait for slack,
+	 * so replies to different chats overlap - well under the time of sending
+	 * them one after the other. throughput is logged as a rough benchmark.
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void sendThroughputTest() throws Exception
+	{
+		// local slack stand-in, answers every web api method with a posted message
+		ExecutorService slackThreads = Executors.newFixedThreadPool(MessageSenderControllerTests.REQUESTS);
+		HttpServer slackServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		slackServer.setExecutor(slackThreads);
+		slackServer.createContext("/api/", exchange ->
+		{
+			exchange.getRequestBody().readAllBytes();
+			MessageSenderControllerTests.sleep(MessageSenderControllerTests.SLACK_DELAY_MILLIS);
+			byte[] body = MessageSenderControllerTests.POST_MESSAGE_RESPONSE.getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().add("Content-Type", "application/json");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream output = exchange.getResponseBody())
+			{
+				output.write(body);
+			}
+		});
+		// no team id, so the sdk does not hold posts in its own per-channel rate
+		// limit queue either
+		slackServer.createContext("/api/auth.test", exchange ->
+		{
+			exchange.getRequestBody().readAllBytes();
+			byte[] body = "{\"ok\":true}".getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().add("Content-Type", "application/json");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream output = exchange.getResponseBody())
+			{
+				output.write(body);
+			}
+		});
+		slackServer.start();
+
+		// real slack client on the stand-in, no socket mode
+		Slack slack = spy(new SlackClientConfig().slack(16, 300, false, 5000, 10000, 10000, 0, 64, 64, 16,
+			"http://localhost:" + slackServer.getAddress().getPort() + "/api/"));
+		doThrow(new IOException("no socket mode in tests")).when(slack).socketMode(anyString());
+
+		// slack rate limits are not measured here, calls start at once
+		SlackRequestScheduler requestScheduler = mock(SlackRequestScheduler.class);
+		when(requestScheduler.executeAsync(any(SlackOperation.class), any(SlackApiTier.class), any(Supplier.class)))
+			.thenAnswer(invocation -> ((Supplier<?>) invocation.getArgument(2)).get());
+
+		SlackService slackService = new SlackService(slack, MessageSenderControllerTests.encode("xoxb-test"), MessageSenderControllerTests.encode("xapp-test"), "owner",
+			"Robot", "C1", "contact-me", 1, 8);
+		ReflectionTestUtils.setField(slackService, "cache", new CacheService(true, 10));
+		ReflectionTestUtils.setField(slackService, "messageQueueService", mock(MessageQueueService.class));
+		ReflectionTestUtils.setField(slackService, "requestScheduler", requestScheduler);
+		ReflectionTestUtils.setField(slackService, "sendLaneCount", 16);
+		ReflectionTestUtils.setField(slackService, "sendLaneDepth", 64);
+		ReflectionTestUtils.setField(slackService, "idempotencyMaxEntries", 100);
+		ReflectionTestUtils.setField(slackService, "syncMaxEntries", 100);
+		ReflectionTestUtils.setField(slackService, "missingChatsMaxEntries", 100);
+		slackService.PostConstruct();
+
+		AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+		// a ready singleton, not autowired again by the context
+		context.getBeanFactory().registerSingleton("slackService", slackService);
+		context.register(WebFluxTestConfig.class, MessageSenderController.class);
+		context.refresh();
+
+		LoopResources eventLoop = LoopResources.create("test-event-loop", 1, true);
+		DisposableServer server = reactor.netty.http.server.HttpServer.create().host("localhost").port(0).runOn(eventLoop)
+			.handle(new ReactorHttpHandlerAdapter(WebHttpHandlerBuilder.applicationContext(context).build())).bindNow();
+		try
+		{
+			WebClient client = WebClient.create("http://localhost:" + server.port());
+			this.send(client, MessageSenderControllerTests.REQUESTS);
+
+			long start = System.nanoTime();
+			this.send(client, MessageSenderControllerTests.REQUESTS);
+			long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+			long serialMillis = (long) MessageSenderControllerTests.REQUESTS * MessageSenderControllerTests.SLACK_DELAY_MILLIS;
+			log.info("{} concurrent /message/send requests on 1 event loop thread, {} ms slack stand-in - {} ms ({} requests per second), one after the other: {} ms",
+				MessageSenderControllerTests.REQUESTS, MessageSenderControllerTests.SLACK_DELAY_MILLIS, elapsedMillis,
+				MessageSenderControllerTests.REQUESTS * 1000L / Math.max(1, elapsedMillis), serialMillis);
+			assertTrue(elapsedMillis < serialMillis / 2);
+		}
+		finally
+		{
+			server.disposeNow();
+			eventLoop.dispose();
+			context.close();
+			slackService.close();
+			slackServer.stop(0);
+			slackThreads.shutdownNow();
+		}
+	}
+
+	/**
+	 * send replies to different chats, all at once
+	 * @param requests - number of replies
+	 */
+	private void send(WebClient client, int requests)
+	{
+		List<ChatMessage> responses = Flux.range(0, requests)
+			.flatMap(i -> client.post().uri("/message/send").contentType(MediaType.APPLICATION_JSON).accept(MediaType.TEXT_EVENT_STREAM)
+				.bodyValue(new ChatMessage(String.format("1700000%03d.000100", i), "", "user", "hi", Instant.now(), SenderType.USER)).retrieve()
+				.bodyToFlux(ChatMessage.class), requests)
+			.collectList().block(Duration.ofSeconds(30));
+
+		assertEquals(requests, responses.size());
+		responses.forEach(response -> assertEquals("1700000001.000100", response.getMessageId()));
+	}
+
+	private static void sleep(long millis)
+	{
+		try
+		{
+			Thread.sleep(millis);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static String encode(String token)
+	{
+		return Base64.getEncoder().encodeToString(token.getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Configuration
+	@EnableWebFlux
+	static class WebFluxTestConfig
+	{
+	}
+}
@@ -0,0 +1,122 @@
+package talmal.contact.messageSender.models;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.List;
+import java.util.function.Function;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.slack.api.app_backend.events.payload.MessagePayload;
+
+import lombok.extern.slf4j.Slf4j;
+import talmal.contact.messageSender.config.SlackGson;
+
+@Slf4j
+public class SlackEventTests
+{
+	private static final int ITERATIONS = 5000;
+
+	// owner reply in a chat thread, our own bot message, an edit, a thread first message
+	private static final List<JsonElement> PAYLOADS = List.of(
+		JsonParser.parseString("{\"token\":\"t\",\"team_id\":\"T1\",\"api_app_id\":\"A1\",\"type\":\"event_callback\",\"event_id\":\"Ev1\",\"event_time\":1700000001,"
+			+ "\"event\":{\"client_msg_id\":\"c1\",\"type\":\"message\",\"text\":\"hello there\",\"user\":\"U03CSHQP35J\",\"ts\":\"1700000001.000200\",\"team\":\"T1\","
+			+ "\"thread_ts\":\"1700000000.000100\",\"parent_user_id\":\"U03DE3JP1DW\",\"channel\":\"C1\",\"event_ts\":\"1700000001.000200\",\"channel_type\":\"channel\"}}"),
+		JsonParser.parseString("{\"token\":\"t\",\"team_id\":\"T1\",\"api_app_id\":\"A1\",\"type\":\"event_callback\",\"event_id\":\"Ev2\",\"event_time\":1700000002,"
+			+ "\"event\":{\"type\":\"message\",\"subtype\":\"bot_message\",\"text\":\"from chat\",\"ts\":\"1700000002.000300\",\"bot_id\":\"B1\",\"username\":\"Robot\","
+			+ "\"thread_ts\":\"1700000000.000100\",\"channel\":\"C1\",\"event_ts\":\"1700000002.000300\",\"channel_type\":\"channel\"}}"),
+		JsonParser.parseString("{\"token\":\"t\",\"team_id\":\"T1\",\"api_app_id\":\"A1\",\"type\":\"event_callback\",\"event_id\":\"Ev3\",\"event_time\":1700000003,"
+			+ "\"event\":{\"type\":\"message\",\"subtype\":\"message_changed\",\"hidden\":true,\"message\":{\"type\":\"message\",\"user\":\"U03CSHQP35J\",\"text\":\"edited\","
+			+ "\"ts\":\"1700000001.000200\"},\"channel\":\"C1\",\"ts\":\"1700000003.000400\",\"event_ts\":\"1700000003.000400\",\"channel_type\":\"channel\"}}"),
+		JsonParser.parseString("{\"token\":\"t\",\"team_id\":\"T1\",\"api_app_id\":\"A1\",\"type\":\"event_callback\",\"event_id\":\"Ev4\",\"event_time\":1700000000,"
+			+ "\"event\":{\"type\":\"message\",\"text\":\"new chat\",\"user\":\"U03DE3JP1DW\",\"ts\":\"1700000000.000100\",\"channel\":\"C1\","
+			+ "\"event_ts\":\"1700000000.000100\",\"channel_type\":\"channel\"}}"));
+
+	/**
+	 * the single pass reads the same fields as the tree walk and payload
+	 * deserialization it replaces
+	 */
+	@Test
+	public void parityTest()
+	{
+		for (JsonElement payload : SlackEventTests.PAYLOADS)
+		{
+			assertEquals(SlackEventTests.legacyParse(payload), SlackEvent.parse(payload));
+		}
+
+		assertEquals("1700000000.000100", SlackEvent.parse(SlackEventTests.PAYLOADS.get(0)).chatKey());
+		assertEquals("1700000000.000100", SlackEvent.parse(SlackEventTests.PAYLOADS.get(3)).chatKey());
+		assertNull(SlackEvent.parse(JsonParser.parseString("{\"type\":\"event_callback\"}")));
+		assertNull(SlackEvent.parse(null));
+	}
+
+	/**
+	 * rough benchmark, logged - average time to read an event both ways
+	 */
+	@Test
+	public void parseBenchmarkTest()
+	{
+		long legacyNanos = SlackEventTests.run(SlackEventTests::legacyParse);
+		long singlePassNanos = SlackEventTests.run(SlackEvent::parse);
+
+		log.info("read of {} event payloads - tree walk + payload deserialization: {} ns average, single pass: {} ns average",
+			SlackEventTests.ITERATIONS * SlackEventTests.PAYLOADS.size(), legacyNanos, singlePassNanos);
+	}
+
+	/**
+	 * @param parser - reads an event
+	 * @return average nanos per event, after a warm-up round
+	 */
+	private static long run(Function<JsonElement, SlackEvent> parser)
+	{
+		long start = 0;
+		int count = 0;
+		for (int round = 0; round < 2; round++)
+		{
+			start = System.nanoTime();
+			count = 0;
+			for (int i = 0; i < SlackEventTests.ITERATIONS; i++)
+			{
+				for (JsonElement payload : SlackEventTests.PAYLOADS)
+				{
+					count += (parser.apply(payload).ts() != null) ? 1 : 0;
+				}
+			}
+		}
+
+		assertEquals(SlackEventTests.ITERATIONS * SlackEventTests.PAYLOADS.size(), count);
+		return (System.nanoTime() - start) / count;
+	}
+
+	/**
+	 * the former read - a tree walk and json deserialization per field, and
+	 * deserialization of the whole payload for ts and text
+	 */
+	private static SlackEvent legacyParse(JsonElement payload)
+	{
+		MessagePayload messagePayload = SlackGson.fromJson(payload, MessagePayload.class);
+		return new SlackEvent(SlackEventTests.legacyString(payload, "event", "user"), SlackEventTests.legacyString(payload, "event", "type"),
+			SlackEventTests.legacyString(payload, "event", "subtype"), SlackEventTests.legacyString(payload, "event", "thread_ts"), messagePayload.getEvent().getTs(),
+			messagePayload.getEvent().getText());
+	}
+
+	private static String legacyString(JsonElement payload, String... keys)
+	{
+		JsonElement value = payload;
+		for (String key : keys)
+		{
+			JsonObject jsonObject = value.getAsJsonObject();
+			value = jsonObject.get(key);
+			if (value == null)
+			{
+				break;
+			}
+		}
+
+		return (value != null) ? SlackGson.fromJson(value, String.class) : null;
+	}
+}
@@ -0,0 +1,341 @@
+package talmal.contact.messageSender.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+
+import talmal.contact.messageSender.models.context.ChatMessage;
+import talmal.contact.messageSender.models.context.SenderType;
+import talmal.contact.messageSender.services.eviction.EvictionPolicyType;
+
+class CacheServiceTests
+{
+	private static final int WRITER_THREADS = 8;
+	private static final int READER_THREADS = 4;
+	private static final int CHATS = 16;
+	private static final int MESSAGES_PER_WRITER = 5000;
+
+	/**
+	 * several writers append to the same chats while readers iterate them, the
+	 * way the slack listener, rabbit listeners and web threads do. no message may
+	 * be lost and no reader may fail.
+	 */
+	@Test
+	public void concurrentAddMessagesStressTest() throws Exception
+	{
+		CacheService cache = new CacheService(true, 10);
+		ExecutorService executor = Executors.newFixedThreadPool(CacheServiceTests.WRITER_THREADS + CacheServiceTests.READER_THREADS);
+		CountDownLatch start = new CountDownLatch(1);
+		AtomicBoolean writing = new AtomicBoolean(true);
+
+		List<Future<?>> writers = new ArrayList<Future<?>>();
+		for (int writer = 0; writer < CacheServiceTests.WRITER_THREADS; writer++)
+		{
+			int writerId = writer;
+			writers.add(executor.submit(() ->
+			{
+				start.await();
+				for (int i = 0; i < CacheServiceTests.MESSAGES_PER_WRITER; i++)
+				{
+					String chatId = CacheServiceTests.chatId(i % CacheServiceTests.CHATS);
+					String messageId = String.format("%d.%06d", 1668031192L + i, writerId);
+					ChatMessage message = new ChatMessage(chatId, messageId, "writer" + writerId, "text " + i, Instant.now(), SenderType.USER);
+
+					// mix single and bulk appends
+					if (i % 2 == 0)
+					{
+						cache.addMessage(message);
+					}
+					else
+					{
+						cache.addMessages(List.of(message));
+					}
+				}
+				return null;
+			}));
+		}
+
+		List<Future<?>> readers = new ArrayList<Future<?>>();
+		for (int reader = 0; reader < CacheServiceTests.READER_THREADS; reader++)
+		{
+			readers.add(executor.submit(() ->
+			{
+				start.await();
+				while (writing.get())
+				{
+					for (String chatId : cache.getChatIds())
+					{
+						List<ChatMessage> messages = cache.getMessages(chatId);
+						if (messages != null)
+						{
+							for (ChatMessage message : messages)
+							{
+								assertNotNull(message);
+							}
+						}
+					}
+					assertNotNull(cache.toString());
+				}
+				return null;
+			}));
+		}
+
+		start.countDown();
+		for (Future<?> writer : writers)
+		{
+			writer.get(1, TimeUnit.MINUTES);
+		}
+		writing.set(false);
+		for (Future<?> reader : readers)
+		{
+			reader.get(1, TimeUnit.MINUTES);
+		}
+		executor.shutdown();
+
+		int total = 0;
+		for (int chat = 0; chat < CacheServiceTests.CHATS; chat++)
+		{
+			List<ChatMessage> messages = cache.getMessages(CacheServiceTests.chatId(chat));
+			assertNotNull(messages);
+			total += messages.size();
+		}
+
+		assertEquals(CacheServiceTests.WRITER_THREADS * CacheServiceTests.MESSAGES_PER_WRITER, total);
+		assertEquals(CacheServiceTests.CHATS, cache.getChatIds().size());
+	}
+
+	/**
+	 * removing a chat while it is written to must leave the cache consistent -
+	 * either the chat is gone, or it holds only messages added after removal
+	 */
+	@Test
+	public void concurrentAddAndRemoveTest() throws Exception
+	{
+		CacheService cache = new CacheService(true, 10);
+		String chatId = CacheServiceTests.chatId(0);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+
+		Future<?> writer = executor.submit(() ->
+		{
+			for (int i = 0; i < CacheServiceTests.MESSAGES_PER_WRITER; i++)
+			{
+				cache.addMessage(new ChatMessage(chatId, String.valueOf(i), "", "", Instant.now(), SenderType.USER));
+			}
+		});
+		Future<?> remover = executor.submit(() ->
+		{
+			for (int i = 0; i < CacheServiceTests.MESSAGES_PER_WRITER; i++)
+			{
+				cache.removeMessages(chatId);
+			}
+		});
+
+		writer.get(1, TimeUnit.MINUTES);
+		remover.get(1, TimeUnit.MINUTES);
+		executor.shutdown();
+
+		List<ChatMessage> messages = cache.getMessages(chatId);
+		assertTrue(messages == null || messages.size() <= CacheServiceTests.MESSAGES_PER_WRITER);
+	}
+
+	/**
+	 * memory estimate is kept up to date by add/remove, and stays close to the
+	 * size measured by walking the object graph
+	 */
+	@Test
+	public void memoryAccountingTest()
+	{
+		CacheService cache = new CacheService(true, 1);
+		for (int i = 0; i < 1000; i++)
+		{
+			String chatId = CacheServiceTests.chatId(i % 10);
+			cache.addMessage(new ChatMessage(chatId, String.format("%d.%06d", 1668031193L + i, i), "name" + (i % 3), "some message text " + i, Instant.now(), SenderType.USER));
+		}
+
+		long estimated = cache.getSizeInBytes();
+		long measured = JolMemoryCalibrator.measure(cache);
+		assertTrue(estimated > 0);
+		assertTrue(Math.abs(estimated - measured) < measured / 4, String.format("estimated: %d, measured: %d", estimated, measured));
+
+		for (int i = 0; i < 10; i++)
+		{
+			cache.removeMessages(CacheServiceTests.chatId(i));
+		}
+		assertEquals(0, cache.getSizeInBytes());
+	}
+
+	/**
+	 * chats are evicted by slack ts as a number, not as a string
+	 */
+	@Test
+	public void removeOldestByTimestampTest()
+	{
+		CacheService cache = new CacheService(true, 10);
+		cache.addMessage(new ChatMessage("1000.000001", "1000.000001", "", "", Instant.now(), SenderType.USER));
+		cache.addMessage(new ChatMessage("999.000002", "999.000002", "", "", Instant.now(), SenderType.USER));
+		cache.addMessage(new ChatMessage("999.000001", "999.000001", "", "", Instant.now(), SenderType.USER));
+
+		assertEquals("999.000001", cache.removeOldest());
+		assertEquals("999.000002", cache.removeOldest());
+		assertEquals("1000.000001", cache.removeOldest());
+		assertEquals(null, cache.removeOldest());
+	}
+
+	/**
+	 * evict oldest chats until the cache fits its memory budget
+	 */
+	@Test
+	public void evictUntilUnderMemoryLimitTest()
+	{
+		CacheService cache = new CacheService(true, 1);
+		String text = "x".repeat(1000);
+		for (int i = 0; i < 3000; i++)
+		{
+			String chatId = CacheServiceTests.chatId(i % 100);
+			String messageId = String.format("%d.%06d", 1668031192L + i, 0);
+			cache.addMessage(new ChatMessage(chatId, messageId, "", text, Instant.now(), SenderType.USER));
+		}
+		assertTrue(cache.isMemoryLimitReached());
+
+		List<String> removed = cache.evictUntilUnderMemoryLimit();
+		assertTrue(!removed.isEmpty());
+		assertEquals(CacheServiceTests.chatId(0), removed.get(0));
+		assertTrue(!cache.isMemoryLimitReached());
+		assertEquals(100 - removed.size(), cache.getChatIds().size());
+	}
+
+	/**
+	 * lru evicts the chat not read for the longest time, even if it is not the
+	 * oldest
+	 */
+	@Test
+	public void lruEvictionTest()
+	{
+		CacheService cache = new CacheService(true, 10, EvictionPolicyType.LRU);
+		for (int i = 0; i < 3; i++)
+		{
+			cache.addMessage(new ChatMessage(CacheServiceTests.chatId(i), CacheServiceTests.chatId(i), "", "", Instant.now(), SenderType.USER));
+		}
+		cache.getMessages(CacheServiceTests.chatId(0));
+		cache.getMessages("0.000000");
+
+		assertEquals(CacheServiceTests.chatId(1), cache.removeOldest());
+		assertEquals(CacheServiceTests.chatId(2), cache.removeOldest());
+		assertEquals(CacheServiceTests.chatId(0), cache.removeOldest());
+		assertEquals(1, cache.getStatistics().getHits());
+		assertEquals(1, cache.getStatistics().getMisses());
+		assertEquals(3, cache.getStatistics().getEvictions());
+	}
+
+	/**
+	 * tiny lfu keeps chats that are refreshed all the time, while a burst of chats
+	 * opened once is evicted
+	 */
+	@Test
+	public void tinyLfuEvictionTest()
+	{
+		CacheService cache = new CacheService(true, 10, EvictionPolicyType.TINY_LFU);
+		int popularChats = 10;
+		for (int i = 0; i < popularChats; i++)
+		{
+			cache.addMessage(new ChatMessage(CacheServiceTests.chatId(i), CacheServiceTests.chatId(i), "", "", Instant.now(), SenderType.USER));
+			for (int refresh = 0; refresh < 5; refresh++)
+			{
+				cache.getMessages(CacheServiceTests.chatId(i));
+			}
+		}
+		for (int i = popularChats; i < 1000; i++)
+		{
+			cache.addMessage(new ChatMessage(CacheServiceTests.chatId(i), CacheServiceTests.chatId(i), "", "", Instant.now(), SenderType.USER));
+		}
+
+		for (int i = popularChats; i < 1000; i++)
+		{
+			String removedChatId = cache.removeOldest();
+			assertTrue(removedChatId.compareTo(CacheServiceTests.chatId(popularChats)) >= 0, removedChatId);
+		}
+		assertEquals(popularChats, cache.getChatIds().size());
+	}
+
+	private static String chatId(int index)
+	{
+		return String.format("%d.%06d", 1668031192L, index);
+	}
+
+	/**
+	 * a message id already in the chat is not added again, messages are kept in
+	 * slack ts order regardless of arrival order
+	 */
+	@Test
+	public void deduplicateAndOrderTest()
+	{
+		CacheService cache = new CacheService(true, 10);
+		String chatId = "1668031192.000000";
+		ChatMessage first = new ChatMessage(chatId, "1668031193.000100", "", "first", Instant.now(), SenderType.USER);
+		ChatMessage second = new ChatMessage(chatId, "1668031193.0002", "", "second", Instant.now(), SenderType.USER);
+		ChatMessage third = new ChatMessage(chatId, "1668031200.000000", "", "third", Instant.now(), SenderType.USER);
+
+		assertTrue(cache.addMessage(third));
+		assertTrue(cache.addMessages(List.of(first, third)));
+		long sizeInBytes = cache.getSizeInBytes();
+		assertTrue(!cache.addMessage(new ChatMessage(chatId, "1668031193.000100", "", "again", Instant.now(), SenderType.USER)));
+		assertEquals(sizeInBytes, cache.getSizeInBytes());
+		assertTrue(cache.addMessage(second));
+
+		assertEquals(List.of(first, second, third), cache.getMessages(chatId));
+	}
+
+	/**
+	 * a message without id is cached with a null id, not a made up one
+	 */
+	@Test
+	public void nullMessageIdTest()
+	{
+		CacheService cache = new CacheService(true, 10);
+		String chatId = "1668031192.000000";
+		ChatMessage message = new ChatMessage(chatId, null, "", "no id", Instant.now(), SenderType.USER);
+
+		assertTrue(cache.addMessage(message));
+		assertEquals(List.of(message), cache.getMessages(chatId));
+		assertNull(cache.getMessages(chatId).get(0).getMessageId());
+	}
+
+	/**
+	 * bytes per cached message, ChatMessage vs CompactChatMessage, measured with jol
+	 */
+	@Test
+	public void compactMessageSizeTest()
+	{
+		int count = 1000;
+		List<ChatMessage> messages = new ArrayList<ChatMessage>();
+		List<CompactChatMessage> compactMessages = new ArrayList<CompactChatMessage>();
+		NameTable nameTable = new NameTable();
+		for (int i = 0; i < count; i++)
+		{
+			// new strings per message, as parsed from slack
+			String messageId = String.format("%d.%06d", 1668031193L + i, i);
+			ChatMessage message = new ChatMessage(new String("1668031192.056079"), messageId, new String("name" + (i % 3)), "some message text " + i,
+				Tools.slackTsToInstant(messageId), SenderType.USER);
+			messages.add(message);
+			compactMessages.add(new CompactChatMessage(message, nameTable));
+		}
+
+		long bytesPerMessage = JolMemoryCalibrator.measure(messages) / count;
+		long compactBytesPerMessage = JolMemoryCalibrator.measure(compactMessages) / count;
+		assertTrue(compactBytesPerMessage * 2 < bytesPerMessage, String.format("ChatMessage: %d bytes, CompactChatMessage: %d bytes", bytesPerMessage, compactBytesPerMessage));
+		assertEquals(messages, new CompactMessageList("1668031192.056079", compactMessages.toArray(new CompactChatMessage[0])));
+	}
+}
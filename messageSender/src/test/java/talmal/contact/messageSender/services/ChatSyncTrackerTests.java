@@ -0,0 +1,62 @@
+package talmal.contact.messageSender.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+public class ChatSyncTrackerTests
+{
+	/**
+	 * a chat is stale until read from slack, and again once the stale time passed.
+	 * the newest ts never moves back.
+	 */
+	@Test
+	public void staleAndNewestTsTest()
+	{
+		ChatSyncTracker tracker = new ChatSyncTracker(60, 100);
+		long now = System.nanoTime();
+
+		assertTrue(tracker.isStale("chat1", now));
+		assertNull(tracker.getNewestTs("chat1"));
+
+		tracker.markSynced("chat1", "1700000000.000200", now);
+		assertFalse(tracker.isStale("chat1", now + TimeUnit.SECONDS.toNanos(59)));
+		assertTrue(tracker.isStale("chat1", now + TimeUnit.SECONDS.toNanos(60)));
+
+		// a delta sync that read nothing new keeps the newest ts and renews the sync time
+		tracker.markSynced("chat1", "1700000000.000100", now + TimeUnit.SECONDS.toNanos(60));
+		tracker.markSynced("chat1", null, now + TimeUnit.SECONDS.toNanos(60));
+		assertEquals("1700000000.000200", tracker.getNewestTs("chat1"));
+		assertFalse(tracker.isStale("chat1", now + TimeUnit.SECONDS.toNanos(61)));
+
+		tracker.remove("chat1");
+		assertTrue(tracker.isStale("chat1", now));
+	}
+
+	/**
+	 * 0 stale time trusts the cache, full tracker drops least recently used chats
+	 */
+	@Test
+	public void disabledAndBoundedTest()
+	{
+		ChatSyncTracker disabled = new ChatSyncTracker(0, 100);
+		assertFalse(disabled.isStale("chat1", System.nanoTime()));
+
+		ChatSyncTracker tracker = new ChatSyncTracker(60, 2);
+		long now = System.nanoTime();
+		tracker.markSynced("chat1", "1", now);
+		tracker.markSynced("chat2", "2", now);
+		tracker.getNewestTs("chat1");
+		tracker.markSynced("chat3", "3", now);
+
+		assertEquals(2, tracker.size());
+		assertEquals("1", tracker.getNewestTs("chat1"));
+		assertNull(tracker.getNewestTs("chat2"));
+		assertTrue(tracker.isStale("chat2", now));
+	}
+}
@@ -0,0 +1,61 @@
+package talmal.contact.messageSender.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+public class ExpiringMapTests
+{
+	/**
+	 * an entry lives ttl from its last write, a rewrite renews it. remove by value
+	 * leaves a replaced value alone.
+	 */
+	@Test
+	public void ttlTest()
+	{
+		ExpiringMap<String, String> map = new ExpiringMap<String, String>(TimeUnit.SECONDS.toNanos(60), 100, false);
+		long now = System.nanoTime();
+
+		map.put("key1", "value1", now);
+		map.put("key2", "value2", now + TimeUnit.SECONDS.toNanos(30));
+		assertEquals("value1", map.putIfAbsent("key1", "other", now + TimeUnit.SECONDS.toNanos(59)));
+		assertNull(map.get("key1", now + TimeUnit.SECONDS.toNanos(60)));
+		assertEquals("value2", map.get("key2", now + TimeUnit.SECONDS.toNanos(60)));
+		assertEquals(1, map.size());
+
+		map.put("key2", "value3", now + TimeUnit.SECONDS.toNanos(60));
+		map.remove("key2", "value2");
+		assertEquals("value3", map.get("key2", now + TimeUnit.SECONDS.toNanos(100)));
+		assertEquals("value3", map.remove("key2"));
+		assertNull(map.putIfAbsent("key2", "value4", now));
+	}
+
+	/**
+	 * a full map drops the eldest entry - the least recently used one in access
+	 * order. 0 ttl keeps entries.
+	 */
+	@Test
+	public void boundedTest()
+	{
+		long now = System.nanoTime();
+		ExpiringMap<String, String> writeOrder = new ExpiringMap<String, String>(0, 2, false);
+		ExpiringMap<String, String> accessOrder = new ExpiringMap<String, String>(0, 2, true);
+		for (ExpiringMap<String, String> map : List.of(writeOrder, accessOrder))
+		{
+			map.put("key1", "value1", now);
+			map.put("key2", "value2", now);
+			map.get("key1", now);
+			map.put("key3", "value3", now + TimeUnit.DAYS.toNanos(1000));
+			assertEquals(2, map.size());
+		}
+
+		assertNull(writeOrder.get("key1", now));
+		assertEquals("value2", writeOrder.get("key2", now));
+		assertEquals("value1", accessOrder.get("key1", now));
+		assertNull(accessOrder.get("key2", now));
+	}
+}
@@ -0,0 +1,69 @@
+package talmal.contact.messageSender.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+public class IdempotencyStoreTests
+{
+	/**
+	 * a repeated key gets the first response without running again, also while
+	 * the first request is still running. failures are not kept.
+	 */
+	@Test
+	public void replayTest()
+	{
+		IdempotencyStore<String> store = new IdempotencyStore<String>(600, 100, response -> response.equals("ERROR"));
+		AtomicInteger runs = new AtomicInteger();
+		CompletableFuture<String> pending = new CompletableFuture<String>();
+
+		CompletableFuture<String> first = store.execute("key", () ->
+		{
+			runs.incrementAndGet();
+			return pending;
+		});
+		CompletableFuture<String> retry = store.execute("key", () ->
+		{
+			runs.incrementAndGet();
+			return CompletableFuture.completedFuture("other");
+		});
+		pending.complete("ok");
+
+		assertEquals("ok", first.join());
+		assertEquals("ok", retry.join());
+		assertEquals(1, runs.get());
+		assertEquals(1, store.getReplays());
+
+		// failed responses are retried
+		store.execute("failed", () -> CompletableFuture.completedFuture("ERROR"));
+		assertEquals("ok", store.execute("failed", () -> CompletableFuture.completedFuture("ok")).join());
+
+		// no key - always runs
+		store.execute(null, () -> CompletableFuture.completedFuture(String.valueOf(runs.incrementAndGet())));
+		assertEquals(2, runs.get());
+	}
+
+	/**
+	 * oldest keys are dropped when the store is full
+	 */
+	@Test
+	public void boundedTest()
+	{
+		IdempotencyStore<String> store = new IdempotencyStore<String>(600, 10, response -> false);
+		CompletableFuture<String> firstResponse = store.execute("key0", () -> CompletableFuture.completedFuture("first"));
+		for (int i = 1; i < 20; i++)
+		{
+			String response = "response" + i;
+			store.execute("key" + i, () -> CompletableFuture.completedFuture(response));
+		}
+
+		assertEquals(10, store.size());
+		CompletableFuture<String> newResponse = store.execute("key0", () -> CompletableFuture.completedFuture("second"));
+		assertEquals("second", newResponse.join());
+		assertSame(firstResponse.join(), "first");
+	}
+}
@@ -0,0 +1,118 @@
+package talmal.contact.messageSender.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import talmal.contact.messageSender.models.context.ChatMessage;
+import talmal.contact.messageSender.models.context.SenderType;
+
+public class IdleExpiryCacheTests
+{
+	private static final long TICK = 1000;
+
+	/**
+	 * keys expire on their deadline tick, after extra wheel turns when the
+	 * deadline is further than one turn
+	 */
+	@Test
+	public void timingWheelExpiryTest()
+	{
+		TimingWheel<String> wheel = new TimingWheel<String>(IdleExpiryCacheTests.TICK, 4, 0);
+		wheel.schedule("near", 3 * IdleExpiryCacheTests.TICK);
+		wheel.schedule("far", 10 * IdleExpiryCacheTests.TICK);
+
+		assertTrue(wheel.advance(2 * IdleExpiryCacheTests.TICK).isEmpty());
+		assertEquals(List.of("near"), wheel.advance(3 * IdleExpiryCacheTests.TICK));
+		assertTrue(wheel.advance(9 * IdleExpiryCacheTests.TICK).isEmpty());
+		assertEquals(List.of("far"), wheel.advance(10 * IdleExpiryCacheTests.TICK));
+		assertEquals(0, wheel.size());
+	}
+
+	/**
+	 * rescheduling moves the deadline, cancelled keys never expire
+	 */
+	@Test
+	public void timingWheelRescheduleAndCancelTest()
+	{
+		TimingWheel<String> wheel = new TimingWheel<String>(IdleExpiryCacheTests.TICK, 8, 0);
+		wheel.schedule("moved", 5 * IdleExpiryCacheTests.TICK);
+		wheel.schedule("cancelled", 5 * IdleExpiryCacheTests.TICK);
+		wheel.schedule("moved", 20 * IdleExpiryCacheTests.TICK);
+		wheel.cancel("cancelled");
+
+		assertTrue(wheel.advance(19 * IdleExpiryCacheTests.TICK).isEmpty());
+		assertEquals(List.of("moved"), wheel.advance(20 * IdleExpiryCacheTests.TICK));
+		assertTrue(wheel.advance(100 * IdleExpiryCacheTests.TICK).isEmpty());
+	}
+
+	/**
+	 * the expiry callback runs atomically with the expiry - a schedule() of the
+	 * key meanwhile waits, and then starts a new deadline
+	 */
+	@Test
+	public void timingWheelExpiryCallbackTest()
+	{
+		TimingWheel<String> wheel = new TimingWheel<String>(IdleExpiryCacheTests.TICK, 8, 0);
+		wheel.schedule("chat", 3 * IdleExpiryCacheTests.TICK);
+
+		Thread touch = new Thread(() -> wheel.schedule("chat", 100 * IdleExpiryCacheTests.TICK));
+		assertEquals(List.of("chat"), wheel.advance(5 * IdleExpiryCacheTests.TICK, key ->
+		{
+			touch.start();
+			IdleExpiryCacheTests.join(touch, 200);
+			assertTrue(touch.isAlive());
+		}));
+
+		IdleExpiryCacheTests.join(touch, 5000);
+		assertEquals(1, wheel.size());
+		assertTrue(wheel.advance(99 * IdleExpiryCacheTests.TICK).isEmpty());
+		assertEquals(List.of("chat"), wheel.advance(100 * IdleExpiryCacheTests.TICK));
+	}
+
+	/**
+	 * idle chats are removed from the wrapped cache, active chats stay
+	 */
+	@Test
+	public void idleChatExpiryTest()
+	{
+		CacheService cache = new CacheService(true, 10);
+		IdleExpiryCache idleExpiryCache = new IdleExpiryCache(cache, Duration.ofMinutes(1), Duration.ofSeconds(1));
+		try
+		{
+			long start = System.nanoTime();
+			idleExpiryCache.addMessage(new ChatMessage("1668031192.000000", "1668031192.000000", "", "idle", Instant.now(), SenderType.USER));
+			idleExpiryCache.addMessage(new ChatMessage("1668031193.000000", "1668031193.000000", "", "closed", Instant.now(), SenderType.USER));
+			idleExpiryCache.removeMessages("1668031193.000000");
+
+			assertTrue(idleExpiryCache.expireIdleChats(start + Duration.ofSeconds(30).toNanos()).isEmpty());
+			assertNotNull(cache.getMessages("1668031192.000000"));
+
+			assertEquals(List.of("1668031192.000000"), idleExpiryCache.expireIdleChats(System.nanoTime() + Duration.ofMinutes(2).toNanos()));
+			assertTrue(!cache.isChatExists("1668031192.000000"));
+			assertEquals(1, cache.getStatistics().getExpirations());
+		}
+		finally
+		{
+			idleExpiryCache.close();
+		}
+	}
+
+	private static void join(Thread thread, long millis)
+	{
+		try
+		{
+			thread.join(millis);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,186 @@
+package talmal.contact.messageSender.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import talmal.contact.messageSender.models.context.ChatMessage;
+import talmal.contact.messageSender.models.context.SenderType;
+import talmal.contact.messageSender.services.eviction.EvictionPolicyType;
+
+class JournalCacheServiceTests
+{
+	@TempDir
+	Path directory;
+
+	/**
+	 * chats written before close are recovered on the next start, closed chats are
+	 * not
+	 */
+	@Test
+	public void recoverAfterRestartTest() throws IOException
+	{
+		JournalCacheService cache = this.open(64);
+		List<ChatMessage> chat1 = this.addChat(cache, JournalCacheServiceTests.chatId(1), 5);
+		this.addChat(cache, JournalCacheServiceTests.chatId(2), 5);
+		List<ChatMessage> chat3 = this.addChat(cache, JournalCacheServiceTests.chatId(3), 5);
+		cache.removeMessages(JournalCacheServiceTests.chatId(2));
+		cache.close();
+
+		JournalCacheService recovered = this.open(64);
+		assertEquals(chat1, recovered.getMessages(JournalCacheServiceTests.chatId(1)));
+		assertNull(recovered.getMessages(JournalCacheServiceTests.chatId(2)));
+		assertEquals(chat3, recovered.getMessages(JournalCacheServiceTests.chatId(3)));
+		assertEquals(cache.getSizeInBytes(), recovered.getSizeInBytes());
+		recovered.close();
+	}
+
+	/**
+	 * a torn record at the journal tail is dropped, everything before it is
+	 * recovered and new records are written over it
+	 */
+	@Test
+	public void recoverTornWriteTest() throws IOException
+	{
+		JournalCacheService cache = this.open(64);
+		List<ChatMessage> chat1 = this.addChat(cache, JournalCacheServiceTests.chatId(1), 3);
+		cache.close();
+
+		// corrupt last record payload
+		Path segment = Files.list(this.directory).collect(Collectors.toList()).get(0);
+		long lastRecordEnd = 0;
+		try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw"))
+		{
+			int length;
+			while ((length = file.readInt()) != 0)
+			{
+				lastRecordEnd = file.getFilePointer() - Integer.BYTES + length;
+				file.seek(lastRecordEnd);
+			}
+			file.seek(lastRecordEnd - 1);
+			file.write(0x7F);
+		}
+
+		JournalCacheService recovered = this.open(64);
+		assertEquals(chat1.subList(0, 2), recovered.getMessages(JournalCacheServiceTests.chatId(1)));
+		ChatMessage message = new ChatMessage(JournalCacheServiceTests.chatId(1), "4.000000", "name", "after crash", Instant.ofEpochSecond(4), SenderType.USER);
+		recovered.addMessage(message);
+		recovered.close();
+
+		JournalCacheService reopened = this.open(64);
+		assertEquals(List.of(chat1.get(0), chat1.get(1), message), reopened.getMessages(JournalCacheServiceTests.chatId(1)));
+		reopened.close();
+	}
+
+	/**
+	 * compaction moves live chats out of mostly dead segments and deletes them,
+	 * without changing what is recovered
+	 */
+	@Test
+	public void compactionTest() throws IOException
+	{
+		JournalCacheService cache = this.open(4);
+		List<ChatMessage> liveChat = this.addChat(cache, JournalCacheServiceTests.chatId(0), 3);
+		for (int i = 1; i < 200; i++)
+		{
+			this.addChat(cache, JournalCacheServiceTests.chatId(i), 3);
+			cache.removeMessages(JournalCacheServiceTests.chatId(i));
+		}
+		int segmentCount = cache.getSegmentCount();
+		assertTrue(segmentCount > 2);
+
+		cache.compact();
+		assertTrue(cache.getSegmentCount() < segmentCount);
+		assertEquals(liveChat, cache.getMessages(JournalCacheServiceTests.chatId(0)));
+		cache.close();
+
+		JournalCacheService recovered = this.open(4);
+		assertEquals(liveChat, recovered.getMessages(JournalCacheServiceTests.chatId(0)));
+		assertEquals(1, recovered.getChatIds().size());
+		assertFalse(recovered.isChatExists(JournalCacheServiceTests.chatId(1)));
+		recovered.close();
+	}
+
+	/**
+	 * a mostly dead segment is compacted even when an older segment stays live,
+	 * and the REMOVE records it held still hide the older records of closed chats
+	 */
+	@Test
+	public void compactionBehindLiveSegmentTest() throws IOException
+	{
+		JournalCacheService cache = this.open(4);
+		this.addChat(cache, JournalCacheServiceTests.chatId(1), 3);
+		this.addChat(cache, JournalCacheServiceTests.chatId(2), 3);
+		List<List<ChatMessage>> liveChats = new ArrayList<List<ChatMessage>>();
+		for (int i = 3; cache.getSegmentCount() == 1; i++)
+		{
+			liveChats.add(this.addChat(cache, JournalCacheServiceTests.chatId(i), 3));
+		}
+
+		// closed for good, and closed then opened again - both have records in the live first segment
+		cache.removeMessages(JournalCacheServiceTests.chatId(1));
+		cache.removeMessages(JournalCacheServiceTests.chatId(2));
+		ChatMessage reopened = new ChatMessage(JournalCacheServiceTests.chatId(2), "10.000000", "name", "reopened", Instant.ofEpochSecond(10), SenderType.USER);
+		cache.addMessage(reopened);
+		for (int i = 1000; i < 1200; i++)
+		{
+			this.addChat(cache, JournalCacheServiceTests.chatId(i), 3);
+			cache.removeMessages(JournalCacheServiceTests.chatId(i));
+		}
+		int segmentCount = cache.getSegmentCount();
+		assertTrue(segmentCount > 3);
+
+		cache.compact();
+		assertTrue(cache.getSegmentCount() < segmentCount - 1);
+		assertFalse(cache.isChatExists(JournalCacheServiceTests.chatId(1)));
+		assertEquals(List.of(reopened), cache.getMessages(JournalCacheServiceTests.chatId(2)));
+		cache.close();
+
+		JournalCacheService recovered = this.open(4);
+		assertFalse(recovered.isChatExists(JournalCacheServiceTests.chatId(1)));
+		assertFalse(recovered.isChatExists(JournalCacheServiceTests.chatId(1000)));
+		assertEquals(List.of(reopened), recovered.getMessages(JournalCacheServiceTests.chatId(2)));
+		for (List<ChatMessage> liveChat : liveChats)
+		{
+			assertEquals(liveChat, recovered.getMessages(liveChat.get(0).getChatId()));
+		}
+		assertEquals(liveChats.size() + 1, recovered.getChatIds().size());
+		recovered.close();
+	}
+
+	private JournalCacheService open(int segmentSizeInKb) throws IOException
+	{
+		return new JournalCacheService(true, 10, EvictionPolicyType.OLDEST, this.directory.toString(), segmentSizeInKb, 0.5, 0);
+	}
+
+	private List<ChatMessage> addChat(JournalCacheService cache, String chatId, int messageCount)
+	{
+		List<ChatMessage> result = new ArrayList<ChatMessage>();
+		for (int i = 0; i < messageCount; i++)
+		{
+			ChatMessage message = new ChatMessage(chatId, i + ".000000", "name", "message text " + i, Instant.ofEpochSecond(i), SenderType.USER);
+			cache.addMessage(message);
+			result.add(message);
+		}
+
+		return result;
+	}
+
+	private static String chatId(int index)
+	{
+		return String.format("%d.%06d", 1668031192L, index);
+	}
+}
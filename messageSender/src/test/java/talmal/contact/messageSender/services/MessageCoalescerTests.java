@@ -0,0 +1,115 @@
+package talmal.contact.messageSender.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import talmal.contact.messageSender.models.context.ChatMessage;
+import talmal.contact.messageSender.models.context.SenderType;
+
+public class MessageCoalescerTests
+{
+	/**
+	 * messages of a sender within the window become one post, each message is
+	 * answered with its own text under the post id. another sender starts a new
+	 * post.
+	 */
+	@Test
+	public void coalesceTest() throws Exception
+	{
+		String chatId = "1668031192.000000";
+		List<ChatMessage> posts = new ArrayList<ChatMessage>();
+		AtomicInteger nextTs = new AtomicInteger(1668031200);
+		MessageCoalescer coalescer = new MessageCoalescer(200, 10, message ->
+		{
+			synchronized (posts)
+			{
+				posts.add(message);
+			}
+
+			return CompletableFuture.completedFuture(new ChatMessage(chatId, nextTs.getAndIncrement() + ".000000", message.getName(), message.getMessage(),
+				Instant.now(), SenderType.USER));
+		});
+		OrderedLaneExecutor<String> lanes = new OrderedLaneExecutor<String>("test", 2, 10);
+		try
+		{
+			List<CompletableFuture<ChatMessage>> responses = new ArrayList<CompletableFuture<ChatMessage>>();
+			for (String text : List.of("hi", "are you", "there?"))
+			{
+				responses.add(coalescer.send(new ChatMessage(chatId, null, "user", text, Instant.now(), SenderType.USER), task -> lanes.trySubmit(chatId, task)));
+			}
+			responses.add(coalescer.send(new ChatMessage(chatId, null, "owner", "yes", Instant.now(), SenderType.OWNER), task -> lanes.trySubmit(chatId, task)));
+
+			assertEquals("are you", responses.get(1).get(5, TimeUnit.SECONDS).getMessage());
+			assertEquals("1668031200.000000", responses.get(0).get(5, TimeUnit.SECONDS).getMessageId());
+			assertEquals("1668031200.000000", responses.get(2).get(5, TimeUnit.SECONDS).getMessageId());
+			assertEquals("1668031201.000000", responses.get(3).get(5, TimeUnit.SECONDS).getMessageId());
+
+			assertEquals(2, posts.size());
+			assertEquals("hi\nare you\nthere?", posts.get(0).getMessage());
+			assertEquals("yes", posts.get(1).getMessage());
+		}
+		finally
+		{
+			lanes.close();
+		}
+	}
+
+	/**
+	 * an open batch does not hold its lane during the window, and a message that
+	 * is not coalesced seals the batch and is sent after it
+	 */
+	@Test
+	public void sealTest() throws Exception
+	{
+		String chatId = "1668031192.000000";
+		List<String> posts = new ArrayList<String>();
+		MessageCoalescer coalescer = new MessageCoalescer(TimeUnit.SECONDS.toMillis(30), 10, message ->
+		{
+			synchronized (posts)
+			{
+				posts.add(message.getMessage());
+			}
+
+			return CompletableFuture.completedFuture(new ChatMessage(chatId, "1668031200.000000", message.getName(), message.getMessage(), Instant.now(),
+				SenderType.USER));
+		});
+		OrderedLaneExecutor<String> lanes = new OrderedLaneExecutor<String>("test", 1, 10);
+		try
+		{
+			CompletableFuture<ChatMessage> hi = coalescer.send(new ChatMessage(chatId, null, "user", "hi", Instant.now(), SenderType.USER), task -> lanes.trySubmit(chatId, task));
+
+			// another chat in the same lane is not held behind the open window
+			assertEquals("other chat", lanes.trySubmit("1668031193.000000", () -> CompletableFuture.completedFuture("other chat")).get(5, TimeUnit.SECONDS));
+			assertFalse(hi.isDone());
+
+			// e.g. "close chat"
+			coalescer.seal(chatId);
+			CompletableFuture<String> close = lanes.trySubmit(chatId, () ->
+			{
+				synchronized (posts)
+				{
+					posts.add("close");
+				}
+
+				return CompletableFuture.completedFuture("close");
+			});
+
+			close.get(5, TimeUnit.SECONDS);
+			assertEquals("hi", hi.get(5, TimeUnit.SECONDS).getMessage());
+			assertEquals(List.of("hi", "close"), posts);
+		}
+		finally
+		{
+			lanes.close();
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package talmal.contact.messageSender.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+public class MissingChatCacheTests
+{
+	/**
+	 * a missing chat id is remembered until its ttl passes or it is removed
+	 */
+	@Test
+	public void ttlAndRemoveTest()
+	{
+		MissingChatCache missingChats = new MissingChatCache(60, 100);
+		long now = System.nanoTime();
+
+		assertFalse(missingChats.isMissing("chat1", now));
+		missingChats.addMissing("chat1", now);
+		missingChats.addMissing("chat2", now + TimeUnit.SECONDS.toNanos(30));
+
+		assertTrue(missingChats.isMissing("chat1", now + TimeUnit.SECONDS.toNanos(59)));
+		assertFalse(missingChats.isMissing("chat1", now + TimeUnit.SECONDS.toNanos(60)));
+		assertTrue(missingChats.isMissing("chat2", now + TimeUnit.SECONDS.toNanos(60)));
+		assertEquals(2, missingChats.getHits());
+		assertEquals(1, missingChats.size());
+
+		// a send to chat2 may have created it
+		missingChats.remove("chat2");
+		assertFalse(missingChats.isMissing("chat2", now + TimeUnit.SECONDS.toNanos(60)));
+	}
+
+	/**
+	 * full cache drops the oldest chat ids, 0 ttl remembers none
+	 */
+	@Test
+	public void boundedAndDisabledTest()
+	{
+		MissingChatCache missingChats = new MissingChatCache(60, 2);
+		long now = System.nanoTime();
+		missingChats.addMissing("chat1", now);
+		missingChats.addMissing("chat2", now);
+		missingChats.addMissing("chat1", now + 1);
+		missingChats.addMissing("chat3", now + 2);
+
+		assertEquals(2, missingChats.size());
+		assertTrue(missingChats.isMissing("chat1", now + 2));
+		assertFalse(missingChats.isMissing("chat2", now + 2));
+		assertTrue(missingChats.isMissing("chat3", now + 2));
+
+		MissingChatCache disabled = new MissingChatCache(0, 100);
+		disabled.addMissing("chat1", now);
+		assertFalse(disabled.isMissing("chat1", now));
+	}
+}
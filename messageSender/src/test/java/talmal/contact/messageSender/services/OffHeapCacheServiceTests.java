@@ -0,0 +1,112 @@
+package talmal.contact.messageSender.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Instant;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import talmal.contact.messageSender.models.context.ChatMessage;
+import talmal.contact.messageSender.models.context.SenderType;
+import talmal.contact.messageSender.services.eviction.EvictionPolicyType;
+
+class OffHeapCacheServiceTests
+{
+	/**
+	 * messages read back from off heap arenas equal the messages written
+	 */
+	@Test
+	public void encodeDecodeTest()
+	{
+		OffHeapCacheService cache = new OffHeapCacheService(true, 10, EvictionPolicyType.OLDEST, 1);
+		String chatId = "1668031192.056079";
+		ChatMessage first = new ChatMessage(chatId, chatId, "owner", "שלום hello", Instant.ofEpochSecond(1668031192, 56079000), SenderType.OWNER);
+		ChatMessage second = new ChatMessage(chatId, "1668031193.000001", null, "x".repeat(3000), null, null);
+		cache.addMessage(first);
+		cache.addMessage(second);
+
+		List<ChatMessage> messages = cache.getMessages(chatId);
+		assertEquals(List.of(first, second), messages);
+		assertTrue(cache.getSizeInBytes() > 3000);
+		assertNull(cache.getMessages("1668031192.000000"));
+	}
+
+	/**
+	 * removing chats releases their arenas, eviction applies to off heap bytes
+	 */
+	@Test
+	public void evictionReleasesArenasTest()
+	{
+		OffHeapCacheService cache = new OffHeapCacheService(true, 1, EvictionPolicyType.OLDEST, 64);
+		String text = "x".repeat(1000);
+		for (int i = 0; i < 2000; i++)
+		{
+			String chatId = String.format("%d.%06d", 1668031192L + i / 10, 0);
+			String messageId = String.format("%d.%06d", 1668031192L + i / 10, i % 10);
+			cache.addMessage(new ChatMessage(chatId, messageId, "", text, Instant.now(), SenderType.USER));
+		}
+		assertTrue(cache.isMemoryLimitReached());
+		long allocatedBytes = cache.getAllocatedBytes();
+
+		List<String> removed = cache.evictUntilUnderMemoryLimit();
+		assertEquals("1668031192.000000", removed.get(0));
+		assertTrue(!cache.isMemoryLimitReached());
+		assertTrue(cache.getAllocatedBytes() < allocatedBytes);
+
+		for (String chatId : List.copyOf(cache.getChatIds()))
+		{
+			cache.removeMessages(chatId);
+		}
+		assertEquals(0, cache.getSizeInBytes());
+	}
+
+	/**
+	 * arenas kept allocated by one long lived chat each count against the memory
+	 * limit, compaction moves those chats and releases the arenas without
+	 * evicting them
+	 */
+	@Test
+	public void sparseArenasCountTest()
+	{
+		OffHeapCacheService cache = new OffHeapCacheService(true, 1, EvictionPolicyType.OLDEST, 64);
+		String text = "x".repeat(1000);
+		for (int arena = 0; arena < 40; arena++)
+		{
+			// one long lived chat, then short chats that fill the arena and close
+			String pinnedChatId = String.format("%d.%06d", 1668031192L + arena, 0);
+			cache.addMessage(new ChatMessage(pinnedChatId, pinnedChatId, "", text, Instant.now(), SenderType.USER));
+			for (int i = 0; i < 63; i++)
+			{
+				String chatId = String.format("%d.%06d", 1700000000L + arena * 100 + i, 0);
+				cache.addMessage(new ChatMessage(chatId, chatId, "", text, Instant.now(), SenderType.USER));
+				cache.removeMessages(chatId);
+			}
+		}
+		assertTrue(cache.getSizeInBytes() < 100000);
+		assertTrue(cache.getAllocatedBytes() > 2000000);
+		assertTrue(cache.isMemoryLimitReached());
+
+		long sizeInBytes = cache.getSizeInBytes();
+		List<ChatMessage> pinnedChat = cache.getMessages("1668031192.000000");
+
+		List<String> removed = cache.evictUntilUnderMemoryLimit();
+		assertEquals(List.of(), removed);
+		assertTrue(!cache.isMemoryLimitReached());
+		assertTrue(cache.getAllocatedBytes() < 1000000);
+		assertEquals(sizeInBytes, cache.getSizeInBytes());
+		assertEquals(40, cache.getChatIds().size());
+		for (int arena = 0; arena < 40; arena++)
+		{
+			String pinnedChatId = String.format("%d.%06d", 1668031192L + arena, 0);
+			List<ChatMessage> messages = cache.getMessages(pinnedChatId);
+			assertEquals(pinnedChatId, messages.get(0).getMessageId());
+			assertEquals(text, messages.get(0).getMessage());
+		}
+
+		// a list read before compaction still reads its old arena
+		assertEquals(text, pinnedChat.get(0).getMessage());
+	}
+}
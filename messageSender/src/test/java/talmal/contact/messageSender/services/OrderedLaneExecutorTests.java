@@ -0,0 +1,196 @@
+package talmal.contact.messageSender.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+public class OrderedLaneExecutorTests
+{
+	/**
+	 * tasks of a key run in submit order, even async tasks that complete later
+	 * then their followers would
+	 */
+	@Test
+	public void orderPerKeyTest() throws Exception
+	{
+		OrderedLaneExecutor<String> lanes = new OrderedLaneExecutor<String>("test", 4, 1000);
+		try
+		{
+			Map<String, List<Integer>> results = new ConcurrentHashMap<String, List<Integer>>();
+			List<CompletableFuture<Integer>> futures = new ArrayList<CompletableFuture<Integer>>();
+			for (int i = 0; i < 400; i++)
+			{
+				String key = "chat" + (i % 10);
+				int value = i;
+				futures.add(lanes.submit(key, () -> CompletableFuture.supplyAsync(() ->
+				{
+					// earlier tasks take longer
+					OrderedLaneExecutorTests.sleep((400 - value) % 3);
+					results.computeIfAbsent(key, k -> Collections.synchronizedList(new ArrayList<Integer>())).add(value);
+					return value;
+				})));
+			}
+
+			CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(30, TimeUnit.SECONDS);
+			for (int key = 0; key < 10; key++)
+			{
+				List<Integer> values = results.get("chat" + key);
+				assertEquals(40, values.size());
+				for (int i = 0; i < values.size(); i++)
+				{
+					assertEquals(key + i * 10, values.get(i));
+				}
+			}
+		}
+		finally
+		{
+			lanes.close();
+		}
+	}
+
+	/**
+	 * a full lane rejects trySubmit, other lanes still take tasks
+	 */
+	@Test
+	public void fullLaneTest() throws Exception
+	{
+		OrderedLaneExecutor<Integer> lanes = new OrderedLaneExecutor<Integer>("test", 2, 1);
+		CountDownLatch release = new CountDownLatch(1);
+		try
+		{
+			// occupy lane 0 consumer, then fill its queue
+			CompletableFuture<Object> running = lanes.trySubmit(0, () -> CompletableFuture.runAsync(() -> OrderedLaneExecutorTests.await(release)).thenApply(v -> null));
+			OrderedLaneExecutorTests.sleep(100);
+			CompletableFuture<Integer> queued = lanes.trySubmit(0, () -> CompletableFuture.completedFuture(1));
+			CompletableFuture<Integer> rejected = lanes.trySubmit(0, () -> CompletableFuture.completedFuture(2));
+			CompletableFuture<Integer> otherLane = lanes.trySubmit(1, () -> CompletableFuture.completedFuture(3));
+
+			assertTrue(rejected.isCompletedExceptionally());
+			assertEquals(3, otherLane.get(5, TimeUnit.SECONDS));
+			assertEquals(1, lanes.getRejectedTasks());
+
+			release.countDown();
+			running.get(5, TimeUnit.SECONDS);
+			assertEquals(1, queued.get(5, TimeUnit.SECONDS));
+		}
+		finally
+		{
+			release.countDown();
+			lanes.close();
+		}
+	}
+
+	/**
+	 * close waits for queued tasks up to its drain timeout, and refuses new
+	 * ones. tasks still queued at the timeout are dropped and fail.
+	 */
+	@Test
+	public void drainOnCloseTest() throws Exception
+	{
+		OrderedLaneExecutor<Integer> lanes = new OrderedLaneExecutor<Integer>("test", 2, 10);
+		List<CompletableFuture<Integer>> queued = new ArrayList<CompletableFuture<Integer>>();
+		for (int i = 0; i < 10; i++)
+		{
+			int value = i;
+			queued.add(lanes.trySubmit(i, () -> CompletableFuture.supplyAsync(() ->
+			{
+				OrderedLaneExecutorTests.sleep(20);
+				return value;
+			})));
+		}
+
+		lanes.close(Duration.ofSeconds(5));
+		for (int i = 0; i < 10; i++)
+		{
+			assertEquals(i, queued.get(i).getNow(null));
+		}
+		assertTrue(lanes.trySubmit(0, () -> CompletableFuture.completedFuture(0)).isCompletedExceptionally());
+
+		// a lane stuck past the timeout is stopped, its queued tasks fail
+		OrderedLaneExecutor<Integer> stuckLanes = new OrderedLaneExecutor<Integer>("test", 1, 10);
+		CountDownLatch release = new CountDownLatch(1);
+		try
+		{
+			stuckLanes.trySubmit(0, () -> CompletableFuture.runAsync(() -> OrderedLaneExecutorTests.await(release)).thenApply(v -> null));
+			CompletableFuture<Integer> dropped = stuckLanes.trySubmit(0, () -> CompletableFuture.completedFuture(1));
+			long start = System.nanoTime();
+			stuckLanes.close(Duration.ofMillis(200));
+			assertTrue(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) < 5);
+			ExecutionException error = assertThrows(ExecutionException.class, () -> dropped.get(5, TimeUnit.SECONDS));
+			assertTrue(error.getCause() instanceof RejectedExecutionException);
+			assertEquals(0, stuckLanes.getQueuedTasks());
+		}
+		finally
+		{
+			release.countDown();
+		}
+	}
+
+	/**
+	 * submit waiting for room in a full lane gives up when the lanes close
+	 */
+	@Test
+	public void submitOnCloseTest() throws Exception
+	{
+		OrderedLaneExecutor<Integer> lanes = new OrderedLaneExecutor<Integer>("test", 1, 1);
+		CountDownLatch release = new CountDownLatch(1);
+		try
+		{
+			lanes.trySubmit(0, () -> CompletableFuture.runAsync(() -> OrderedLaneExecutorTests.await(release)).thenApply(v -> null));
+			OrderedLaneExecutorTests.sleep(100);
+			CompletableFuture<Integer> queued = lanes.trySubmit(0, () -> CompletableFuture.completedFuture(1));
+			CompletableFuture<CompletableFuture<Integer>> waiting = CompletableFuture.supplyAsync(() -> lanes.submit(0, () -> CompletableFuture.completedFuture(2)));
+			OrderedLaneExecutorTests.sleep(100);
+			assertFalse(waiting.isDone());
+
+			lanes.close();
+			CompletableFuture<Integer> blocked = waiting.get(5, TimeUnit.SECONDS);
+			assertTrue(queued.isCompletedExceptionally());
+			ExecutionException error = assertThrows(ExecutionException.class, () -> blocked.get(5, TimeUnit.SECONDS));
+			assertTrue(error.getCause() instanceof RejectedExecutionException);
+		}
+		finally
+		{
+			release.countDown();
+		}
+	}
+
+	private static void sleep(long millis)
+	{
+		try
+		{
+			Thread.sleep(millis);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void await(CountDownLatch latch)
+	{
+		try
+		{
+			latch.await();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
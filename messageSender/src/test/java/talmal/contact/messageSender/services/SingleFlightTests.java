@@ -0,0 +1,99 @@
+package talmal.contact.messageSender.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+
+public class SingleFlightTests
+{
+	/**
+	 * callers that arrive while a load is in flight share it, and get all its
+	 * items. a caller after the load ended starts a new one.
+	 */
+	@Test
+	public void shareInFlightLoadTest()
+	{
+		SingleFlight<String, String> singleFlight = new SingleFlight<String, String>();
+		AtomicInteger loads = new AtomicInteger();
+		Sinks.Many<String> pages = Sinks.many().unicast().onBackpressureBuffer();
+
+		List<List<String>> results = new ArrayList<List<String>>();
+		for (int i = 0; i < 5; i++)
+		{
+			Flux<String> caller = singleFlight.execute("chat1", () ->
+			{
+				loads.incrementAndGet();
+				return pages.asFlux();
+			});
+
+			List<String> result = new ArrayList<String>();
+			results.add(result);
+			caller.subscribe(result::add);
+
+			// items before a caller joined are replayed to it
+			pages.tryEmitNext("message" + i);
+		}
+		assertEquals(1, singleFlight.size());
+
+		pages.tryEmitComplete();
+		assertEquals(1, loads.get());
+		assertEquals(4, singleFlight.getJoins());
+		assertEquals(0, singleFlight.size());
+		for (List<String> result : results)
+		{
+			assertEquals(List.of("message0", "message1", "message2", "message3", "message4"), result);
+		}
+
+		assertEquals(List.of("next"), singleFlight.execute("chat1", () ->
+		{
+			loads.incrementAndGet();
+			return Flux.just("next");
+		}).collectList().block(Duration.ofSeconds(5)));
+		assertEquals(2, loads.get());
+	}
+
+	/**
+	 * a failed load fails all its callers, and is not kept
+	 */
+	@Test
+	public void failedLoadTest()
+	{
+		SingleFlight<String, String> singleFlight = new SingleFlight<String, String>();
+
+		Flux<String> failed = singleFlight.execute("chat1", () -> Flux.error(new IllegalStateException("slack is down")));
+		assertThrows(IllegalStateException.class, () -> failed.blockLast(Duration.ofSeconds(5)));
+		assertEquals(0, singleFlight.size());
+
+		assertEquals("message", singleFlight.execute("chat1", () -> Flux.just("message")).blockLast(Duration.ofSeconds(5)));
+	}
+
+	/**
+	 * an ended load is dropped before its callers see the end, so a caller that
+	 * asks again right away starts a new load
+	 */
+	@Test
+	public void endedLoadDroppedTest()
+	{
+		SingleFlight<String, String> singleFlight = new SingleFlight<String, String>();
+		AtomicInteger sizeAtEnd = new AtomicInteger(-1);
+
+		singleFlight.execute("chat1", () -> Flux.just("message")).doOnComplete(() -> sizeAtEnd.set(singleFlight.size())).blockLast(Duration.ofSeconds(5));
+		assertEquals(0, sizeAtEnd.get());
+
+		sizeAtEnd.set(-1);
+		Flux<String> failed = singleFlight.execute("chat1", () -> Flux.error(new IllegalStateException("slack is down")))
+			.doOnError(e -> sizeAtEnd.set(singleFlight.size()));
+		assertThrows(IllegalStateException.class, () -> failed.blockLast(Duration.ofSeconds(5)));
+		assertEquals(0, sizeAtEnd.get());
+		assertEquals(0, singleFlight.getJoins());
+	}
+}
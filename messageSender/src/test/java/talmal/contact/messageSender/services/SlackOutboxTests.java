@@ -0,0 +1,202 @@
+package talmal.contact.messageSender.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import talmal.contact.messageSender.models.context.ChatMessage;
+import talmal.contact.messageSender.models.context.SenderType;
+
+public class SlackOutboxTests
+{
+	@TempDir
+	Path directory;
+
+	/**
+	 * while a chat can not be sent its messages wait, in order, other chats are
+	 * sent meanwhile
+	 */
+	@Test
+	public void sendInOrderAfterOutageTest() throws Exception
+	{
+		AtomicBoolean isChat1Down = new AtomicBoolean(true);
+		List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+		SlackOutbox outbox = new SlackOutbox(this.directory.toString(), 1, 1, 20, message ->
+		{
+			CompletableFuture<ChatMessage> result = null;
+			if (isChat1Down.get() && message.getChatId().equals("chat1"))
+			{
+				result = CompletableFuture.failedFuture(new IOException("slack is down"));
+			}
+			else
+			{
+				sent.add(message.getMessage());
+				result = CompletableFuture.completedFuture(message);
+			}
+			return result;
+		});
+
+		try
+		{
+			List<CompletableFuture<Void>> appends = new ArrayList<CompletableFuture<Void>>();
+			for (int i = 0; i < 20; i++)
+			{
+				appends.add(outbox.append(SlackOutboxTests.message("chat" + (i % 2), "message" + i)));
+			}
+			CompletableFuture.allOf(appends.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+
+			SlackOutboxTests.waitFor(() -> sent.size() == 10);
+			assertEquals(10, outbox.getPendingCount());
+
+			isChat1Down.set(false);
+			SlackOutboxTests.waitFor(() -> outbox.getPendingCount() == 0);
+
+			List<String> chat1 = sent.stream().filter(text -> Integer.parseInt(text.substring("message".length())) % 2 == 1).collect(Collectors.toList());
+			assertEquals(10, chat1.size());
+			for (int i = 0; i < chat1.size(); i++)
+			{
+				assertEquals("message" + (i * 2 + 1), chat1.get(i));
+			}
+
+			// 1 kb segments - sent segments were deleted on the way
+			SlackOutboxTests.waitFor(() -> outbox.getSegmentCount() == 1);
+		}
+		finally
+		{
+			outbox.close();
+		}
+	}
+
+	/**
+	 * messages not sent before close are sent after the next start, sent ones are
+	 * not sent again
+	 */
+	@Test
+	public void recoverPendingTest() throws Exception
+	{
+		List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+		SlackOutbox outbox = new SlackOutbox(this.directory.toString(), 1024, 1, 60000, message ->
+		{
+			CompletableFuture<ChatMessage> result = null;
+			if (message.getChatId().equals("chat1"))
+			{
+				result = CompletableFuture.failedFuture(new IOException("slack is down"));
+			}
+			else
+			{
+				sent.add(message.getMessage());
+				result = CompletableFuture.completedFuture(message);
+			}
+			return result;
+		});
+
+		for (int i = 0; i < 6; i++)
+		{
+			outbox.append(SlackOutboxTests.message("chat" + (i % 2), "message" + i)).get(10, TimeUnit.SECONDS);
+		}
+		// the DONE record of the last one follows its send
+		SlackOutboxTests.waitFor(() -> sent.size() == 3 && !outbox.hasPending("chat0"));
+		assertTrue(outbox.hasPending("chat1"));
+		outbox.close();
+
+		List<ChatMessage> resent = Collections.synchronizedList(new ArrayList<ChatMessage>());
+		SlackOutbox recovered = new SlackOutbox(this.directory.toString(), 1024, 1, 60000, message ->
+		{
+			resent.add(message);
+			return CompletableFuture.completedFuture(message);
+		});
+
+		try
+		{
+			SlackOutboxTests.waitFor(() -> recovered.getPendingCount() == 0);
+			assertFalse(recovered.hasPending("chat1"));
+			assertEquals(List.of("message1", "message3", "message5"), resent.stream().map(message -> message.getMessage()).collect(Collectors.toList()));
+			assertEquals(SlackOutboxTests.message("chat1", "message1"), resent.get(0));
+		}
+		finally
+		{
+			recovered.close();
+		}
+	}
+
+	/**
+	 * a pending message in an old segment keeps the newer segments that hold DONE
+	 * records of its sent neighbours, so they are not sent again after restart
+	 */
+	@Test
+	public void keepDoneRecordsOfPendingSegmentTest() throws Exception
+	{
+		List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+		SlackOutbox outbox = new SlackOutbox(this.directory.toString(), 1, 1, 60000, message ->
+		{
+			CompletableFuture<ChatMessage> result = null;
+			if (message.getChatId().equals("chat1"))
+			{
+				result = CompletableFuture.failedFuture(new IOException("slack is down"));
+			}
+			else
+			{
+				sent.add(message.getMessage());
+				result = CompletableFuture.completedFuture(message);
+			}
+			return result;
+		});
+
+		outbox.append(SlackOutboxTests.message("chat1", "pending")).get(10, TimeUnit.SECONDS);
+		for (int i = 0; i < 40; i++)
+		{
+			outbox.append(SlackOutboxTests.message("chat0", "message" + i)).get(10, TimeUnit.SECONDS);
+		}
+		SlackOutboxTests.waitFor(() -> sent.size() == 40);
+		assertTrue(outbox.getSegmentCount() > 2);
+		outbox.close();
+
+		List<String> resent = Collections.synchronizedList(new ArrayList<String>());
+		SlackOutbox recovered = new SlackOutbox(this.directory.toString(), 1, 1, 60000, message ->
+		{
+			resent.add(message.getMessage());
+			return CompletableFuture.completedFuture(message);
+		});
+
+		try
+		{
+			SlackOutboxTests.waitFor(() -> recovered.getPendingCount() == 0);
+			assertEquals(List.of("pending"), resent);
+		}
+		finally
+		{
+			recovered.close();
+		}
+	}
+
+	private static ChatMessage message(String chatId, String text)
+	{
+		return new ChatMessage(chatId, "1", "user", text, Instant.ofEpochSecond(1700000000), SenderType.USER);
+	}
+
+	private static void waitFor(BooleanSupplier condition) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline)
+		{
+			Thread.sleep(5);
+		}
+
+		assertTrue(condition.getAsBoolean());
+	}
+}
@@ -0,0 +1,529 @@
+package talmal.contact.messageSender.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.google.gson.JsonParser;
+import com.slack.api.RequestConfigurator;
+import com.slack.api.Slack;
+import com.slack.api.methods.AsyncMethodsClient;
+import com.slack.api.methods.MethodsClient;
+import com.slack.api.methods.request.chat.ChatPostMessageRequest;
+import com.slack.api.methods.request.conversations.ConversationsHistoryRequest;
+import com.slack.api.methods.request.conversations.ConversationsHistoryRequest.ConversationsHistoryRequestBuilder;
+import com.slack.api.methods.request.conversations.ConversationsRepliesRequest;
+import com.slack.api.methods.request.conversations.ConversationsRepliesRequest.ConversationsRepliesRequestBuilder;
+import com.slack.api.methods.response.chat.ChatPostMessageResponse;
+import com.slack.api.methods.response.conversations.ConversationsHistoryResponse;
+import com.slack.api.methods.response.conversations.ConversationsRepliesResponse;
+import com.slack.api.model.Message;
+import com.slack.api.model.ResponseMetadata;
+import com.slack.api.socket_mode.SocketModeClient;
+import com.slack.api.socket_mode.request.EventsApiEnvelope;
+import com.slack.api.socket_mode.response.AckResponse;
+
+import talmal.contact.messageSender.models.context.ChatMessage;
+import talmal.contact.messageSender.models.context.MessageIdFlag;
+import talmal.contact.messageSender.models.context.SenderType;
+import talmal.contact.messageSender.services.ratelimit.SlackRequestScheduler;
+
+public class SlackServiceTests
+{
+	private static final String CHAT_ID = "1700000000.000100";
+	private static final String REPLY_ID = "1700000001.000100";
+	private static final String SLACK_USER_OWNER = "U03CSHQP35J";
+
+	// conversations.replies answers of CHAT_ID by page cursor, null for the first
+	// page. a reply of CHAT_ID gets its thread, like in slack. other chats are not
+	// found
+	private final Map<String, ConversationsRepliesResponse> repliesPages = new ConcurrentHashMap<String, ConversationsRepliesResponse>();
+	// conversations.history answers by page cursor, null for the first page
+	private final Map<String, ConversationsHistoryResponse> historyPages = new ConcurrentHashMap<String, ConversationsHistoryResponse>();
+	// conversations.replies waits for it, to hold a load
+	private volatile CountDownLatch repliesGate = new CountDownLatch(0);
+	// chat.postMessage fails as if slack was not reached while set
+	private volatile boolean isSlackDown;
+	private final CacheService cache = new CacheService(true, 10);
+	private SlackService slackService;
+
+	@BeforeEach
+	@SuppressWarnings("unchecked")
+	public void open() throws Exception
+	{
+		MethodsClient methods = mock(MethodsClient.class);
+		when(methods.conversationsReplies(any(RequestConfigurator.class))).thenAnswer(invocation ->
+		{
+			ConversationsRepliesRequest request = ((RequestConfigurator<ConversationsRepliesRequestBuilder>) invocation.getArgument(0))
+				.configure(ConversationsRepliesRequest.builder()).build();
+			SlackServiceTests.await(this.repliesGate);
+			ConversationsRepliesResponse result = this.repliesPages.get(String.valueOf(request.getCursor()));
+			if (!SlackServiceTests.CHAT_ID.equals(request.getTs()) && !SlackServiceTests.REPLY_ID.equals(request.getTs()))
+			{
+				result = new ConversationsRepliesResponse();
+				result.setOk(false);
+				result.setError("thread_not_found");
+			}
+			return result;
+		});
+		when(methods.conversationsHistory(any(RequestConfigurator.class))).thenAnswer(invocation ->
+		{
+			ConversationsHistoryRequest request = ((RequestConfigurator<ConversationsHistoryRequestBuilder>) invocation.getArgument(0))
+				.configure(ConversationsHistoryRequest.builder()).build();
+			return this.historyPages.get(String.valueOf(request.getCursor()));
+		});
+
+		AsyncMethodsClient asyncMethods = mock(AsyncMethodsClient.class);
+		when(asyncMethods.chatPostMessage(any(ChatPostMessageRequest.class))).thenAnswer(invocation ->
+		{
+			ChatPostMessageRequest request = invocation.getArgument(0);
+			ChatPostMessageResponse result = new ChatPostMessageResponse();
+			result.setOk(true);
+			result.setMessage(new Message());
+			result.getMessage().setTs(SlackServiceTests.REPLY_ID);
+			result.getMessage().setThreadTs(request.getThreadTs());
+			result.getMessage().setUsername(request.getUsername());
+			result.getMessage().setText(request.getText());
+			return this.isSlackDown ? CompletableFuture.failedFuture(new IOException("slack is down")) : CompletableFuture.completedFuture(result);
+		});
+
+		// no socket mode in tests - a failed connect is logged and skipped
+		Slack slack = mock(Slack.class);
+		when(slack.methods(anyString())).thenReturn(methods);
+		when(slack.methodsAsync(anyString())).thenReturn(asyncMethods);
+		when(slack.socketMode(anyString())).thenThrow(new IOException("no socket mode in tests"));
+
+		this.slackService = new SlackService(slack, SlackServiceTests.encode("xoxb-test"), SlackServiceTests.encode("xapp-test"), "owner", "Robot", "C1",
+			"contact-me", 1, 8);
+		ReflectionTestUtils.setField(this.slackService, "cache", this.cache);
+		ReflectionTestUtils.setField(this.slackService, "messageQueueService", mock(MessageQueueService.class));
+		ReflectionTestUtils.setField(this.slackService, "requestScheduler", new SlackRequestScheduler(1000, 0));
+		ReflectionTestUtils.setField(this.slackService, "sendLaneCount", 1);
+		ReflectionTestUtils.setField(this.slackService, "sendLaneDepth", 8);
+		ReflectionTestUtils.setField(this.slackService, "idempotencyMaxEntries", 100);
+		ReflectionTestUtils.setField(this.slackService, "syncStaleSeconds", 60L);
+		ReflectionTestUtils.setField(this.slackService, "syncMaxEntries", 100);
+		ReflectionTestUtils.setField(this.slackService, "missingChatsTtlSeconds", 60L);
+		ReflectionTestUtils.setField(this.slackService, "missingChatsMaxEntries", 100);
+		ReflectionTestUtils.setField(this.slackService, "batchParallelism", 2);
+		ReflectionTestUtils.setField(this.slackService, "batchMaxChats", 10);
+		ReflectionTestUtils.setField(this.slackService, "warmUpHours", 24);
+		ReflectionTestUtils.setField(this.slackService, "warmUpTimeBudgetInSeconds", 5);
+		ReflectionTestUtils.setField(this.slackService, "warmUpParallelism", 2);
+		this.slackService.PostConstruct();
+	}
+
+	@AfterEach
+	public void close()
+	{
+		this.slackService.close();
+	}
+
+	/**
+	 * a chat is loaded from all its pages, the first message slack repeats at the
+	 * head of every page is sent once, and the loaded chat is cached
+	 */
+	@Test
+	public void multiPageLoadTest()
+	{
+		this.repliesPages.put("null", SlackServiceTests.page("page2", "1700000000.000100", "1700000001.000100", "1700000002.000100"));
+		this.repliesPages.put("page2", SlackServiceTests.page(null, "1700000000.000100", "1700000003.000100"));
+
+		List<String> expected = List.of("1700000000.000100", "1700000001.000100", "1700000002.000100", "1700000003.000100");
+		assertEquals(expected, SlackServiceTests.messageIds(this.slackService.streamChatMessages(SlackServiceTests.CHAT_ID).collectList().block(Duration.ofSeconds(5))));
+		assertEquals(expected, SlackServiceTests.messageIds(this.cache.getMessages(SlackServiceTests.CHAT_ID)));
+	}
+
+	/**
+	 * a page that fails after the first one fails the load - the part read so far
+	 * is not cached, so the next load reads the whole chat again
+	 */
+	@Test
+	public void failedPageNotCachedTest()
+	{
+		ConversationsRepliesResponse failedPage = new ConversationsRepliesResponse();
+		failedPage.setOk(false);
+		failedPage.setError("internal_error");
+		this.repliesPages.put("null", SlackServiceTests.page("page2", "1700000000.000100", "1700000001.000100"));
+		this.repliesPages.put("page2", failedPage);
+
+		List<ChatMessage> received = new ArrayList<ChatMessage>();
+		assertThrows(RuntimeException.class,
+			() -> this.slackService.streamChatMessages(SlackServiceTests.CHAT_ID).doOnNext(received::add).blockLast(Duration.ofSeconds(5)));
+		assertEquals(List.of("1700000000.000100", "1700000001.000100"), SlackServiceTests.messageIds(received));
+		assertFalse(this.cache.isChatExists(SlackServiceTests.CHAT_ID));
+
+		this.repliesPages.put("page2", SlackServiceTests.page(null, "1700000000.000100", "1700000002.000100"));
+		assertEquals(List.of("1700000000.000100", "1700000001.000100", "1700000002.000100"),
+			SlackServiceTests.messageIds(this.slackService.streamChatMessages(SlackServiceTests.CHAT_ID).collectList().block(Duration.ofSeconds(5))));
+		assertEquals(3, this.cache.getMessages(SlackServiceTests.CHAT_ID).size());
+	}
+
+	/**
+	 * a reply ts is not a chat - its thread is not cached under it, and it is
+	 * remembered as missing
+	 */
+	@Test
+	public void replyIsNotChatTest()
+	{
+		this.repliesPages.put("null", SlackServiceTests.page(null, "1700000000.000100", "1700000001.000100"));
+
+		assertTrue(this.slackService.streamChatMessages(SlackServiceTests.REPLY_ID).collectList().block(Duration.ofSeconds(5)).isEmpty());
+		assertFalse(this.cache.isChatExists(SlackServiceTests.REPLY_ID));
+		MissingChatCache missingChats = (MissingChatCache) ReflectionTestUtils.getField(this.slackService, "missingChats");
+		assertTrue(missingChats.isMissing(SlackServiceTests.REPLY_ID, System.nanoTime()));
+	}
+
+	/**
+	 * a failed delta sync answers with the cached chat and leaves it stale, so
+	 * the next read syncs again
+	 */
+	@Test
+	public void failedSyncStaysStaleTest()
+	{
+		List<ChatMessage> cachedMessages = List.of(SlackServiceTests.chatMessage("1700000000.000100"), SlackServiceTests.chatMessage("1700000001.000100"));
+		this.cache.addMessages(cachedMessages);
+		ConversationsRepliesResponse failedPage = new ConversationsRepliesResponse();
+		failedPage.setOk(false);
+		failedPage.setError("internal_error");
+		this.repliesPages.put("null", failedPage);
+
+		assertEquals(cachedMessages, this.slackService.streamChatMessages(SlackServiceTests.CHAT_ID).collectList().block(Duration.ofSeconds(5)));
+		ChatSyncTracker syncTracker = (ChatSyncTracker) ReflectionTestUtils.getField(this.slackService, "syncTracker");
+		assertTrue(syncTracker.isStale(SlackServiceTests.CHAT_ID, System.nanoTime()));
+
+		this.repliesPages.put("null", SlackServiceTests.page(null, "1700000000.000100", "1700000002.000100"));
+		assertEquals(List.of("1700000000.000100", "1700000001.000100", "1700000002.000100"),
+			SlackServiceTests.messageIds(this.slackService.streamChatMessages(SlackServiceTests.CHAT_ID).collectList().block(Duration.ofSeconds(5))));
+		assertFalse(syncTracker.isStale(SlackServiceTests.CHAT_ID, System.nanoTime()));
+	}
+
+	/**
+	 * a batch drops null and repeated chat ids, sends fresh cached chats before
+	 * chats loaded from slack, and answers a chat slack did not find with an
+	 * empty list
+	 */
+	@Test
+	public void batchTest()
+	{
+		String cachedChatId = "1700000005.000100";
+		this.cache.addMessages(List.of(new ChatMessage(cachedChatId, cachedChatId, "owner", "cached", Tools.slackTsToInstant(cachedChatId), SenderType.OWNER)));
+		((ChatSyncTracker) ReflectionTestUtils.getField(this.slackService, "syncTracker")).markSynced(cachedChatId, cachedChatId, System.nanoTime());
+		this.repliesPages.put("null", SlackServiceTests.page(null, "1700000000.000100", "1700000001.000100"));
+
+		List<String> chatIds = Arrays.asList(SlackServiceTests.CHAT_ID, null, "1700000009.000100", cachedChatId, SlackServiceTests.CHAT_ID);
+		assertEquals(List.of(cachedChatId, "1700000000.000100", "1700000001.000100"),
+			SlackServiceTests.messageIds(this.slackService.streamChatsMessages(chatIds).collectList().block(Duration.ofSeconds(5))));
+
+		// request order, a missing chat has an empty list
+		Map<String, List<ChatMessage>> chats = this.slackService.getChatsMessages(chatIds);
+		assertEquals(List.of(SlackServiceTests.CHAT_ID, "1700000009.000100", cachedChatId), new ArrayList<String>(chats.keySet()));
+		assertEquals(List.of("1700000000.000100", "1700000001.000100"), SlackServiceTests.messageIds(chats.get(SlackServiceTests.CHAT_ID)));
+		assertTrue(chats.get("1700000009.000100").isEmpty());
+		assertEquals(1, chats.get(cachedChatId).size());
+	}
+
+	/**
+	 * a chat that fails to load ends with an error message, the other chats of
+	 * the batch are still sent
+	 */
+	@Test
+	public void batchFailedChatTest()
+	{
+		String cachedChatId = "1700000005.000100";
+		this.cache.addMessages(List.of(new ChatMessage(cachedChatId, cachedChatId, "owner", "cached", Tools.slackTsToInstant(cachedChatId), SenderType.OWNER)));
+		((ChatSyncTracker) ReflectionTestUtils.getField(this.slackService, "syncTracker")).markSynced(cachedChatId, cachedChatId, System.nanoTime());
+		ConversationsRepliesResponse failedPage = new ConversationsRepliesResponse();
+		failedPage.setOk(false);
+		failedPage.setError("internal_error");
+		this.repliesPages.put("null", failedPage);
+
+		Map<String, List<ChatMessage>> chats = this.slackService.getChatsMessages(List.of(SlackServiceTests.CHAT_ID, cachedChatId));
+		assertEquals(List.of(MessageIdFlag.ERROR.name()), SlackServiceTests.messageIds(chats.get(SlackServiceTests.CHAT_ID)));
+		assertEquals(List.of(cachedChatId), SlackServiceTests.messageIds(chats.get(cachedChatId)));
+	}
+
+	/**
+	 * a batch over slack.batch.maxChats distinct chat ids is refused before any
+	 * load, repeated ids count once
+	 */
+	@Test
+	public void batchMaxChatsTest()
+	{
+		List<String> chatIds = new ArrayList<String>();
+		for (int i = 0; i < 10; i++)
+		{
+			chatIds.add(String.format("17000001%02d.000100", i));
+			chatIds.add(String.format("17000001%02d.000100", i));
+		}
+		assertEquals(10, this.slackService.getChatsMessages(chatIds).size());
+
+		chatIds.add("1700000199.000100");
+		assertThrows(IllegalArgumentException.class, () -> this.slackService.streamChatsMessages(chatIds));
+		assertThrows(IllegalArgumentException.class, () -> this.slackService.getChatsMessages(chatIds));
+	}
+
+	/**
+	 * warm-up reads every page of the channel history and loads each chat with
+	 * its replies into cache, a chat without replies without asking for them.
+	 * warmed chats are fresh, not synced again on the next read.
+	 */
+	@Test
+	public void warmUpTest()
+	{
+		this.historyPages.put("null", SlackServiceTests.historyPage("page2", SlackServiceTests.chatHead(SlackServiceTests.CHAT_ID, 2)));
+		this.historyPages.put("page2", SlackServiceTests.historyPage(null, SlackServiceTests.chatHead("1700000005.000100", 0)));
+		this.repliesPages.put("null", SlackServiceTests.page(null, "1700000000.000100", "1700000001.000100", "1700000002.000100"));
+
+		ReflectionTestUtils.invokeMethod(this.slackService, "warmUpCache");
+		assertEquals(List.of("1700000000.000100", "1700000001.000100", "1700000002.000100"),
+			SlackServiceTests.messageIds(this.cache.getMessages(SlackServiceTests.CHAT_ID)));
+		assertEquals(List.of("1700000005.000100"), SlackServiceTests.messageIds(this.cache.getMessages("1700000005.000100")));
+
+		ChatSyncTracker syncTracker = (ChatSyncTracker) ReflectionTestUtils.getField(this.slackService, "syncTracker");
+		assertFalse(syncTracker.isStale(SlackServiceTests.CHAT_ID, System.nanoTime()));
+		assertFalse(syncTracker.isStale("1700000005.000100", System.nanoTime()));
+	}
+
+	/**
+	 * warm-up stops at its time budget - a chat still loading or not started yet
+	 * is left for the first read
+	 */
+	@Test
+	public void warmUpBudgetTest()
+	{
+		ReflectionTestUtils.setField(this.slackService, "warmUpTimeBudgetInSeconds", 1);
+		ReflectionTestUtils.setField(this.slackService, "warmUpParallelism", 1);
+		this.historyPages.put("null",
+			SlackServiceTests.historyPage(null, SlackServiceTests.chatHead(SlackServiceTests.CHAT_ID, 1), SlackServiceTests.chatHead("1700000005.000100", 0)));
+		this.repliesPages.put("null", SlackServiceTests.page(null, "1700000000.000100", "1700000001.000100"));
+
+		// the single warm-up thread is held by the first chat past the budget
+		this.repliesGate = new CountDownLatch(1);
+		try
+		{
+			long start = System.nanoTime();
+			ReflectionTestUtils.invokeMethod(this.slackService, "warmUpCache");
+			assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 3000);
+			assertFalse(this.cache.isChatExists("1700000005.000100"));
+		}
+		finally
+		{
+			this.repliesGate.countDown();
+		}
+	}
+
+	/**
+	 * a chat whose replies fail is not cached, the other chats are
+	 */
+	@Test
+	public void warmUpFailedChatTest()
+	{
+		this.historyPages.put("null",
+			SlackServiceTests.historyPage(null, SlackServiceTests.chatHead("1700000009.000100", 1), SlackServiceTests.chatHead(SlackServiceTests.CHAT_ID, 1)));
+		this.repliesPages.put("null", SlackServiceTests.page(null, "1700000000.000100", "1700000001.000100"));
+
+		ReflectionTestUtils.invokeMethod(this.slackService, "warmUpCache");
+		assertFalse(this.cache.isChatExists("1700000009.000100"));
+		assertEquals(List.of("1700000000.000100", "1700000001.000100"), SlackServiceTests.messageIds(this.cache.getMessages(SlackServiceTests.CHAT_ID)));
+	}
+
+	/**
+	 * an event taken by its lane is acknowledged, an event its full lane refused
+	 * is not - slack sends it again
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void eventAckTest() throws Exception
+	{
+		SocketModeClient socketModeClient = mock(SocketModeClient.class);
+		ReflectionTestUtils.setField(this.slackService, "socketModeClient", socketModeClient);
+		OrderedLaneExecutor<String> eventLanes = (OrderedLaneExecutor<String>) ReflectionTestUtils.getField(this.slackService, "eventLanes");
+
+		// occupy the single event lane, then fill its queue (depth 8)
+		CountDownLatch release = new CountDownLatch(1);
+		CompletableFuture<Void> running = eventLanes.trySubmit(null, () -> CompletableFuture.runAsync(() -> SlackServiceTests.await(release)));
+		Thread.sleep(100);
+		for (int i = 0; i < 8; i++)
+		{
+			eventLanes.trySubmit(null, () -> CompletableFuture.completedFuture(null));
+		}
+
+		ReflectionTestUtils.invokeMethod(this.slackService, "acceptEvent", SlackServiceTests.envelope("refused"));
+		verify(socketModeClient, never()).sendSocketModeResponse(any(AckResponse.class));
+
+		release.countDown();
+		running.get(5, TimeUnit.SECONDS);
+		Thread.sleep(100);
+		ReflectionTestUtils.invokeMethod(this.slackService, "acceptEvent", SlackServiceTests.envelope("accepted"));
+		verify(socketModeClient).sendSocketModeResponse(new AckResponse("accepted"));
+		verify(socketModeClient, never()).sendSocketModeResponse(new AckResponse("refused"));
+	}
+
+	/**
+	 * @param nextCursor - cursor of the next page, null for the last page
+	 * @param tsList     - message ts of page messages, the first one is the chat
+	 *                   first message
+	 * @return ok conversations.replies page
+	 */
+	private static ConversationsRepliesResponse page(String nextCursor, String... tsList)
+	{
+		List<Message> messages = new ArrayList<Message>();
+		for (String ts : tsList)
+		{
+			Message message = new Message();
+			message.setTs(ts);
+			message.setThreadTs(SlackServiceTests.CHAT_ID);
+			message.setUser(SlackServiceTests.SLACK_USER_OWNER);
+			message.setText("text of " + ts);
+			messages.add(message);
+		}
+
+		ConversationsRepliesResponse result = new ConversationsRepliesResponse();
+		result.setOk(true);
+		result.setMessages(messages);
+		result.setHasMore(nextCursor != null);
+		ResponseMetadata responseMetadata = new ResponseMetadata();
+		responseMetadata.setNextCursor(nextCursor);
+		result.setResponseMetadata(responseMetadata);
+		return result;
+	}
+
+	/**
+	 * @param nextCursor - cursor of the next page, null for the last page
+	 * @param messages   - top level messages of page
+	 * @return ok conversations.history page
+	 */
+	private static ConversationsHistoryResponse historyPage(String nextCursor, Message... messages)
+	{
+		ConversationsHistoryResponse result = new ConversationsHistoryResponse();
+		result.setOk(true);
+		result.setMessages(List.of(messages));
+		result.setHasMore(nextCursor != null);
+		ResponseMetadata responseMetadata = new ResponseMetadata();
+		responseMetadata.setNextCursor(nextCursor);
+		result.setResponseMetadata(responseMetadata);
+		return result;
+	}
+
+	/**
+	 * @param ts         - chat id
+	 * @param replyCount - number of replies in chat
+	 * @return first message of chat, as in channel history
+	 */
+	/**
+	 * with the outbox on, "close chat" waits for the pending replies of its chat,
+	 * so a reply sent after slack is back does not cache the closed chat again
+	 */
+	@Test
+	public void closeChatAfterPendingRepliesTest(@TempDir Path directory) throws Exception
+	{
+		// start again with the outbox on
+		this.slackService.close();
+		ReflectionTestUtils.setField(this.slackService, "isOutboxEnabled", true);
+		ReflectionTestUtils.setField(this.slackService, "outboxDirectory", directory.toString());
+		ReflectionTestUtils.setField(this.slackService, "outboxSegmentSizeInKb", 1024);
+		ReflectionTestUtils.setField(this.slackService, "outboxFlushIntervalMillis", 1L);
+		ReflectionTestUtils.setField(this.slackService, "outboxRetryIntervalMillis", 50L);
+		this.slackService.PostConstruct();
+		SlackOutbox outbox = (SlackOutbox) ReflectionTestUtils.getField(this.slackService, "outbox");
+
+		this.isSlackDown = true;
+		ChatMessage reply = new ChatMessage(SlackServiceTests.CHAT_ID, "", "user", "hi", Instant.now(), SenderType.USER);
+		assertEquals(MessageIdFlag.PENDING.name(), this.slackService.sendMessage(reply).getMessageId());
+		ChatMessage closeChat = new ChatMessage(SlackServiceTests.CHAT_ID, MessageIdFlag.CLOSE_CHAT.name(), "user", "", Instant.now(), SenderType.USER);
+		assertEquals(closeChat, this.slackService.sendMessage(closeChat));
+
+		this.isSlackDown = false;
+		SlackServiceTests.waitFor(() -> outbox.getPendingCount() == 0);
+		assertNull(this.cache.getMessages(SlackServiceTests.CHAT_ID));
+	}
+
+	private static Message chatHead(String ts, int replyCount)
+	{
+		Message result = new Message();
+		result.setTs(ts);
+		result.setThreadTs((replyCount > 0) ? ts : null);
+		result.setReplyCount(replyCount);
+		result.setUser(SlackServiceTests.SLACK_USER_OWNER);
+		result.setText("text of " + ts);
+		return result;
+	}
+
+	private static ChatMessage chatMessage(String ts)
+	{
+		return new ChatMessage(SlackServiceTests.CHAT_ID, ts, "owner", "text of " + ts, Tools.slackTsToInstant(ts), SenderType.OWNER);
+	}
+
+	private static List<String> messageIds(List<ChatMessage> messages)
+	{
+		return messages.stream().map(message -> message.getMessageId()).collect(Collectors.toList());
+	}
+
+	private static EventsApiEnvelope envelope(String envelopeId)
+	{
+		EventsApiEnvelope result = new EventsApiEnvelope();
+		result.setEnvelopeId(envelopeId);
+		result.setPayload(JsonParser.parseString("{\"type\":\"event_callback\"}"));
+		return result;
+	}
+
+	private static void waitFor(BooleanSupplier condition) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline)
+		{
+			Thread.sleep(5);
+		}
+
+		assertTrue(condition.getAsBoolean());
+	}
+
+	private static void await(CountDownLatch latch)
+	{
+		try
+		{
+			latch.await();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static String encode(String token)
+	{
+		return Base64.getEncoder().encodeToString(token.getBytes(StandardCharsets.UTF_8));
+	}
+}
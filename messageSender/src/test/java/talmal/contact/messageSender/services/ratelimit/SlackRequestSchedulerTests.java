@@ -0,0 +1,188 @@
+package talmal.contact.messageSender.services.ratelimit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import com.slack.api.methods.SlackApiException;
+
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+
+public class SlackRequestSchedulerTests
+{
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	/**
+	 * burst is served at once, later tokens are handed out at the tier rate
+	 */
+	@Test
+	public void tokenBucketTest()
+	{
+		TokenBucket bucket = new TokenBucket(2, 60, 0);
+		assertEquals(0, bucket.reserve(0, 0));
+		assertEquals(0, bucket.reserve(0, 0));
+		assertEquals(-1, bucket.reserve(0, SlackRequestSchedulerTests.SECOND / 2));
+		assertEquals(SlackRequestSchedulerTests.SECOND, bucket.reserve(0, SlackRequestSchedulerTests.SECOND));
+		assertEquals(SlackRequestSchedulerTests.SECOND, bucket.reserve(SlackRequestSchedulerTests.SECOND, SlackRequestSchedulerTests.SECOND));
+
+		// Retry-After pause delays the next token
+		bucket.pauseUntil(10 * SlackRequestSchedulerTests.SECOND);
+		assertEquals(5 * SlackRequestSchedulerTests.SECOND, bucket.reserve(5 * SlackRequestSchedulerTests.SECOND, 10 * SlackRequestSchedulerTests.SECOND));
+	}
+
+	/**
+	 * a request that can not get a token before its deadline is rejected
+	 */
+	@Test
+	public void rejectAfterDeadlineTest() throws Exception
+	{
+		SlackRequestScheduler scheduler = new SlackRequestScheduler(0, 0);
+		try
+		{
+			assertEquals("ok", scheduler.execute(SlackOperation.ADMIN, SlackApiTier.TIER_1, () -> "ok"));
+			assertThrows(SlackRequestRejectedException.class, () -> scheduler.execute(SlackOperation.ADMIN, SlackApiTier.TIER_1, () -> "ok"));
+			assertTrue(scheduler.executeAsync(SlackOperation.ADMIN, SlackApiTier.TIER_1, () -> CompletableFuture.completedFuture("ok")).isCompletedExceptionally());
+			assertEquals(2, scheduler.getStatistics(SlackApiTier.TIER_1).getRejected());
+		}
+		finally
+		{
+			scheduler.close();
+		}
+	}
+
+	/**
+	 * 429 answers are retried after Retry-After, other errors are not
+	 */
+	@Test
+	public void retryAfterTest() throws Exception
+	{
+		SlackRequestScheduler scheduler = new SlackRequestScheduler(10000, 2);
+		try
+		{
+			AtomicInteger calls = new AtomicInteger();
+			String result = scheduler.execute(SlackOperation.ADMIN, SlackApiTier.TIER_4, () ->
+			{
+				if (calls.incrementAndGet() == 1)
+				{
+					throw SlackRequestSchedulerTests.slackError(429);
+				}
+
+				return "ok";
+			});
+			assertEquals("ok", result);
+			assertEquals(2, calls.get());
+			assertEquals(1, scheduler.getStatistics(SlackApiTier.TIER_4).getRateLimited());
+
+			CompletableFuture<String> failed = new CompletableFuture<String>();
+			failed.completeExceptionally(SlackRequestSchedulerTests.slackError(500));
+			calls.set(0);
+			CompletableFuture<String> asyncResult = scheduler.executeAsync(SlackOperation.ADMIN, SlackApiTier.TIER_4, () -> 
+			{
+				calls.incrementAndGet();
+				return failed;
+			});
+			assertThrows(Exception.class, () -> asyncResult.get(5, TimeUnit.SECONDS));
+			assertEquals(1, calls.get());
+		}
+		finally
+		{
+			scheduler.close();
+		}
+	}
+
+	/**
+	 * breaker opens after failures and fails calls at once, a successful trial
+	 * call after the open time closes it
+	 */
+	@Test
+	public void circuitBreakerTest()
+	{
+		CircuitBreaker breaker = new CircuitBreaker(4, 4, 0.5, SlackRequestSchedulerTests.SECOND);
+		for (int i = 0; i < 3; i++)
+		{
+			assertTrue(breaker.tryAcquire(0));
+			breaker.record(i != 0, 0);
+		}
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		breaker.record(false, 0);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertFalse(breaker.tryAcquire(SlackRequestSchedulerTests.SECOND / 2));
+
+		// single trial call
+		assertTrue(breaker.tryAcquire(SlackRequestSchedulerTests.SECOND));
+		assertFalse(breaker.tryAcquire(SlackRequestSchedulerTests.SECOND));
+		breaker.record(true, SlackRequestSchedulerTests.SECOND);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+		assertTrue(breaker.tryAcquire(2 * SlackRequestSchedulerTests.SECOND));
+		breaker.record(false, 2 * SlackRequestSchedulerTests.SECOND);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+	}
+
+	/**
+	 * a failing operation class is cut off, and only it - other classes go on.
+	 * a full bulkhead fails calls at once.
+	 */
+	@Test
+	public void isolateOperationsTest() throws Exception
+	{
+		SlackRequestScheduler scheduler = new SlackRequestScheduler(10000, 0, 60000, 5000);
+		try
+		{
+			AtomicInteger calls = new AtomicInteger();
+			for (int i = 0; i < 10; i++)
+			{
+				assertThrows(SlackApiException.class, () -> scheduler.execute(SlackOperation.HISTORY, SlackApiTier.TIER_3, () ->
+				{
+					calls.incrementAndGet();
+					throw SlackRequestSchedulerTests.slackError(503);
+				}));
+			}
+			assertEquals("OPEN", scheduler.getCircuitState(SlackOperation.HISTORY));
+			assertThrows(SlackRequestRejectedException.class, () -> scheduler.execute(SlackOperation.HISTORY, SlackApiTier.TIER_3, () -> calls.incrementAndGet()));
+			assertEquals(10, calls.get());
+			assertEquals(1, scheduler.getRejectedCalls(SlackOperation.HISTORY));
+
+			assertEquals("ok", scheduler.execute(SlackOperation.ADMIN, SlackApiTier.TIER_2, () -> "ok"));
+			assertEquals("CLOSED", scheduler.getCircuitState(SlackOperation.ADMIN));
+
+			// bulkhead - async calls hold their permit until done. tiers are picked to stay within their burst
+			List<CompletableFuture<String>> pending = new ArrayList<CompletableFuture<String>>();
+			CompletableFuture<String> slackResponse = new CompletableFuture<String>();
+			for (int i = 0; i < SlackOperation.SEND.getMaxConcurrentCalls(); i++)
+			{
+				pending.add(scheduler.executeAsync(SlackOperation.SEND, SlackApiTier.TIER_4, () -> slackResponse));
+			}
+			CompletableFuture<String> rejected = scheduler.executeAsync(SlackOperation.SEND, SlackApiTier.TIER_4, () -> slackResponse);
+			ExecutionException e = assertThrows(ExecutionException.class, () -> rejected.get(5, TimeUnit.SECONDS));
+			assertTrue(e.getCause() instanceof SlackRequestRejectedException);
+
+			slackResponse.complete("ok");
+			CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).get(30, TimeUnit.SECONDS);
+			assertEquals("ok", scheduler.executeAsync(SlackOperation.SEND, SlackApiTier.TIER_4, () -> CompletableFuture.completedFuture("ok")).get(30, TimeUnit.SECONDS));
+		}
+		finally
+		{
+			scheduler.close();
+		}
+	}
+
+	private static SlackApiException slackError(int code)
+	{
+		Response response = new Response.Builder().request(new Request.Builder().url("https://slack.com/api/test").build()).protocol(Protocol.HTTP_1_1)
+			.code(code).message("error").header("Retry-After", "0").build();
+		return new SlackApiException(response, "{\"ok\":false,\"error\":\"ratelimited\"}");
+	}
+}